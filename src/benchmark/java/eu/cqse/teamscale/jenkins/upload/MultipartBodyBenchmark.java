@@ -0,0 +1,85 @@
+package eu.cqse.teamscale.jenkins.upload;
+
+import hudson.FilePath;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import okhttp3.MultipartBody;
+import okhttp3.RequestBody;
+import okio.BufferedSink;
+import okio.Okio;
+import org.apache.commons.io.output.CountingOutputStream;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Builds and writes the multipart body of an upload request like {@link ReportUploader} does, without the network.
+ * The body is written to a sink that discards it, so this measures reading, compressing and framing the reports.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3)
+@Measurement(iterations = 5)
+@Fork(1)
+public class MultipartBodyBenchmark {
+
+    /** Size of the report: 1 KB, 1 MB, 100 MB and 1 GB. */
+    @Param({"1024", "1048576", "104857600", "1073741824"})
+    public long reportSize;
+
+    @Param({"false", "true"})
+    public boolean compressReports;
+
+    private Path workspace;
+
+    private List<ReportFile> reports;
+
+    @Setup(Level.Trial)
+    public void createReport() throws IOException {
+        workspace = Files.createTempDirectory("teamscale-body-benchmark");
+        String path = "target/coverage/report.simple";
+        SyntheticWorkspace.writeReport(workspace.resolve(path), reportSize);
+        reports = Collections.singletonList(new ReportFile(path, reportSize));
+    }
+
+    @TearDown(Level.Trial)
+    public void deleteReport() throws IOException, InterruptedException {
+        SyntheticWorkspace.delete(workspace);
+    }
+
+    @Benchmark
+    public long writeBody() throws IOException {
+        FilePath baseDirectory = new FilePath(workspace.toFile());
+        MultipartBody.Builder builder = new MultipartBody.Builder().setType(MultipartBody.FORM);
+        if (compressReports) {
+            builder.addFormDataPart("report", "reports.zip", new ZipRequestBody(baseDirectory, reports, null));
+        } else {
+            for (ReportFile report : reports) {
+                RequestBody body = new ReportRequestBody(baseDirectory.child(report.getPath()), null);
+                builder.addFormDataPart("report", report.getPath(), body);
+            }
+        }
+        // The body is sent chunked, so its size is only known once it has been written
+        CountingOutputStream counter = new CountingOutputStream(OutputStream.nullOutputStream());
+        try (BufferedSink sink = Okio.buffer(Okio.sink(counter))) {
+            builder.build().writeTo(sink);
+        }
+        return counter.getByteCount();
+    }
+}
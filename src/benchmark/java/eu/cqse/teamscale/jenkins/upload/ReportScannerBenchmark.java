@@ -0,0 +1,74 @@
+package eu.cqse.teamscale.jenkins.upload;
+
+import hudson.model.TaskListener;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Collects the reports of synthetic workspaces with {@link TeamscaleUploadBuilder.CoverageCollectingFileCallable},
+ * as it runs on the agent. Creating the largest workspace takes a few minutes, so select the sizes with
+ * {@code -p fileCount=...} when iterating on the scanner.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3)
+@Measurement(iterations = 5)
+@Fork(1)
+public class ReportScannerBenchmark {
+
+    @Param({"10000", "100000", "1000000"})
+    public int fileCount;
+
+    /** Every n-th file of the workspace is a report. */
+    @Param({"100"})
+    public int reportInterval;
+
+    private Path workspace;
+
+    private ReportScanner scanner;
+
+    @Setup(Level.Trial)
+    public void createWorkspace() throws IOException {
+        workspace = Files.createTempDirectory("teamscale-scan-benchmark");
+        SyntheticWorkspace.create(workspace, fileCount, reportInterval, 1024);
+        scanner = new ReportScanner(
+                ReportScanner.splitPatterns("**/*.simple"), ReportScanner.splitPatterns("**/node_modules/**"), false);
+    }
+
+    @TearDown(Level.Trial)
+    public void deleteWorkspace() throws IOException, InterruptedException {
+        SyntheticWorkspace.delete(workspace);
+    }
+
+    @Benchmark
+    public ReportScanner.Result collect() throws IOException, InterruptedException {
+        return collect(scanner);
+    }
+
+    /** The scan used to skip unchanged reports, which additionally reads and hashes every report. */
+    @Benchmark
+    public ReportScanner.Result collectWithHashes() throws IOException, InterruptedException {
+        return collect(scanner.withHashes());
+    }
+
+    private ReportScanner.Result collect(ReportScanner scanner) throws IOException, InterruptedException {
+        return new TeamscaleUploadBuilder.CoverageCollectingFileCallable(scanner, TaskListener.NULL)
+                .invoke(workspace.toFile(), null);
+    }
+}
@@ -0,0 +1,76 @@
+package eu.cqse.teamscale.jenkins.upload;
+
+import hudson.FilePath;
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Generates workspaces for the benchmarks that look like the output of a multi-module build.
+ */
+final class SyntheticWorkspace {
+
+    /** Files per directory, i.e. per package of a module. */
+    private static final int FILES_PER_DIRECTORY = 100;
+
+    /** Directories per module. */
+    private static final int DIRECTORIES_PER_MODULE = 100;
+
+    private SyntheticWorkspace() {}
+
+    /**
+     * Creates a workspace in a new temporary directory.
+     * Every {@code reportInterval}-th file is a SIMPLE coverage report of the given size, which matches
+     * {@code **}{@code /*.simple}; all other files are small source files that the scan has to skip.
+     *
+     * @return the reports in the workspace.
+     */
+    static List<ReportFile> create(Path workspace, int fileCount, int reportInterval, long reportSize)
+            throws IOException {
+        List<ReportFile> reports = new ArrayList<>();
+        byte[] source = "class Source {}\n".getBytes(StandardCharsets.UTF_8);
+        for (int i = 0; i < fileCount; i++) {
+            int directory = i / FILES_PER_DIRECTORY;
+            String module = "module-" + directory / DIRECTORIES_PER_MODULE;
+            if (i % reportInterval == 0) {
+                String path = module + "/target/coverage/" + directory + "/report-" + i + ".simple";
+                writeReport(workspace.resolve(path), reportSize);
+                reports.add(new ReportFile(path, reportSize));
+            } else {
+                Path file = workspace.resolve(module + "/src/main/java/p" + directory + "/Source" + i + ".java");
+                Files.createDirectories(file.getParent());
+                Files.write(file, source);
+            }
+        }
+        return reports;
+    }
+
+    /** Writes a SIMPLE coverage report of exactly the given size. */
+    static void writeReport(Path file, long size) throws IOException {
+        Files.createDirectories(file.getParent());
+        try (BufferedWriter writer = Files.newBufferedWriter(file, StandardCharsets.UTF_8)) {
+            String header = "src/main/java/Source.java\n";
+            long written = 0;
+            if (size >= header.length()) {
+                writer.write(header);
+                written = header.length();
+            }
+            for (int line = 1; written < size; line++) {
+                String entry = line + "\n";
+                if (written + entry.length() > size) {
+                    entry = "\n".repeat((int) (size - written));
+                }
+                writer.write(entry);
+                written += entry.length();
+            }
+        }
+    }
+
+    static void delete(Path workspace) throws IOException, InterruptedException {
+        new FilePath(workspace.toFile()).deleteRecursive();
+    }
+}
@@ -0,0 +1,135 @@
+package eu.cqse.teamscale.jenkins.upload;
+
+import hudson.FilePath;
+import hudson.util.Secret;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import okhttp3.mockwebserver.Dispatcher;
+import okhttp3.mockwebserver.MockResponse;
+import okhttp3.mockwebserver.MockWebServer;
+import okhttp3.mockwebserver.RecordedRequest;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Uploads the reports of a synthetic workspace end to end with {@link ReportUploader}, against an in-process
+ * {@link MockWebServer} that stands in for Teamscale and accepts every upload.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3)
+@Measurement(iterations = 5)
+@Fork(1)
+public class UploadBenchmark {
+
+    @Param({"1", "100", "1000"})
+    public int reportCount;
+
+    @Param({"10240"})
+    public long reportSize;
+
+    @Param({"false", "true"})
+    public boolean compressReports;
+
+    @Param({"1", "4"})
+    public int uploadConcurrency;
+
+    /** Reports per request, so that the larger workspaces are sent in several batches. */
+    @Param({"100"})
+    public long maxBatchReports;
+
+    private MockWebServer server;
+
+    private Path workspace;
+
+    private List<ReportFile> reports;
+
+    private ReportUploader uploader;
+
+    @Setup(Level.Trial)
+    public void startServer() throws IOException {
+        server = new MockWebServer();
+        // Only the response matters, the uploaded reports must not pile up in memory
+        server.setBodyLimit(0);
+        server.setDispatcher(new Dispatcher() {
+            @Override
+            public MockResponse dispatch(RecordedRequest request) {
+                if (request.getRequestUrl().encodedPath().endsWith("/external-analysis/session")) {
+                    return new MockResponse().setResponseCode(200).setBody("\"benchmark-session\"");
+                }
+                return new MockResponse().setResponseCode(200);
+            }
+        });
+        server.start();
+
+        workspace = Files.createTempDirectory("teamscale-upload-benchmark");
+        reports = SyntheticWorkspace.create(workspace, reportCount, 1, reportSize);
+
+        UploadParameters parameters = new UploadParameters.Builder(
+                        server.url("/").toString(),
+                        "benchmark",
+                        Secret.fromString("benchmark"),
+                        "project",
+                        "partition",
+                        "SIMPLE",
+                        "revision")
+                .uploadMessage("Benchmark")
+                .compressReports(compressReports)
+                .batchLimits(ReportBatches.UNLIMITED, maxBatchReports)
+                .uploadConcurrency(uploadConcurrency)
+                .maxConcurrentUploads(uploadConcurrency)
+                .schedulingQueue("benchmark")
+                .build();
+        uploader = new ReportUploader(parameters, new PrintStream(OutputStream.nullOutputStream()), "");
+    }
+
+    @TearDown(Level.Iteration)
+    public void discardRecordedRequests() throws InterruptedException {
+        while (server.takeRequest(0, TimeUnit.MILLISECONDS) != null) {
+            // MockWebServer records every request, even if their bodies are not kept
+        }
+    }
+
+    @TearDown(Level.Trial)
+    public void stopServer() throws IOException, InterruptedException {
+        server.shutdown();
+        SyntheticWorkspace.delete(workspace);
+    }
+
+    /** Uploads reports that have already been collected, as when uploading from the controller. */
+    @Benchmark
+    public UploadResult upload() throws InterruptedException {
+        return checked(uploader.upload(new FilePath(workspace.toFile()), reports));
+    }
+
+    /** Scans the workspace and uploads the reports as they are found, as when uploading from the agent. */
+    @Benchmark
+    public UploadResult uploadWhileScanning() throws IOException, InterruptedException {
+        ReportScanner scanner = new ReportScanner(ReportScanner.splitPatterns("**/*.simple"), new String[0], false);
+        return checked(uploader.uploadWhileScanning(workspace.toFile(), scanner));
+    }
+
+    private static UploadResult checked(UploadResult result) {
+        if (!result.isSuccessful()) {
+            throw new IllegalStateException(result.getSummary());
+        }
+        return result;
+    }
+}
@@ -0,0 +1,66 @@
+package eu.cqse.teamscale.jenkins.upload;
+
+import hudson.FilePath;
+import hudson.model.TaskListener;
+import hudson.remoting.VirtualChannel;
+import java.io.File;
+import java.io.IOException;
+import java.util.List;
+import jenkins.MasterToSlaveFileCallable;
+import org.jspecify.annotations.Nullable;
+
+/**
+ * Collects the reports and uploads them to Teamscale directly from the agent that holds the workspace.
+ * Batches are uploaded while the workspace is still being scanned, unless the reports were already found by an earlier
+ * scan, e.g. a scan for several partitions at once.
+ * Only the upload parameters are sent to the agent and only the build log output and the {@link UploadResult}
+ * are sent back, so the report contents never pass through the controller.
+ */
+class AgentUploadCallable extends MasterToSlaveFileCallable<UploadResult> {
+
+    private static final long serialVersionUID = 1L;
+
+    @Nullable
+    private final ReportScanner scanner;
+
+    /** The reports found by an earlier scan, {@code null} if the workspace is scanned during the upload. */
+    @Nullable
+    private final List<ReportFile> reports;
+
+    private final UploadParameters parameters;
+    private final TaskListener listener;
+    private final String failureLogLevel;
+
+    AgentUploadCallable(
+            ReportScanner scanner, UploadParameters parameters, TaskListener listener, String failureLogLevel) {
+        this(scanner, null, parameters, listener, failureLogLevel);
+    }
+
+    AgentUploadCallable(
+            List<ReportFile> reports, UploadParameters parameters, TaskListener listener, String failureLogLevel) {
+        this(null, reports, parameters, listener, failureLogLevel);
+    }
+
+    private AgentUploadCallable(
+            @Nullable ReportScanner scanner,
+            @Nullable List<ReportFile> reports,
+            UploadParameters parameters,
+            TaskListener listener,
+            String failureLogLevel) {
+        this.scanner = scanner;
+        this.reports = reports;
+        this.parameters = parameters;
+        this.listener = listener;
+        this.failureLogLevel = failureLogLevel;
+    }
+
+    @Override
+    public UploadResult invoke(File directory, VirtualChannel virtualChannel)
+            throws IOException, InterruptedException {
+        ReportUploader uploader = new ReportUploader(parameters, listener.getLogger(), failureLogLevel);
+        if (reports != null) {
+            return uploader.upload(new FilePath(directory), reports);
+        }
+        return uploader.uploadWhileScanning(directory, scanner);
+    }
+}
@@ -0,0 +1,88 @@
+package eu.cqse.teamscale.jenkins.upload;
+
+import hudson.model.Run;
+import hudson.scm.ChangeLogSet;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import jenkins.scm.RunWithSCM;
+import org.jspecify.annotations.Nullable;
+
+/**
+ * Determines the modules of a monorepo that were changed by a build, so that only their reports are uploaded.
+ * <p>
+ * A module is a directory at a fixed depth below the workspace, e.g. {@code services/billing} at depth 2. The changed
+ * files are taken from the SCM changelog of the build, with paths relative to the repository root, which is assumed
+ * to be the workspace.
+ */
+final class ChangedModules {
+
+    private ChangedModules() {}
+
+    /**
+     * Returns the modules changed by the given build.
+     *
+     * @return the paths of the modules separated by {@code /}, or {@code null} if all modules must be uploaded:
+     * if the build has no changelog, e.g. because it is the first build of a branch, or if a file outside of the
+     * modules was changed, e.g. a build script that all modules depend on.
+     */
+    @Nullable
+    static Set<String> of(Run<?, ?> run, int depth) {
+        if (!(run instanceof RunWithSCM)) {
+            return null;
+        }
+        List<String> changedPaths = new ArrayList<>();
+        for (ChangeLogSet<? extends ChangeLogSet.Entry> changeSet : ((RunWithSCM<?, ?>) run).getChangeSets()) {
+            for (ChangeLogSet.Entry entry : changeSet) {
+                changedPaths.addAll(entry.getAffectedPaths());
+            }
+        }
+        return of(changedPaths, depth);
+    }
+
+    /**
+     * Returns the modules that contain the given changed files.
+     *
+     * @return the paths of the modules separated by {@code /}, or {@code null} if there are no changed files or a
+     * file outside of the modules was changed.
+     */
+    @Nullable
+    static Set<String> of(Collection<String> changedPaths, int depth) {
+        if (changedPaths.isEmpty()) {
+            return null;
+        }
+        Set<String> modules = new HashSet<>();
+        for (String changedPath : changedPaths) {
+            String module = getModule(changedPath, depth);
+            if (module == null) {
+                return null;
+            }
+            modules.add(module);
+        }
+        return modules;
+    }
+
+    /**
+     * Returns the module of a file.
+     *
+     * @return the first {@code depth} directories of the path separated by {@code /}, or {@code null} if the file
+     * is not that deep below the root.
+     */
+    @Nullable
+    static String getModule(String path, int depth) {
+        String[] segments = path.replace('\\', '/').split("/");
+        List<String> directories = new ArrayList<>();
+        // The last segment is the file itself
+        for (int i = 0; i < segments.length - 1 && directories.size() < depth; i++) {
+            if (!segments[i].isEmpty() && !segments[i].equals(".")) {
+                directories.add(segments[i]);
+            }
+        }
+        if (directories.size() < depth) {
+            return null;
+        }
+        return String.join("/", directories);
+    }
+}
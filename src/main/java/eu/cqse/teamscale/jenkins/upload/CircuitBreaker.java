@@ -0,0 +1,192 @@
+package eu.cqse.teamscale.jenkins.upload;
+
+import java.time.Instant;
+import java.time.ZoneId;
+import java.time.format.DateTimeFormatter;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import org.jspecify.annotations.Nullable;
+
+/**
+ * JVM-wide circuit breaker per Teamscale server, shared by all builds.
+ * <p>
+ * After a configured number of consecutive requests failed without a response or with a server error, the breaker
+ * opens: requests to the server fail immediately instead of waiting for their timeouts, so an outage of Teamscale
+ * does not slow down every build. Once the cool-down has passed, the breaker half-opens and lets a single probe
+ * request through. If it succeeds the breaker closes again, otherwise it opens for another cool-down.
+ */
+public final class CircuitBreaker {
+
+    /** State of a breaker. */
+    public enum State {
+        /** Requests are sent. */
+        CLOSED,
+        /** Requests fail immediately. */
+        OPEN,
+        /** A single probe request is sent, further requests fail immediately. */
+        HALF_OPEN
+    }
+
+    private static final DateTimeFormatter TIME_FORMAT =
+            DateTimeFormatter.ofPattern("HH:mm:ss").withZone(ZoneId.systemDefault());
+
+    private static final Map<String, CircuitBreaker> BREAKERS = new ConcurrentHashMap<>();
+
+    private final String url;
+
+    private State state = State.CLOSED;
+
+    private int consecutiveFailures;
+
+    /** End of the cool-down while the breaker is open. */
+    private long openUntilMillis;
+
+    /** Start of the probe request while the breaker is half-open. */
+    private long probeStartMillis;
+
+    @Nullable
+    private String lastFailure;
+
+    private CircuitBreaker(String url) {
+        this.url = url;
+    }
+
+    /**
+     * Returns the breaker of the Teamscale server of the upload.
+     *
+     * @return the breaker, or {@code null} if circuit breaking is disabled.
+     */
+    @Nullable
+    static CircuitBreaker forServer(UploadParameters parameters) {
+        if (parameters.getCircuitBreakerFailureThreshold() <= 0) {
+            return null;
+        }
+        return BREAKERS.computeIfAbsent(TeamscaleServerSettings.normalize(parameters.getUrl()), CircuitBreaker::new);
+    }
+
+    /** Whether requests to the given Teamscale server currently fail immediately, e.g. to postpone spooled uploads. */
+    static boolean isOpen(String url) {
+        CircuitBreaker breaker = BREAKERS.get(TeamscaleServerSettings.normalize(url));
+        return breaker != null && breaker.rejectsRequests();
+    }
+
+    /** The breakers of all servers that requests were sent to, for the global configuration page. */
+    static List<CircuitBreaker> getAll() {
+        List<CircuitBreaker> breakers = new ArrayList<>(BREAKERS.values());
+        breakers.sort(Comparator.comparing(CircuitBreaker::getUrl));
+        return breakers;
+    }
+
+    /**
+     * Records the requests of an upload that was performed in another JVM, e.g. on an agent, so that this JVM also
+     * knows whether the server is available.
+     */
+    static void recordRemoteUpload(UploadParameters parameters, UploadResult result) {
+        CircuitBreaker breaker = forServer(parameters);
+        if (breaker == null) {
+            return;
+        }
+        for (UploadResult.Request request : result.getRequests()) {
+            breaker.record(request.getResponseCode(), null, parameters);
+        }
+    }
+
+    /**
+     * Decides whether a request may be sent now. Must be followed by {@link #record(UploadResult, UploadParameters)}
+     * if it returns {@code true}.
+     */
+    synchronized boolean allowRequest(UploadParameters parameters) {
+        long now = System.currentTimeMillis();
+        switch (state) {
+            case OPEN:
+                if (now < openUntilMillis) {
+                    return false;
+                }
+                state = State.HALF_OPEN;
+                probeStartMillis = now;
+                return true;
+            case HALF_OPEN:
+                // A probe that never reported back, e.g. because the build was aborted, is replaced
+                if (now < probeStartMillis + parameters.getCircuitBreakerCooldownInMs()) {
+                    return false;
+                }
+                probeStartMillis = now;
+                return true;
+            default:
+                return true;
+        }
+    }
+
+    /** Records the outcome of a request that was allowed by {@link #allowRequest(UploadParameters)}. */
+    void record(UploadResult result, UploadParameters parameters) {
+        record(result.getResponseCode(), result.getSummary(), parameters);
+    }
+
+    private synchronized void record(int responseCode, @Nullable String summary, UploadParameters parameters) {
+        // Client errors such as wrong credentials or an unknown project show that the server itself is available
+        boolean serverFailure = responseCode == UploadResult.NO_RESPONSE || responseCode >= 500;
+        if (!serverFailure) {
+            state = State.CLOSED;
+            consecutiveFailures = 0;
+            return;
+        }
+        consecutiveFailures++;
+        if (summary != null) {
+            lastFailure = summary;
+        } else {
+            lastFailure = responseCode == UploadResult.NO_RESPONSE ? "No response" : "Response code " + responseCode;
+        }
+        if (state == State.HALF_OPEN || consecutiveFailures >= parameters.getCircuitBreakerFailureThreshold()) {
+            state = State.OPEN;
+            openUntilMillis = System.currentTimeMillis() + parameters.getCircuitBreakerCooldownInMs();
+        }
+    }
+
+    /** Whether requests fail immediately, either during the cool-down or while a probe request is pending. */
+    private synchronized boolean rejectsRequests() {
+        return state == State.HALF_OPEN || (state == State.OPEN && System.currentTimeMillis() < openUntilMillis);
+    }
+
+    /** Message of an upload that was rejected because the breaker is open. */
+    synchronized String describeRejection() {
+        if (state == State.HALF_OPEN) {
+            return "Teamscale at " + url + " is unavailable, waiting for the outcome of a probe request";
+        }
+        return "Teamscale at " + url + " is unavailable after " + consecutiveFailures
+                + " consecutive failed requests, no requests are sent until "
+                + TIME_FORMAT.format(Instant.ofEpochMilli(openUntilMillis));
+    }
+
+    public String getUrl() {
+        return url;
+    }
+
+    /** The state, where an open breaker whose cool-down has passed is considered half-open. */
+    public synchronized State getState() {
+        if (state == State.OPEN && System.currentTimeMillis() >= openUntilMillis) {
+            return State.HALF_OPEN;
+        }
+        return state;
+    }
+
+    public synchronized int getConsecutiveFailures() {
+        return consecutiveFailures;
+    }
+
+    /** End of the cool-down if the breaker is open, otherwise {@code null}. */
+    @Nullable
+    public synchronized String getOpenUntil() {
+        if (getState() != State.OPEN) {
+            return null;
+        }
+        return TIME_FORMAT.format(Instant.ofEpochMilli(openUntilMillis));
+    }
+
+    @Nullable
+    public synchronized String getLastFailure() {
+        return lastFailure;
+    }
+}
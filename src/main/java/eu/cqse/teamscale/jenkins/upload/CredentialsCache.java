@@ -0,0 +1,139 @@
+package eu.cqse.teamscale.jenkins.upload;
+
+import com.cloudbees.plugins.credentials.CredentialsParameterValue;
+import com.cloudbees.plugins.credentials.CredentialsProvider;
+import com.cloudbees.plugins.credentials.SystemCredentialsProvider;
+import com.cloudbees.plugins.credentials.common.StandardUsernamePasswordCredentials;
+import com.cloudbees.plugins.credentials.domains.URIRequirementBuilder;
+import hudson.Extension;
+import hudson.XmlFile;
+import hudson.model.ItemGroup;
+import hudson.model.ParametersAction;
+import hudson.model.Queue;
+import hudson.model.Run;
+import hudson.model.Saveable;
+import hudson.model.User;
+import hudson.model.listeners.SaveableListener;
+import hudson.model.queue.Tasks;
+import hudson.security.ACL;
+import java.time.Duration;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import org.jspecify.annotations.Nullable;
+import org.springframework.security.core.Authentication;
+
+/**
+ * Short-lived cache of the credentials used by the uploads of a job, on the controller.
+ * <p>
+ * Looking up credentials can be slow, e.g. with folder-scoped stores or external providers such as Vault, and
+ * frequently running jobs would otherwise look them up for every build. Credentials are cached per credentials ID, job,
+ * Teamscale URL and the authentication the build runs as, since these determine which credentials the lookup finds and
+ * whether the build may use them. Every use of cached credentials is tracked for the build like a lookup would. The
+ * cache is cleared whenever a credentials store may have changed, i.e. when the global store, a folder or a user is
+ * saved. Credentials of external providers that change without such an event are looked up again once their entry
+ * expires.
+ */
+final class CredentialsCache {
+
+    /** How long credentials are used without looking them up again. */
+    static final Duration TIME_TO_LIVE = Duration.ofMinutes(1);
+
+    private static final Map<String, Entry> ENTRIES = new ConcurrentHashMap<>();
+
+    private CredentialsCache() {}
+
+    /**
+     * Looks up the credentials for an upload of the given build, or takes them from the cache.
+     *
+     * @return the credentials, or {@code null} if there are none with the ID.
+     */
+    @Nullable
+    static StandardUsernamePasswordCredentials lookup(String credentialsId, Run<?, ?> run, String url) {
+        if (!isCacheable(credentialsId, run)) {
+            return find(credentialsId, run, url);
+        }
+        long now = System.nanoTime();
+        ENTRIES.values().removeIf(entry -> entry.isExpired(now));
+
+        String key =
+                String.join("\n", credentialsId, run.getParent().getFullName(), url, getAuthenticationName(run));
+        Entry entry = ENTRIES.get(key);
+        if (entry != null) {
+            // The lookup tracks the usage of the credentials for the build, so a cache hit has to do the same
+            return CredentialsProvider.track(run, entry.credentials);
+        }
+        StandardUsernamePasswordCredentials credentials = find(credentialsId, run, url);
+        // Missing credentials are not cached, so that newly added credentials are found right away
+        if (credentials != null) {
+            ENTRIES.put(key, new Entry(credentials, now + TIME_TO_LIVE.toNanos()));
+        }
+        return credentials;
+    }
+
+    static void invalidateAll() {
+        ENTRIES.clear();
+    }
+
+    @Nullable
+    private static StandardUsernamePasswordCredentials find(String credentialsId, Run<?, ?> run, String url) {
+        return CredentialsProvider.findCredentialById(
+                credentialsId,
+                StandardUsernamePasswordCredentials.class,
+                run,
+                URIRequirementBuilder.fromUri(url).build());
+    }
+
+    /**
+     * The name of the authentication the lookup runs as, which determines the credentials the build may use: the
+     * authentication of the job if an authenticator configures one, otherwise the system.
+     */
+    private static String getAuthenticationName(Run<?, ?> run) {
+        Authentication authentication = null;
+        if (run.getParent() instanceof Queue.Task) {
+            authentication = Tasks.getAuthenticationOf2((Queue.Task) run.getParent());
+        }
+        return (authentication != null ? authentication : ACL.SYSTEM2).getName();
+    }
+
+    /**
+     * Credentials that depend on the build itself are always looked up: IDs that refer to build parameters and
+     * credentials that were passed as build parameters.
+     */
+    private static boolean isCacheable(String credentialsId, Run<?, ?> run) {
+        if (credentialsId.contains("${")) {
+            return false;
+        }
+        ParametersAction parameters = run.getAction(ParametersAction.class);
+        return parameters == null
+                || parameters.getParameters().stream().noneMatch(CredentialsParameterValue.class::isInstance);
+    }
+
+    private static final class Entry {
+        private final StandardUsernamePasswordCredentials credentials;
+        private final long expiryTime;
+
+        private Entry(StandardUsernamePasswordCredentials credentials, long expiryTime) {
+            this.credentials = credentials;
+            this.expiryTime = expiryTime;
+        }
+
+        private boolean isExpired(long now) {
+            return now - expiryTime >= 0;
+        }
+    }
+
+    /** Clears the cache when a credentials store may have changed. */
+    @Extension
+    public static class Invalidator extends SaveableListener {
+
+        @Override
+        public void onChange(Saveable saveable, XmlFile file) {
+            // Folders store their credentials in their configuration, users in their user properties
+            if (saveable instanceof SystemCredentialsProvider
+                    || saveable instanceof ItemGroup
+                    || saveable instanceof User) {
+                invalidateAll();
+            }
+        }
+    }
+}
@@ -0,0 +1,73 @@
+package eu.cqse.teamscale.jenkins.upload;
+
+import hudson.FilePath;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.util.List;
+import java.util.Locale;
+import okhttp3.MediaType;
+import okhttp3.RequestBody;
+import okio.BufferedSink;
+import org.jspecify.annotations.Nullable;
+
+/**
+ * Request body that merges several reports of the same format into a single report while the request is written.
+ * The reports are merged by a {@link ReportMerger} in the JVM that holds them, so only the merged report is sent over
+ * the remoting channel.
+ */
+class MergedReportRequestBody extends RequestBody {
+
+    private static final MediaType OCTET_STREAM = MediaType.get("application/octet-stream");
+
+    private final FilePath baseDirectory;
+    private final List<ReportFile> reports;
+    private final String reportFormatId;
+
+    @Nullable
+    private final ReportPreprocessor preprocessor;
+
+    /** Number of bytes written by the last call to {@link #writeTo(BufferedSink)}. */
+    private volatile long bytesWritten;
+
+    MergedReportRequestBody(
+            FilePath baseDirectory,
+            List<ReportFile> reports,
+            String reportFormatId,
+            @Nullable ReportPreprocessor preprocessor) {
+        this.baseDirectory = baseDirectory;
+        this.reports = reports;
+        this.reportFormatId = reportFormatId;
+        this.preprocessor = preprocessor;
+    }
+
+    /** The name of the part, with the extension Teamscale expects for the format. */
+    String getFileName() {
+        return reportFormatId.toUpperCase(Locale.ROOT).equals("LCOV") ? "merged.lcov" : "merged.simple";
+    }
+
+    @Override
+    public MediaType contentType() {
+        return OCTET_STREAM;
+    }
+
+    /** The size of the merged report is not known before it has been written, so the body is sent chunked. */
+    @Override
+    public long contentLength() {
+        return -1;
+    }
+
+    long getBytesWritten() {
+        return bytesWritten;
+    }
+
+    @Override
+    public void writeTo(BufferedSink sink) throws IOException {
+        try {
+            bytesWritten =
+                    ReportMerger.merge(baseDirectory, reports, reportFormatId, preprocessor, sink.outputStream());
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted while merging reports in " + baseDirectory.getRemote());
+        }
+    }
+}
@@ -0,0 +1,71 @@
+package eu.cqse.teamscale.jenkins.upload;
+
+import com.codahale.metrics.Gauge;
+import com.codahale.metrics.MetricRegistry;
+import com.codahale.metrics.MetricSet;
+import hudson.Extension;
+import java.util.Collections;
+import java.util.concurrent.TimeUnit;
+import jenkins.metrics.api.MetricProvider;
+import jenkins.metrics.api.Metrics;
+
+/**
+ * Publishes upload measurements as Dropwizard metrics of the Metrics plugin, which the Prometheus plugin exposes as
+ * well. Only loaded if the Metrics plugin is installed.
+ * <p>
+ * Dropwizard metrics have no labels, so the Teamscale server and project are part of the metric names:
+ * {@code teamscale.upload.<host>.<project>.<metric>}.
+ */
+@Extension(optional = true)
+public class MetricsUploadSink extends MetricProvider implements UploadMetrics.Sink {
+
+    private static final String PREFIX = "teamscale.upload";
+
+    @Override
+    public MetricSet getMetricSet() {
+        return () -> Collections.singletonMap(
+                MetricRegistry.name(PREFIX, "uploads", "in-flight"), (Gauge<Integer>) UploadMetrics::getInFlight);
+    }
+
+    @Override
+    public void recordScan(UploadMetrics.Target target, ReportScanner.Statistics statistics) {
+        MetricRegistry registry = Metrics.metricRegistry();
+        registry.timer(name(target, "scan", "duration"))
+                .update(Math.round(statistics.getScanTimeInMs() * 1000), TimeUnit.MICROSECONDS);
+        registry.histogram(name(target, "scan", "files-visited")).update(statistics.getFilesVisited());
+        registry.histogram(name(target, "scan", "reports-matched")).update(statistics.getReportCount());
+    }
+
+    @Override
+    public void recordRequest(UploadMetrics.Target target, UploadResult.Request request) {
+        MetricRegistry registry = Metrics.metricRegistry();
+        registry.timer(name(target, "request", "latency"))
+                .update(Math.round(request.getTimeInMs() * 1000), TimeUnit.MICROSECONDS);
+        String responseCode = request.getResponseCode() == UploadResult.NO_RESPONSE
+                ? "no-response"
+                : String.valueOf(request.getResponseCode());
+        registry.meter(name(target, "request", "responses", responseCode)).mark();
+    }
+
+    @Override
+    public void recordUpload(UploadMetrics.Target target, UploadResult result) {
+        if (!result.hasReports()) {
+            return;
+        }
+        MetricRegistry registry = Metrics.metricRegistry();
+        registry.counter(name(target, "bytes", "read")).inc(result.getReportBytes());
+        registry.counter(name(target, "bytes", "sent")).inc(result.getBytesSent());
+        registry.meter(name(target, "request", "retries")).mark(result.getRetryCount());
+        registry.meter(name(target, "uploads", result.isSuccessful() ? "successful" : "failed")).mark();
+    }
+
+    private static String name(UploadMetrics.Target target, String... names) {
+        return MetricRegistry.name(
+                MetricRegistry.name(PREFIX, sanitize(target.getHost()), sanitize(target.getProject())), names);
+    }
+
+    /** Keeps the dots of the metric name hierarchy unambiguous. */
+    private static String sanitize(String segment) {
+        return segment.replaceAll("[^A-Za-z0-9_-]", "_");
+    }
+}
@@ -0,0 +1,77 @@
+package eu.cqse.teamscale.jenkins.upload;
+
+import hudson.Extension;
+import hudson.Util;
+import hudson.model.AbstractDescribableImpl;
+import hudson.model.Descriptor;
+import hudson.util.FormValidation;
+import org.jenkinsci.Symbol;
+import org.kohsuke.stapler.DataBoundConstructor;
+import org.kohsuke.stapler.QueryParameter;
+import org.kohsuke.stapler.verb.POST;
+
+/**
+ * Reports that a {@link TeamscaleUploadBuilder} uploads to another partition in addition to its own, e.g. integration
+ * test coverage next to unit test coverage. All partitions of a step share the credentials, a single scan of the
+ * workspace and the connections to Teamscale.
+ */
+public class PartitionUpload extends AbstractDescribableImpl<PartitionUpload> {
+
+    private final String includePattern;
+    private final String reportFormatId;
+    private final String partition;
+
+    @DataBoundConstructor
+    public PartitionUpload(String includePattern, String reportFormatId, String partition) {
+        this.includePattern = Util.fixNull(includePattern).trim();
+        this.reportFormatId = Util.fixNull(reportFormatId).trim();
+        this.partition = Util.fixNull(partition).trim();
+    }
+
+    public String getIncludePattern() {
+        return includePattern;
+    }
+
+    public String getReportFormatId() {
+        return reportFormatId;
+    }
+
+    public String getPartition() {
+        return partition;
+    }
+
+    @Symbol("partitionUpload")
+    @Extension
+    public static class DescriptorImpl extends Descriptor<PartitionUpload> {
+
+        @Override
+        public String getDisplayName() {
+            return "Partition";
+        }
+
+        @POST
+        @SuppressWarnings({"lgtm[jenkins/no-permission-check]", "unused"}) // secure because no side effects
+        public FormValidation doCheckIncludePattern(@QueryParameter String value) {
+            return checkRequired(value);
+        }
+
+        @POST
+        @SuppressWarnings({"lgtm[jenkins/no-permission-check]", "unused"}) // secure because no side effects
+        public FormValidation doCheckReportFormatId(@QueryParameter String value) {
+            return checkRequired(value);
+        }
+
+        @POST
+        @SuppressWarnings({"lgtm[jenkins/no-permission-check]", "unused"}) // secure because no side effects
+        public FormValidation doCheckPartition(@QueryParameter String value) {
+            return checkRequired(value);
+        }
+
+        private static FormValidation checkRequired(String value) {
+            if (Util.fixEmptyAndTrim(value) == null) {
+                return FormValidation.error(Messages.TeamscaleBuilder_DescriptorImpl_errors_requiredField());
+            }
+            return FormValidation.ok();
+        }
+    }
+}
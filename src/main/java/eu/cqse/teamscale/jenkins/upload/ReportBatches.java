@@ -0,0 +1,85 @@
+package eu.cqse.teamscale.jenkins.upload;
+
+import java.util.ArrayList;
+import java.util.List;
+import org.jspecify.annotations.Nullable;
+
+/**
+ * Splits reports into batches that are uploaded in separate requests.
+ */
+final class ReportBatches {
+
+    /** Value of a limit that means no limit. */
+    static final long UNLIMITED = 0;
+
+    private ReportBatches() {}
+
+    /**
+     * Splits the reports into consecutive batches that stay within both limits.
+     * A single report that exceeds the size limit on its own is put into a batch of its own.
+     *
+     * @param reports    to split.
+     * @param maxBytes   maximum total size of the reports in a batch, or {@link #UNLIMITED}.
+     * @param maxReports maximum number of reports in a batch, or {@link #UNLIMITED}.
+     * @return the batches, at least one if there are any reports.
+     */
+    static List<List<ReportFile>> split(List<ReportFile> reports, long maxBytes, long maxReports) {
+        List<List<ReportFile>> batches = new ArrayList<>();
+        Batcher batcher = new Batcher(maxBytes, maxReports);
+        for (ReportFile report : reports) {
+            List<ReportFile> batch = batcher.add(report);
+            if (batch != null) {
+                batches.add(batch);
+            }
+        }
+        List<ReportFile> batch = batcher.finish();
+        if (batch != null) {
+            batches.add(batch);
+        }
+        return batches;
+    }
+
+    /** Splits reports into batches as they arrive one by one, with the same limits as {@link #split}. */
+    static final class Batcher {
+
+        private final long maxBytes;
+        private final long maxReports;
+
+        private List<ReportFile> batch = new ArrayList<>();
+        private long batchBytes;
+
+        Batcher(long maxBytes, long maxReports) {
+            this.maxBytes = maxBytes;
+            this.maxReports = maxReports;
+        }
+
+        /**
+         * Adds the report to the current batch.
+         *
+         * @return the previous batch if it was full and the report starts a new one, otherwise {@code null}.
+         */
+        @Nullable
+        List<ReportFile> add(ReportFile report) {
+            List<ReportFile> fullBatch = null;
+            boolean exceedsBytes = maxBytes != UNLIMITED && batchBytes + report.getSize() > maxBytes;
+            boolean exceedsReports = maxReports != UNLIMITED && batch.size() >= maxReports;
+            if (!batch.isEmpty() && (exceedsBytes || exceedsReports)) {
+                fullBatch = batch;
+                batch = new ArrayList<>();
+                batchBytes = 0;
+            }
+            batch.add(report);
+            batchBytes += report.getSize();
+            return fullBatch;
+        }
+
+        /** Returns the last batch, or {@code null} if it is empty. */
+        @Nullable
+        List<ReportFile> finish() {
+            List<ReportFile> lastBatch = batch.isEmpty() ? null : batch;
+            batch = new ArrayList<>();
+            batchBytes = 0;
+            return lastBatch;
+        }
+    }
+}
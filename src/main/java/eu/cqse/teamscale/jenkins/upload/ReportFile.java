@@ -0,0 +1,45 @@
+package eu.cqse.teamscale.jenkins.upload;
+
+import java.io.Serializable;
+import org.jspecify.annotations.Nullable;
+
+/**
+ * A report found in the workspace. Only the location, size and optionally a content hash are transferred, never the
+ * contents.
+ */
+class ReportFile implements Serializable {
+
+    private static final long serialVersionUID = 1L;
+
+    /** Path relative to the workspace, also used as the file name of the uploaded report. */
+    private final String path;
+
+    private final long size;
+
+    /** Hex-encoded SHA-256 of the contents, only computed if unchanged reports are skipped. */
+    @Nullable
+    private final String hash;
+
+    ReportFile(String path, long size) {
+        this(path, size, null);
+    }
+
+    ReportFile(String path, long size, @Nullable String hash) {
+        this.path = path;
+        this.size = size;
+        this.hash = hash;
+    }
+
+    String getPath() {
+        return path;
+    }
+
+    long getSize() {
+        return size;
+    }
+
+    @Nullable
+    String getHash() {
+        return hash;
+    }
+}
@@ -0,0 +1,265 @@
+package eu.cqse.teamscale.jenkins.upload;
+
+import hudson.FilePath;
+import hudson.remoting.Pipe;
+import hudson.remoting.VirtualChannel;
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+import jenkins.MasterToSlaveFileCallable;
+import org.apache.commons.io.output.CountingOutputStream;
+import org.jspecify.annotations.Nullable;
+
+/**
+ * Merges many reports of the same format into one, so that e.g. the thousands of reports of a sharded test run are
+ * sent as a single part and parsed by Teamscale as a single report.
+ * <p>
+ * Only line coverage is kept: SIMPLE and LCOV reports are merged by the union of their covered lines, which is exact.
+ * Other formats are not merged. JaCoCo reports, for example, only hold the number of covered instructions and branches
+ * per line, not which ones, so the coverage of reports that executed different branches of a line cannot be combined.
+ * The coverage of a file is held as bit sets indexed by line number, so the memory needed depends on the number of
+ * files and lines, not on the number or size of the reports.
+ */
+final class ReportMerger {
+
+    /** Line of a SIMPLE report that holds covered lines instead of a path, e.g. {@code 8} or {@code 8-10}. */
+    private static final Pattern SIMPLE_LINE_RANGE = Pattern.compile("(\\d+)(?:-(\\d+))?");
+
+    private final String reportFormatId;
+
+    @Nullable
+    private final ReportPreprocessor preprocessor;
+
+    /** Coverage per source path, sorted so that the merged report does not depend on the order of the reports. */
+    private final Map<String, FileCoverage> files = new TreeMap<>();
+
+    /**
+     * @param reportFormatId the format of the reports, see {@link #supports(String)}.
+     * @param preprocessor   maps the source paths of the merged report, or {@code null}.
+     */
+    ReportMerger(String reportFormatId, @Nullable ReportPreprocessor preprocessor) {
+        this.reportFormatId = reportFormatId.toUpperCase(Locale.ROOT);
+        this.preprocessor = preprocessor;
+    }
+
+    /** Whether reports of the given format can be merged. */
+    static boolean supports(String reportFormatId) {
+        return Arrays.asList("SIMPLE", "LCOV").contains(reportFormatId.toUpperCase(Locale.ROOT));
+    }
+
+    /**
+     * Merges the given reports and writes the merged report to the given stream without closing it. Remote reports
+     * are merged on the agent that holds them.
+     *
+     * @return the number of bytes written.
+     */
+    static long merge(
+            FilePath baseDirectory,
+            List<ReportFile> reports,
+            String reportFormatId,
+            @Nullable ReportPreprocessor preprocessor,
+            OutputStream out)
+            throws IOException, InterruptedException {
+        if (!baseDirectory.isRemote()) {
+            ReportMerger merger = new ReportMerger(reportFormatId, preprocessor);
+            for (ReportFile report : reports) {
+                try (InputStream in = baseDirectory.child(report.getPath()).read()) {
+                    merger.add(in);
+                }
+            }
+            CountingOutputStream counter = new CountingOutputStream(out);
+            merger.write(counter);
+            return counter.getByteCount();
+        }
+        Pipe pipe = Pipe.createRemoteToLocal();
+        Future<Void> merging = baseDirectory.actAsync(new RemoteMerge(reports, reportFormatId, preprocessor, pipe));
+        long bytesWritten;
+        try (InputStream in = pipe.getIn()) {
+            bytesWritten = in.transferTo(out);
+        }
+        try {
+            merging.get();
+        } catch (ExecutionException e) {
+            throw new IOException("Failed to merge reports in " + baseDirectory.getRemote(), e.getCause());
+        }
+        return bytesWritten;
+    }
+
+    /** Adds the coverage of a report. */
+    void add(InputStream report) throws IOException {
+        try {
+            switch (reportFormatId) {
+                case "SIMPLE":
+                    addSimple(report);
+                    break;
+                case "LCOV":
+                    addLcov(report);
+                    break;
+                default:
+                    throw new IllegalStateException("Reports of format " + reportFormatId + " cannot be merged");
+            }
+        } catch (NumberFormatException e) {
+            throw new IOException("Invalid " + reportFormatId + " report: " + e.getMessage(), e);
+        }
+    }
+
+    private void addSimple(InputStream report) throws IOException {
+        BufferedReader reader = new BufferedReader(new InputStreamReader(report, StandardCharsets.UTF_8));
+        FileCoverage file = null;
+        for (String line = reader.readLine(); line != null; line = reader.readLine()) {
+            String trimmed = line.trim();
+            if (trimmed.isEmpty()) {
+                continue;
+            }
+            Matcher range = SIMPLE_LINE_RANGE.matcher(trimmed);
+            if (!range.matches()) {
+                file = getFile(trimmed);
+            } else if (file != null) {
+                int first = Integer.parseInt(range.group(1));
+                int last = range.group(2) != null ? Integer.parseInt(range.group(2)) : first;
+                file.covered.set(first, last + 1);
+            }
+        }
+    }
+
+    private void addLcov(InputStream report) throws IOException {
+        BufferedReader reader = new BufferedReader(new InputStreamReader(report, StandardCharsets.UTF_8));
+        FileCoverage file = null;
+        for (String line = reader.readLine(); line != null; line = reader.readLine()) {
+            String trimmed = line.trim();
+            if (trimmed.startsWith("SF:")) {
+                file = getFile(trimmed.substring(3));
+            } else if (trimmed.equals("end_of_record")) {
+                file = null;
+            } else if (trimmed.startsWith("DA:") && file != null) {
+                // DA:<line>,<hits>[,<checksum>]
+                String[] fields = trimmed.substring(3).split(",");
+                if (fields.length < 2) {
+                    continue;
+                }
+                int lineNumber = Integer.parseInt(fields[0].trim());
+                file.coverable.set(lineNumber);
+                if (!fields[1].trim().equals("0")) {
+                    file.covered.set(lineNumber);
+                }
+            }
+        }
+    }
+
+    private FileCoverage getFile(String path) {
+        return files.computeIfAbsent(path, ignored -> new FileCoverage());
+    }
+
+    /** Writes the merged report to the given stream without closing it. */
+    void write(OutputStream out) throws IOException {
+        Writer writer = new BufferedWriter(new OutputStreamWriter(out, StandardCharsets.UTF_8));
+        switch (reportFormatId) {
+            case "SIMPLE":
+                writeSimple(writer);
+                break;
+            default:
+                writeLcov(writer);
+                break;
+        }
+        writer.flush();
+    }
+
+    private void writeSimple(Writer writer) throws IOException {
+        for (Map.Entry<String, FileCoverage> file : files.entrySet()) {
+            BitSet covered = file.getValue().covered;
+            if (covered.isEmpty()) {
+                continue;
+            }
+            writer.write(mapPath(file.getKey()));
+            writer.write('\n');
+            for (int first = covered.nextSetBit(0); first >= 0; first = covered.nextSetBit(first)) {
+                int end = covered.nextClearBit(first);
+                writer.write(end - 1 == first ? String.valueOf(first) : first + "-" + (end - 1));
+                writer.write('\n');
+                first = end;
+            }
+        }
+    }
+
+    private void writeLcov(Writer writer) throws IOException {
+        for (Map.Entry<String, FileCoverage> file : files.entrySet()) {
+            BitSet coverable = file.getValue().coverable;
+            BitSet covered = file.getValue().covered;
+            writer.write("SF:" + mapPath(file.getKey()) + "\n");
+            for (int line = coverable.nextSetBit(0); line >= 0; line = coverable.nextSetBit(line + 1)) {
+                writer.write("DA:" + line + "," + (covered.get(line) ? 1 : 0) + "\n");
+            }
+            writer.write("LH:" + covered.cardinality() + "\n");
+            writer.write("LF:" + coverable.cardinality() + "\n");
+            writer.write("end_of_record\n");
+        }
+    }
+
+    private String mapPath(String path) {
+        return preprocessor != null ? preprocessor.mapPath(path) : path;
+    }
+
+    /** Merged line coverage of one source file. */
+    private static final class FileCoverage {
+
+        /** Lines that can be covered, only known for LCOV. */
+        private final BitSet coverable = new BitSet();
+
+        private final BitSet covered = new BitSet();
+    }
+
+    /** Merges reports on the agent and streams the merged report back through a pipe. */
+    private static final class RemoteMerge extends MasterToSlaveFileCallable<Void> {
+
+        private static final long serialVersionUID = 1L;
+
+        private final List<ReportFile> reports;
+        private final String reportFormatId;
+
+        @Nullable
+        private final ReportPreprocessor preprocessor;
+
+        private final Pipe pipe;
+
+        private RemoteMerge(
+                List<ReportFile> reports, String reportFormatId, @Nullable ReportPreprocessor preprocessor, Pipe pipe) {
+            this.reports = reports;
+            this.reportFormatId = reportFormatId;
+            this.preprocessor = preprocessor;
+            this.pipe = pipe;
+        }
+
+        @Override
+        public Void invoke(File directory, VirtualChannel channel) throws IOException {
+            // The pipe is closed even if a report cannot be read, otherwise the controller would wait forever
+            try (OutputStream out = pipe.getOut()) {
+                ReportMerger merger = new ReportMerger(reportFormatId, preprocessor);
+                for (ReportFile report : reports) {
+                    try (InputStream in = Files.newInputStream(new File(directory, report.getPath()).toPath())) {
+                        merger.add(in);
+                    }
+                }
+                merger.write(out);
+            }
+            return null;
+        }
+    }
+}
@@ -0,0 +1,356 @@
+package eu.cqse.teamscale.jenkins.upload;
+
+import hudson.FilePath;
+import hudson.remoting.Pipe;
+import hudson.remoting.VirtualChannel;
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.Serializable;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.regex.Pattern;
+import javax.xml.namespace.QName;
+import javax.xml.stream.XMLEventReader;
+import javax.xml.stream.XMLInputFactory;
+import javax.xml.stream.XMLOutputFactory;
+import javax.xml.stream.XMLStreamException;
+import javax.xml.stream.XMLStreamWriter;
+import javax.xml.stream.events.Attribute;
+import javax.xml.stream.events.Characters;
+import javax.xml.stream.events.DTD;
+import javax.xml.stream.events.EntityReference;
+import javax.xml.stream.events.Namespace;
+import javax.xml.stream.events.ProcessingInstruction;
+import javax.xml.stream.events.StartDocument;
+import javax.xml.stream.events.StartElement;
+import javax.xml.stream.events.XMLEvent;
+import jenkins.MasterToSlaveFileCallable;
+import org.apache.commons.io.output.CountingOutputStream;
+import org.jspecify.annotations.Nullable;
+
+/**
+ * Shrinks reports while they are streamed into the upload request: whitespace, comments and content that Teamscale
+ * ignores are dropped, and the source paths in the reports are remapped with configured prefixes.
+ * <p>
+ * XML reports are processed with StAX and line-based reports line by line, so a report is never held in memory as a
+ * whole. Reports in formats without known structure are sent unchanged. Reading a remote report processes it on the
+ * agent that holds it, so only the smaller result is transferred to the controller.
+ */
+final class ReportPreprocessor implements Serializable {
+
+    private static final long serialVersionUID = 1L;
+
+    /** Report formats that are processed as XML. */
+    private static final Set<String> XML_FORMATS =
+            new HashSet<>(Arrays.asList("JACOCO", "COBERTURA", "CLOVER", "OPEN_COVER", "JUNIT"));
+
+    /** XML elements that Teamscale ignores, per report format. */
+    private static final Map<String, Set<String>> DROPPED_ELEMENTS = new HashMap<>();
+
+    /** XML attributes that hold source paths, as {@code element@attribute}, per report format. */
+    private static final Map<String, Set<String>> PATH_ATTRIBUTES = new HashMap<>();
+
+    /** XML elements whose text is a source path, per report format. */
+    private static final Map<String, Set<String>> PATH_ELEMENTS = new HashMap<>();
+
+    static {
+        DROPPED_ELEMENTS.put("JACOCO", Collections.singleton("sessioninfo"));
+        PATH_ATTRIBUTES.put("JACOCO", new HashSet<>(Arrays.asList("package@name", "class@name")));
+        PATH_ATTRIBUTES.put("COBERTURA", Collections.singleton("class@filename"));
+        PATH_ELEMENTS.put("COBERTURA", Collections.singleton("source"));
+        PATH_ATTRIBUTES.put("CLOVER", Collections.singleton("file@path"));
+        PATH_ATTRIBUTES.put("OPEN_COVER", Collections.singleton("File@fullPath"));
+    }
+
+    /** Line of a SIMPLE report that holds covered lines instead of a path, e.g. {@code 8} or {@code 8-10}. */
+    private static final Pattern SIMPLE_LINE_RANGE = Pattern.compile("\\d+(-\\d+)?");
+
+    private static final XMLInputFactory XML_INPUT = createInputFactory();
+    private static final XMLOutputFactory XML_OUTPUT = XMLOutputFactory.newFactory();
+
+    private final String reportFormatId;
+
+    /** Replaced path prefixes, the first matching prefix applies. */
+    private final List<PathMapping> pathMappings;
+
+    /**
+     * @param reportFormatId the format of the reports.
+     * @param pathMappings   one mapping per line, {@code prefix=replacement} or just {@code prefix} to drop it.
+     */
+    ReportPreprocessor(String reportFormatId, @Nullable String pathMappings) {
+        this.reportFormatId = reportFormatId.toUpperCase(Locale.ROOT);
+        this.pathMappings = parsePathMappings(pathMappings);
+    }
+
+    private static List<PathMapping> parsePathMappings(@Nullable String pathMappings) {
+        List<PathMapping> mappings = new ArrayList<>();
+        if (pathMappings == null) {
+            return mappings;
+        }
+        for (String line : pathMappings.split("\\R")) {
+            String mapping = line.trim();
+            if (mapping.isEmpty()) {
+                continue;
+            }
+            int separator = mapping.indexOf('=');
+            if (separator < 0) {
+                mappings.add(new PathMapping(mapping, ""));
+            } else {
+                mappings.add(new PathMapping(
+                        mapping.substring(0, separator).trim(), mapping.substring(separator + 1).trim()));
+            }
+        }
+        return mappings;
+    }
+
+    private static XMLInputFactory createInputFactory() {
+        XMLInputFactory factory = XMLInputFactory.newFactory();
+        // Reports must not make the agent resolve DTDs or entities, e.g. the DTD referenced by JaCoCo reports
+        factory.setProperty(XMLInputFactory.SUPPORT_DTD, false);
+        factory.setProperty(XMLInputFactory.IS_SUPPORTING_EXTERNAL_ENTITIES, false);
+        factory.setProperty(XMLInputFactory.IS_COALESCING, true);
+        return factory;
+    }
+
+    /**
+     * Writes the processed report to the given stream without closing it. A remote report is processed on the agent
+     * that holds it.
+     *
+     * @return the number of bytes written.
+     */
+    long process(FilePath report, OutputStream out) throws IOException, InterruptedException {
+        if (!report.isRemote()) {
+            CountingOutputStream counter = new CountingOutputStream(out);
+            try (InputStream in = report.read()) {
+                process(in, counter);
+            }
+            return counter.getByteCount();
+        }
+        Pipe pipe = Pipe.createRemoteToLocal();
+        Future<Void> processing = report.actAsync(new RemoteProcessing(this, pipe));
+        long bytesWritten;
+        try (InputStream in = pipe.getIn()) {
+            bytesWritten = in.transferTo(out);
+        }
+        try {
+            processing.get();
+        } catch (ExecutionException e) {
+            throw new IOException("Failed to process " + report.getRemote(), e.getCause());
+        }
+        return bytesWritten;
+    }
+
+    /** Writes the processed report to the given stream without closing either stream. */
+    void process(InputStream in, OutputStream out) throws IOException {
+        if (reportFormatId.equals("LCOV") || reportFormatId.equals("SIMPLE")) {
+            processLines(in, out);
+        } else if (XML_FORMATS.contains(reportFormatId)) {
+            try {
+                processXml(in, out);
+            } catch (XMLStreamException e) {
+                throw new IOException("Invalid " + reportFormatId + " report: " + e.getMessage(), e);
+            }
+        } else {
+            in.transferTo(out);
+        }
+    }
+
+    private void processLines(InputStream in, OutputStream out) throws IOException {
+        BufferedReader reader = new BufferedReader(new InputStreamReader(in, StandardCharsets.UTF_8));
+        Writer writer = new BufferedWriter(new OutputStreamWriter(out, StandardCharsets.UTF_8));
+        for (String line = reader.readLine(); line != null; line = reader.readLine()) {
+            String trimmed = line.trim();
+            if (trimmed.isEmpty()) {
+                continue;
+            }
+            if (reportFormatId.equals("LCOV") && trimmed.startsWith("SF:")) {
+                trimmed = "SF:" + mapPath(trimmed.substring(3));
+            } else if (reportFormatId.equals("SIMPLE") && !SIMPLE_LINE_RANGE.matcher(trimmed).matches()) {
+                trimmed = mapPath(trimmed);
+            }
+            writer.write(trimmed);
+            writer.write('\n');
+        }
+        writer.flush();
+    }
+
+    private void processXml(InputStream in, OutputStream out) throws XMLStreamException {
+        Set<String> droppedElements = DROPPED_ELEMENTS.getOrDefault(reportFormatId, Collections.emptySet());
+        Set<String> pathAttributes = PATH_ATTRIBUTES.getOrDefault(reportFormatId, Collections.emptySet());
+        Set<String> pathElements = PATH_ELEMENTS.getOrDefault(reportFormatId, Collections.emptySet());
+
+        XMLEventReader reader = XML_INPUT.createXMLEventReader(in);
+        XMLStreamWriter writer = XML_OUTPUT.createXMLStreamWriter(out, StandardCharsets.UTF_8.name());
+        // Depth below a dropped element, 0 outside of dropped elements
+        int droppedDepth = 0;
+        boolean inPathElement = false;
+        while (reader.hasNext()) {
+            XMLEvent event = reader.nextEvent();
+            if (droppedDepth > 0) {
+                if (event.isStartElement()) {
+                    droppedDepth++;
+                } else if (event.isEndElement()) {
+                    droppedDepth--;
+                }
+                continue;
+            }
+            switch (event.getEventType()) {
+                case XMLEvent.START_DOCUMENT:
+                    // The output is always UTF-8, whatever the encoding of the report
+                    writer.writeStartDocument(StandardCharsets.UTF_8.name(), ((StartDocument) event).getVersion());
+                    break;
+                case XMLEvent.DTD:
+                    writer.writeDTD(((DTD) event).getDocumentTypeDeclaration());
+                    break;
+                case XMLEvent.START_ELEMENT:
+                    StartElement start = event.asStartElement();
+                    String name = start.getName().getLocalPart();
+                    if (droppedElements.contains(name)) {
+                        droppedDepth = 1;
+                        continue;
+                    }
+                    inPathElement = pathElements.contains(name);
+                    // Elements without content are written as empty elements, which is shorter
+                    XMLEvent next = reader.peek();
+                    boolean empty = next != null && next.isEndElement();
+                    writeStartElement(writer, start, name, pathAttributes, empty);
+                    if (empty) {
+                        reader.nextEvent();
+                        inPathElement = false;
+                    }
+                    break;
+                case XMLEvent.END_ELEMENT:
+                    inPathElement = false;
+                    writer.writeEndElement();
+                    break;
+                case XMLEvent.CHARACTERS:
+                case XMLEvent.SPACE:
+                case XMLEvent.CDATA:
+                    Characters characters = event.asCharacters();
+                    String data = characters.getData();
+                    if (characters.isWhiteSpace() || data.trim().isEmpty()) {
+                        continue;
+                    }
+                    if (inPathElement) {
+                        writer.writeCharacters(mapPath(data.trim()));
+                    } else if (characters.isCData()) {
+                        writer.writeCData(data);
+                    } else {
+                        writer.writeCharacters(data);
+                    }
+                    break;
+                case XMLEvent.PROCESSING_INSTRUCTION:
+                    ProcessingInstruction instruction = (ProcessingInstruction) event;
+                    writer.writeProcessingInstruction(instruction.getTarget(), instruction.getData());
+                    break;
+                case XMLEvent.ENTITY_REFERENCE:
+                    writer.writeEntityRef(((EntityReference) event).getName());
+                    break;
+                case XMLEvent.END_DOCUMENT:
+                    writer.writeEndDocument();
+                    break;
+                default:
+                    // Comments and other content that Teamscale ignores
+                    break;
+            }
+        }
+        writer.flush();
+        writer.close();
+        reader.close();
+    }
+
+    private void writeStartElement(
+            XMLStreamWriter writer, StartElement start, String name, Set<String> pathAttributes, boolean empty)
+            throws XMLStreamException {
+        QName elementName = start.getName();
+        if (empty) {
+            writer.writeEmptyElement(elementName.getPrefix(), name, elementName.getNamespaceURI());
+        } else {
+            writer.writeStartElement(elementName.getPrefix(), name, elementName.getNamespaceURI());
+        }
+        for (Iterator<Namespace> iterator = start.getNamespaces(); iterator.hasNext(); ) {
+            Namespace namespace = iterator.next();
+            if (namespace.isDefaultNamespaceDeclaration()) {
+                writer.writeDefaultNamespace(namespace.getNamespaceURI());
+            } else {
+                writer.writeNamespace(namespace.getPrefix(), namespace.getNamespaceURI());
+            }
+        }
+        for (Iterator<Attribute> iterator = start.getAttributes(); iterator.hasNext(); ) {
+            Attribute attribute = iterator.next();
+            QName attributeName = attribute.getName();
+            String value = attribute.getValue();
+            if (pathAttributes.contains(name + "@" + attributeName.getLocalPart())) {
+                value = mapPath(value);
+            }
+            writer.writeAttribute(
+                    attributeName.getPrefix(), attributeName.getNamespaceURI(), attributeName.getLocalPart(), value);
+        }
+    }
+
+    /** Replaces the first configured prefix that the path starts with. */
+    String mapPath(String path) {
+        for (PathMapping mapping : pathMappings) {
+            if (path.startsWith(mapping.prefix)) {
+                return mapping.replacement + path.substring(mapping.prefix.length());
+            }
+        }
+        return path;
+    }
+
+    private static final class PathMapping implements Serializable {
+
+        private static final long serialVersionUID = 1L;
+
+        private final String prefix;
+        private final String replacement;
+
+        private PathMapping(String prefix, String replacement) {
+            this.prefix = prefix;
+            this.replacement = replacement;
+        }
+    }
+
+    /** Processes a report on the agent and streams the result back through a pipe. */
+    private static final class RemoteProcessing extends MasterToSlaveFileCallable<Void> {
+
+        private static final long serialVersionUID = 1L;
+
+        private final ReportPreprocessor preprocessor;
+        private final Pipe pipe;
+
+        private RemoteProcessing(ReportPreprocessor preprocessor, Pipe pipe) {
+            this.preprocessor = preprocessor;
+            this.pipe = pipe;
+        }
+
+        @Override
+        public Void invoke(File file, VirtualChannel channel) throws IOException {
+            // The pipe is closed even if the report cannot be opened, otherwise the controller would wait forever
+            try (OutputStream out = pipe.getOut();
+                    InputStream in = Files.newInputStream(file.toPath())) {
+                preprocessor.process(in, out);
+            }
+            return null;
+        }
+    }
+}
@@ -0,0 +1,71 @@
+package eu.cqse.teamscale.jenkins.upload;
+
+import hudson.FilePath;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import okhttp3.MediaType;
+import okhttp3.RequestBody;
+import okio.BufferedSink;
+import okio.Okio;
+import okio.Source;
+import org.jspecify.annotations.Nullable;
+
+/**
+ * Request body that streams a report from disk while the request is written.
+ * The report is never held in memory as a whole. Its bytes are sent unchanged unless a {@link ReportPreprocessor}
+ * processes them.
+ * Reading from a remote {@link FilePath} streams the file over the remoting channel.
+ */
+class ReportRequestBody extends RequestBody {
+
+    private static final MediaType OCTET_STREAM = MediaType.get("application/octet-stream");
+
+    private final FilePath file;
+
+    @Nullable
+    private final ReportPreprocessor preprocessor;
+
+    /** Number of bytes written by the last call to {@link #writeTo(BufferedSink)}. */
+    private volatile long bytesWritten;
+
+    ReportRequestBody(FilePath file, @Nullable ReportPreprocessor preprocessor) {
+        this.file = file;
+        this.preprocessor = preprocessor;
+    }
+
+    @Override
+    public MediaType contentType() {
+        return OCTET_STREAM;
+    }
+
+    /**
+     * The body is sent chunked: the size of a processed report is not known before it has been written, and a report
+     * may still grow or be rewritten between the scan and a retried request, which would not match a declared length.
+     */
+    @Override
+    public long contentLength() {
+        return -1;
+    }
+
+    long getBytesWritten() {
+        return bytesWritten;
+    }
+
+    @Override
+    public void writeTo(BufferedSink sink) throws IOException {
+        try {
+            if (preprocessor != null) {
+                bytesWritten = preprocessor.process(file, sink.outputStream());
+                return;
+            }
+            try (InputStream inputStream = file.read();
+                    Source source = Okio.source(inputStream)) {
+                bytesWritten = sink.writeAll(source);
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted while reading " + file.getRemote());
+        }
+    }
+}
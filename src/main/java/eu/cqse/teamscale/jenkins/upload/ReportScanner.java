@@ -0,0 +1,592 @@
+package eu.cqse.teamscale.jenkins.upload;
+
+import hudson.Functions;
+import hudson.Util;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.PrintStream;
+import java.io.Serializable;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.LinkOption;
+import java.nio.file.Path;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Objects;
+import java.util.Queue;
+import java.util.Set;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveTask;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.regex.Pattern;
+import java.util.stream.Collectors;
+import org.apache.tools.ant.DirectoryScanner;
+import org.apache.tools.ant.types.selectors.SelectorUtils;
+import org.apache.tools.ant.types.selectors.TokenizedPath;
+import org.apache.tools.ant.types.selectors.TokenizedPattern;
+import org.jspecify.annotations.Nullable;
+
+/**
+ * Finds the reports matching Ant-style include and exclude patterns. Runs in the JVM that holds the workspace.
+ * <p>
+ * Unlike Ant's {@link DirectoryScanner}, directories are scanned in parallel on a fork-join pool with one thread per
+ * core, and directories are not entered at all if no include pattern can match anything below them or if an exclude
+ * pattern excludes all of their contents. As with a {@link DirectoryScanner} that is not told to add them, Ant's
+ * default excludes, e.g. for {@code .git} directories, do not apply.
+ * <p>
+ * The scan can be limited to the {@linkplain ChangedModules modules changed by a build}. The directories of other
+ * modules are not entered, while reports above the module level are always found.
+ * <p>
+ * Size limits are checked against the file sizes reported by the file system, before any report is read. Since
+ * directories are scanned in parallel, which reports exceed the total size limit depends on the order in which
+ * they are found.
+ */
+class ReportScanner implements Serializable {
+
+    private static final long serialVersionUID = 1L;
+
+    private final String[] includes;
+    private final String[] excludes;
+
+    /** Whether a SHA-256 hash of each report is computed, which reads each report once. */
+    private final boolean computeHashes;
+
+    /** Reports larger than this are excluded, {@link #UNLIMITED} means no limit. */
+    private final long maxReportBytes;
+
+    /** Reports are excluded once their total size would exceed this, {@link #UNLIMITED} means no limit. */
+    private final long maxTotalBytes;
+
+    /** Whether the scan is aborted with a {@link SizeLimitExceededException} instead of excluding reports. */
+    private final boolean failOnSizeLimit;
+
+    /** Paths of the modules the scan is limited to, separated by {@code /}, or {@code null} for all modules. */
+    @Nullable
+    private final HashSet<String> modules;
+
+    /** Depth of the modules below the scanned directory. */
+    private final int moduleDepth;
+
+    /** Value of a size limit that means no limit. */
+    static final long UNLIMITED = 0;
+
+    /** Number of excluded reports that are listed individually in the build log. */
+    private static final int MAX_LISTED_EXCLUSIONS = 20;
+
+    /**
+     * Creates a scanner without size limits.
+     *
+     * @param includes      Ant-style patterns, relative to the scanned directory.
+     * @param excludes      Ant-style patterns of files that are not reported although they are included.
+     * @param computeHashes whether a content hash is computed for each report.
+     */
+    ReportScanner(String[] includes, String[] excludes, boolean computeHashes) {
+        this(includes, excludes, computeHashes, UNLIMITED, UNLIMITED, false);
+    }
+
+    /**
+     * @param includes        Ant-style patterns, relative to the scanned directory.
+     * @param excludes        Ant-style patterns of files that are not reported although they are included.
+     * @param computeHashes   whether a content hash is computed for each report.
+     * @param maxReportBytes  size limit per report, or {@link #UNLIMITED}.
+     * @param maxTotalBytes   size limit of all reports together, or {@link #UNLIMITED}.
+     * @param failOnSizeLimit whether exceeding a limit aborts the scan instead of excluding the report.
+     */
+    ReportScanner(
+            String[] includes,
+            String[] excludes,
+            boolean computeHashes,
+            long maxReportBytes,
+            long maxTotalBytes,
+            boolean failOnSizeLimit) {
+        this(includes, excludes, computeHashes, maxReportBytes, maxTotalBytes, failOnSizeLimit, null, 0);
+    }
+
+    private ReportScanner(
+            String[] includes,
+            String[] excludes,
+            boolean computeHashes,
+            long maxReportBytes,
+            long maxTotalBytes,
+            boolean failOnSizeLimit,
+            @Nullable HashSet<String> modules,
+            int moduleDepth) {
+        this.includes = includes;
+        this.excludes = excludes;
+        this.computeHashes = computeHashes;
+        this.maxReportBytes = maxReportBytes;
+        this.maxTotalBytes = maxTotalBytes;
+        this.failOnSizeLimit = failOnSizeLimit;
+        this.modules = modules;
+        this.moduleDepth = moduleDepth;
+    }
+
+    /** Splits a comma-separated list of patterns, ignoring surrounding whitespace and empty patterns. */
+    static String[] splitPatterns(String patterns) {
+        if (patterns == null) {
+            return new String[0];
+        }
+        return Arrays.stream(patterns.split(","))
+                .map(String::trim)
+                .filter(pattern -> !pattern.isEmpty())
+                .toArray(String[]::new);
+    }
+
+    /** Returns a copy of this scanner that also computes content hashes. */
+    ReportScanner withHashes() {
+        return new ReportScanner(
+                includes, excludes, true, maxReportBytes, maxTotalBytes, failOnSizeLimit, modules, moduleDepth);
+    }
+
+    /** Returns a copy of this scanner with other include patterns, e.g. those of several uploads together. */
+    ReportScanner withIncludes(String[] includes) {
+        return new ReportScanner(
+                includes,
+                excludes,
+                computeHashes,
+                maxReportBytes,
+                maxTotalBytes,
+                failOnSizeLimit,
+                modules,
+                moduleDepth);
+    }
+
+    /**
+     * Returns a copy of this scanner that only enters the given modules.
+     *
+     * @param modules paths of the modules separated by {@code /}, see {@link ChangedModules}.
+     * @param depth   depth of the modules below the scanned directory.
+     */
+    ReportScanner withModules(Set<String> modules, int depth) {
+        return new ReportScanner(
+                includes,
+                excludes,
+                computeHashes,
+                maxReportBytes,
+                maxTotalBytes,
+                failOnSizeLimit,
+                new HashSet<>(modules),
+                depth);
+    }
+
+    /**
+     * Selects the reports matching the include patterns of this scanner from the result of a scan with more include
+     * patterns and the same exclude patterns, so that the reports of several uploads are found with a single scan.
+     * The statistics and exclusions of the scan are kept as they are.
+     */
+    Result select(Result scan) {
+        List<TokenizedPattern> includePatterns = tokenize(Arrays.asList(includes));
+        List<ReportFile> reports = scan.reports.stream()
+                .filter(report -> {
+                    TokenizedPath path = new TokenizedPath(report.getPath());
+                    return includePatterns.stream().anyMatch(pattern -> pattern.matchPath(path, true));
+                })
+                .collect(Collectors.toList());
+        return new Result(
+                reports,
+                scan.exclusions,
+                scan.filesVisited,
+                scan.directoriesVisited,
+                scan.directoriesPruned,
+                scan.scanTimeInMs);
+    }
+
+    /**
+     * Selects the reports of one module from the result of a scan, like {@link #select(Result)}.
+     *
+     * @param module path of the module separated by {@code /}, or {@code null} for the reports above the module level.
+     * @param depth  depth of the modules below the scanned directory.
+     */
+    static Result selectModule(Result scan, @Nullable String module, int depth) {
+        List<ReportFile> reports = scan.reports.stream()
+                .filter(report -> Objects.equals(ChangedModules.getModule(report.getPath(), depth), module))
+                .collect(Collectors.toList());
+        return new Result(
+                reports,
+                scan.exclusions,
+                scan.filesVisited,
+                scan.directoriesVisited,
+                scan.directoriesPruned,
+                scan.scanTimeInMs);
+    }
+
+    /**
+     * Scans the given directory.
+     *
+     * @param directory the workspace to scan, the paths of the reports are relative to it.
+     * @return the reports sorted by path, with statistics of the scan.
+     */
+    Result scan(File directory) throws IOException, InterruptedException {
+        return scan(directory, report -> {});
+    }
+
+    /**
+     * Scans the given directory and passes each report to the given listener as soon as it is found, so the reports
+     * can be processed while the scan is still running.
+     *
+     * @param directory the workspace to scan, the paths of the reports are relative to it.
+     * @param listener  called concurrently from several scanning threads, in no particular order. May block to slow
+     *                  down the scan.
+     * @return the reports sorted by path, with statistics of the scan.
+     */
+    Result scan(File directory, ReportListener listener) throws IOException, InterruptedException {
+        long startTime = System.nanoTime();
+        Scan scan = new Scan(tokenize(Arrays.asList(includes)), tokenize(Arrays.asList(excludes)), listener);
+
+        ForkJoinPool pool = new ForkJoinPool(Runtime.getRuntime().availableProcessors());
+        List<ReportFile> reports;
+        try {
+            reports = pool.submit(scan.new DirectoryTask(directory.toPath(), TokenizedPath.EMPTY_PATH)).get();
+        } catch (ExecutionException e) {
+            Throwable cause = e.getCause();
+            if (cause instanceof CancellationException) {
+                throw new InterruptedException("Scan of " + directory + " was interrupted");
+            }
+            if (cause instanceof UncheckedScanException) {
+                throw ((UncheckedScanException) cause).getCause();
+            }
+            throw new IOException("Failed to scan " + directory, cause);
+        } finally {
+            pool.shutdownNow();
+        }
+        reports.sort(Comparator.comparing(ReportFile::getPath));
+        List<String> exclusions = new ArrayList<>(scan.exclusions);
+        exclusions.sort(null);
+        return new Result(
+                reports,
+                exclusions,
+                scan.filesVisited.get(),
+                scan.directoriesVisited.get(),
+                scan.directoriesPruned.get(),
+                (System.nanoTime() - startTime) / 1e6d);
+    }
+
+    private static List<TokenizedPattern> tokenize(List<String> patterns) {
+        return patterns.stream()
+                .map(ReportScanner::normalizePattern)
+                .map(TokenizedPattern::new)
+                .collect(Collectors.toList());
+    }
+
+    /** Same normalization as {@link DirectoryScanner}: native separators and a trailing separator means {@code **}. */
+    private static String normalizePattern(String pattern) {
+        String normalized = pattern.replace('/', File.separatorChar).replace('\\', File.separatorChar);
+        if (normalized.endsWith(File.separator)) {
+            normalized += "**";
+        }
+        return normalized;
+    }
+
+    /** Returns the SHA-256 hash of the contents of the file as a hex string. */
+    static String hash(Path file) throws IOException {
+        MessageDigest digest;
+        try {
+            digest = MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException e) {
+            // Every Java platform is required to support SHA-256
+            throw new IllegalStateException(e);
+        }
+        byte[] buffer = new byte[64 * 1024];
+        try (InputStream in = Files.newInputStream(file)) {
+            for (int read = in.read(buffer); read != -1; read = in.read(buffer)) {
+                digest.update(buffer, 0, read);
+            }
+        }
+        return Util.toHexString(digest.digest());
+    }
+
+    /** State of a single scan, shared by all tasks of the scan. */
+    private final class Scan {
+
+        private final ReportListener listener;
+
+        private final List<TokenizedPattern> includePatterns;
+        private final List<TokenizedPattern> excludePatterns;
+
+        /** Exclude patterns ending in {@code **} without that token, they match directories with excluded contents. */
+        private final List<TokenizedPattern> excludedDirectoryPatterns;
+
+        private final AtomicLong filesVisited = new AtomicLong();
+        private final AtomicLong directoriesVisited = new AtomicLong();
+        private final AtomicLong directoriesPruned = new AtomicLong();
+
+        /** Total size of the reports found so far. */
+        private final AtomicLong totalBytes = new AtomicLong();
+
+        /** Descriptions of the reports excluded because of the size limits. */
+        private final Queue<String> exclusions = new ConcurrentLinkedQueue<>();
+
+        private Scan(
+                List<TokenizedPattern> includePatterns,
+                List<TokenizedPattern> excludePatterns,
+                ReportListener listener) {
+            this.listener = listener;
+            this.includePatterns = includePatterns;
+            this.excludePatterns = excludePatterns;
+            this.excludedDirectoryPatterns = excludePatterns.stream()
+                    .filter(pattern -> pattern.endsWith(SelectorUtils.DEEP_TREE_MATCH))
+                    .map(TokenizedPattern::withoutLastToken)
+                    .collect(Collectors.toList());
+        }
+
+        private boolean isIncluded(TokenizedPath path) {
+            return includePatterns.stream().anyMatch(pattern -> pattern.matchPath(path, true))
+                    && excludePatterns.stream().noneMatch(pattern -> pattern.matchPath(path, true));
+        }
+
+        /** Whether anything below the directory may be included. */
+        private boolean mayContainReports(TokenizedPath directory) {
+            return includePatterns.stream().anyMatch(pattern -> pattern.matchStartOf(directory, true))
+                    && excludedDirectoryPatterns.stream().noneMatch(pattern -> pattern.matchPath(directory, true))
+                    && isInModules(directory);
+        }
+
+        /** Whether the directory is above the module level or belongs to one of the modules the scan is limited to. */
+        private boolean isInModules(TokenizedPath directory) {
+            if (modules == null || directory.depth() < moduleDepth) {
+                return true;
+            }
+            String[] segments = directory.toString().split(Pattern.quote(File.separator));
+            return modules.contains(String.join("/", Arrays.copyOf(segments, moduleDepth)));
+        }
+
+        /**
+         * Checks the size limits for a report and counts its size towards the total if it is within them.
+         *
+         * @return why the report exceeds the limits, or {@code null} if it is within them.
+         */
+        @Nullable
+        private String checkSizeLimits(long size) {
+            if (maxReportBytes != UNLIMITED && size > maxReportBytes) {
+                return "larger than " + Functions.humanReadableByteSize(maxReportBytes) + " per report";
+            }
+            long total;
+            do {
+                total = totalBytes.get();
+                if (maxTotalBytes != UNLIMITED && total + size > maxTotalBytes) {
+                    return "total size of all reports exceeds " + Functions.humanReadableByteSize(maxTotalBytes);
+                }
+            } while (!totalBytes.compareAndSet(total, total + size));
+            return null;
+        }
+
+        /** Lists a single directory and forks a task for each subdirectory that may contain reports. */
+        private final class DirectoryTask extends RecursiveTask<List<ReportFile>> {
+
+            private final Path directory;
+            private final TokenizedPath relativePath;
+
+            private DirectoryTask(Path directory, TokenizedPath relativePath) {
+                this.directory = directory;
+                this.relativePath = relativePath;
+            }
+
+            @Override
+            protected List<ReportFile> compute() {
+                directoriesVisited.incrementAndGet();
+                List<ReportFile> reports = new ArrayList<>();
+                List<DirectoryTask> subtasks = new ArrayList<>();
+                try (DirectoryStream<Path> entries = Files.newDirectoryStream(directory)) {
+                    for (Path entry : entries) {
+                        TokenizedPath entryPath = new TokenizedPath(relativePath, entry.getFileName().toString());
+                        BasicFileAttributes attributes =
+                                Files.readAttributes(entry, BasicFileAttributes.class, LinkOption.NOFOLLOW_LINKS);
+                        if (attributes.isSymbolicLink() && Files.isDirectory(entry)) {
+                            // Like Ant, follow links to directories, but not into one of their own ancestors
+                            if (directory.toRealPath().startsWith(entry.toRealPath())) {
+                                continue;
+                            }
+                        } else if (!attributes.isDirectory()) {
+                            filesVisited.incrementAndGet();
+                            if (isIncluded(entryPath)) {
+                                long size = attributes.isSymbolicLink() ? Files.size(entry) : attributes.size();
+                                String exceededLimit = checkSizeLimits(size);
+                                if (exceededLimit != null) {
+                                    String exclusion = entryPath + " (" + Functions.humanReadableByteSize(size)
+                                            + ", " + exceededLimit + ")";
+                                    if (failOnSizeLimit) {
+                                        throw new SizeLimitExceededException("Report " + exclusion);
+                                    }
+                                    exclusions.add(exclusion);
+                                    continue;
+                                }
+                                ReportFile report =
+                                        new ReportFile(entryPath.toString(), size, computeHashes ? hash(entry) : null);
+                                listener.reportFound(report);
+                                reports.add(report);
+                            }
+                            continue;
+                        }
+                        if (mayContainReports(entryPath)) {
+                            subtasks.add(new DirectoryTask(entry, entryPath));
+                        } else {
+                            directoriesPruned.incrementAndGet();
+                        }
+                    }
+                } catch (IOException e) {
+                    throw new UncheckedScanException(e);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    throw new CancellationException();
+                }
+                invokeAll(subtasks);
+                for (DirectoryTask subtask : subtasks) {
+                    reports.addAll(subtask.join());
+                }
+                return reports;
+            }
+        }
+    }
+
+    /** Receives reports while the scan is running. */
+    interface ReportListener {
+
+        void reportFound(ReportFile report) throws InterruptedException;
+    }
+
+    /** Statistics of a scan without the reports themselves, for {@link UploadMetrics}. */
+    static final class Statistics implements Serializable {
+
+        private static final long serialVersionUID = 1L;
+
+        private final double scanTimeInMs;
+        private final long filesVisited;
+        private final int reportCount;
+        private final long reportBytes;
+
+        private Statistics(double scanTimeInMs, long filesVisited, int reportCount, long reportBytes) {
+            this.scanTimeInMs = scanTimeInMs;
+            this.filesVisited = filesVisited;
+            this.reportCount = reportCount;
+            this.reportBytes = reportBytes;
+        }
+
+        double getScanTimeInMs() {
+            return scanTimeInMs;
+        }
+
+        long getFilesVisited() {
+            return filesVisited;
+        }
+
+        int getReportCount() {
+            return reportCount;
+        }
+
+        long getReportBytes() {
+            return reportBytes;
+        }
+    }
+
+    /** Thrown if a report exceeds the size limits and the scanner is configured to fail in that case. */
+    static final class SizeLimitExceededException extends IOException {
+
+        private static final long serialVersionUID = 1L;
+
+        SizeLimitExceededException(String message) {
+            super(message);
+        }
+    }
+
+    /** Carries I/O failures out of the fork-join tasks. */
+    private static final class UncheckedScanException extends RuntimeException {
+
+        private UncheckedScanException(IOException cause) {
+            super(cause);
+        }
+
+        @Override
+        public synchronized IOException getCause() {
+            return (IOException) super.getCause();
+        }
+    }
+
+    /** The reports found by a scan and how much work it took to find them. */
+    static final class Result implements Serializable {
+
+        private static final long serialVersionUID = 1L;
+
+        private final List<ReportFile> reports;
+
+        /** Reports excluded because of the size limits, with the reason. */
+        private final List<String> exclusions;
+
+        private final long filesVisited;
+        private final long directoriesVisited;
+        private final long directoriesPruned;
+        private final double scanTimeInMs;
+
+        private Result(
+                List<ReportFile> reports,
+                List<String> exclusions,
+                long filesVisited,
+                long directoriesVisited,
+                long directoriesPruned,
+                double scanTimeInMs) {
+            this.reports = reports;
+            this.exclusions = exclusions;
+            this.filesVisited = filesVisited;
+            this.directoriesVisited = directoriesVisited;
+            this.directoriesPruned = directoriesPruned;
+            this.scanTimeInMs = scanTimeInMs;
+        }
+
+        List<ReportFile> getReports() {
+            return reports;
+        }
+
+        List<String> getExclusions() {
+            return exclusions;
+        }
+
+        Statistics getStatistics() {
+            long reportBytes = 0;
+            for (ReportFile report : reports) {
+                reportBytes += report.getSize();
+            }
+            return new Statistics(scanTimeInMs, filesVisited, reports.size(), reportBytes);
+        }
+
+        long getFilesVisited() {
+            return filesVisited;
+        }
+
+        double getScanTimeInMs() {
+            return scanTimeInMs;
+        }
+
+        /** One line for the build log. */
+        String getSummary() {
+            return String.format(
+                    "Found %d reports in %.1fms, visited %d files in %d directories, skipped %d directories",
+                    reports.size(), scanTimeInMs, filesVisited, directoriesVisited, directoriesPruned);
+        }
+
+        /** Prints the summary and the reports excluded because of the size limits to the build log. */
+        void log(PrintStream logger) {
+            logger.println(TeamscaleUploadBuilder.INFO + getSummary());
+            if (exclusions.isEmpty()) {
+                return;
+            }
+            logger.println(TeamscaleUploadBuilder.INFO + "Excluded " + exclusions.size()
+                    + " reports that exceed the size limits:");
+            for (String exclusion : exclusions.subList(0, Math.min(exclusions.size(), MAX_LISTED_EXCLUSIONS))) {
+                logger.println(TeamscaleUploadBuilder.INFO + "  " + exclusion);
+            }
+            if (exclusions.size() > MAX_LISTED_EXCLUSIONS) {
+                logger.println(TeamscaleUploadBuilder.INFO + "  and " + (exclusions.size() - MAX_LISTED_EXCLUSIONS)
+                        + " more");
+            }
+        }
+    }
+}
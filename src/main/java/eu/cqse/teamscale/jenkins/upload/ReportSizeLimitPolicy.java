@@ -0,0 +1,11 @@
+package eu.cqse.teamscale.jenkins.upload;
+
+/** What happens if a report exceeds the size limits of the global configuration. */
+public enum ReportSizeLimitPolicy {
+    /** The report is not uploaded, all other reports are. */
+    SKIP,
+    /** The upload is aborted and the build fails. */
+    FAIL,
+    /** The upload is aborted and the build result is set like on a failed upload. */
+    UPLOAD_FAILURE
+}
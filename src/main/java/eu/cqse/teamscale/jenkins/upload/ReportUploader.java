@@ -0,0 +1,594 @@
+package eu.cqse.teamscale.jenkins.upload;
+
+import com.teamscale.client.ITeamscaleService;
+import hudson.FilePath;
+import hudson.util.DaemonThreadFactory;
+import hudson.util.NamingThreadFactory;
+import java.io.File;
+import java.io.IOException;
+import java.io.PrintStream;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.Semaphore;
+import java.util.function.Consumer;
+import java.util.function.LongSupplier;
+import okhttp3.MultipartBody;
+import okhttp3.Request;
+import okhttp3.RequestBody;
+import okhttp3.ResponseBody;
+import org.jspecify.annotations.Nullable;
+import retrofit2.Call;
+import retrofit2.Response;
+
+/**
+ * Sends external reports to Teamscale.
+ * Runs in the JVM that holds the reports, which is the agent if the upload is performed from the agent.
+ */
+class ReportUploader {
+
+    /** File name of the single part that holds all reports of a batch if they are compressed. */
+    private static final String ARCHIVE_NAME = "reports.zip";
+
+    /** Number of found reports that may wait for their batch before the scan is slowed down. */
+    private static final int PIPELINE_QUEUE_CAPACITY = 1024;
+
+    /** Marks the end of the scan in the queue of found reports. */
+    private static final ReportFile END_OF_SCAN = new ReportFile("", 0);
+
+    private final UploadParameters parameters;
+    private final PrintStream logger;
+    private final String failureLogLevel;
+    private final ITeamscaleService api;
+    private final TeamscaleSessionService sessionApi;
+
+    /**
+     * @param parameters      of the upload.
+     * @param logger          to print the progress and the outcome of each request to.
+     * @param failureLogLevel prefix for failures, depending on whether they affect the build result.
+     */
+    ReportUploader(UploadParameters parameters, PrintStream logger, String failureLogLevel) {
+        this.parameters = parameters;
+        this.logger = logger;
+        this.failureLogLevel = failureLogLevel;
+        this.api = TeamscaleClientCache.getService(parameters);
+        this.sessionApi = TeamscaleClientCache.getSessionService(parameters);
+    }
+
+    /**
+     * Uploads the given reports, streaming them from disk.
+     * The reports are split into batches according to the configured limits. A single batch is sent as one upload.
+     * Several batches are sent to one {@linkplain TeamscaleSessionService upload session}, which is committed once all
+     * batches have been sent, so that the reports replace the data of the partition together as if they had been sent
+     * in a single request. If a batch fails, the session is discarded and none of the reports take effect.
+     * Batches are sent concurrently up to the configured concurrency and the JVM-wide limit of {@link UploadSlots}.
+     *
+     * @param baseDirectory the workspace the report paths are relative to, may be remote.
+     * @param reports       the reports to upload.
+     * @return the combined outcome of all batches, never throws on upload failures.
+     */
+    UploadResult upload(FilePath baseDirectory, List<ReportFile> reports) throws InterruptedException {
+        if (reports.isEmpty()) {
+            return UploadResult.noReports();
+        }
+
+        List<List<ReportFile>> batches =
+                ReportBatches.split(reports, parameters.getMaxBatchBytes(), parameters.getMaxBatchReports());
+        if (batches.size() == 1) {
+            UploadResult result = uploadBatch(baseDirectory, reports, null);
+            result.log(logger, failureLogLevel);
+            return result;
+        }
+
+        int concurrency = Math.min(parameters.getUploadConcurrency(), batches.size());
+        logger.println(TeamscaleUploadBuilder.INFO + "Uploading " + reports.size() + " reports in " + batches.size()
+                + " batches of one upload session, " + concurrency + " at a time");
+        long startTime = System.nanoTime();
+        UploadSession session = openSession();
+        if (!session.isOpen()) {
+            return session.close(reports, Collections.emptyList(), startTime);
+        }
+        ExecutorService executor = newExecutor(concurrency);
+        try {
+            List<Future<UploadResult>> futures = new ArrayList<>();
+            for (int i = 0; i < batches.size(); i++) {
+                List<ReportFile> batch = batches.get(i);
+                String batchDescription = "Batch " + (i + 1) + "/" + batches.size() + ": " + batch.size() + " reports";
+                futures.add(executor.submit(
+                        () -> uploadAndLogBatch(baseDirectory, batch, session.getId(), batchDescription)));
+            }
+            return session.close(reports, awaitBatches(futures), startTime);
+        } finally {
+            executor.shutdownNow();
+            session.discardIfOpen();
+        }
+    }
+
+    /**
+     * Scans the directory and uploads the reports while the scan is still running: each batch is started as soon as
+     * the scanner has found enough reports to fill it, so the total time is close to the longer of scan and upload
+     * instead of their sum. Memory stays bounded since both the queue of found reports and the number of started
+     * batches are bounded, the scan waits if the upload falls behind.
+     * Like in {@link #upload(FilePath, List)}, several batches are sent to one upload session, which is only committed
+     * once the scan has finished successfully and all batches have been uploaded. If the scan fails, e.g. because a
+     * report exceeds the size limits, the session is discarded, so none of the batches sent so far take effect.
+     * Without batch limits all reports form a single batch, which is sent in one request without an upload session once
+     * the scan has finished.
+     *
+     * @param directory the workspace, which must be local to this JVM.
+     * @param scanner   finds the reports.
+     * @return the combined outcome of all batches, never throws on upload failures.
+     */
+    UploadResult uploadWhileScanning(File directory, ReportScanner scanner) throws IOException, InterruptedException {
+        FilePath baseDirectory = new FilePath(directory);
+        int concurrency = parameters.getUploadConcurrency();
+        BlockingQueue<ReportFile> foundReports = new ArrayBlockingQueue<>(PIPELINE_QUEUE_CAPACITY);
+        Semaphore batchPermits = new Semaphore(concurrency);
+        ReportBatches.Batcher batcher =
+                new ReportBatches.Batcher(parameters.getMaxBatchBytes(), parameters.getMaxBatchReports());
+        long startTime = System.nanoTime();
+        // One more thread than batches, for the scan
+        ExecutorService executor = newExecutor(concurrency + 1);
+        UploadSession session = null;
+        try {
+            Future<ReportScanner.Result> scan = executor.submit(() -> {
+                try {
+                    return scanner.scan(directory, foundReports::put);
+                } finally {
+                    foundReports.put(END_OF_SCAN);
+                }
+            });
+
+            List<Future<UploadResult>> futures = new ArrayList<>();
+            for (ReportFile report = foundReports.take(); report != END_OF_SCAN; report = foundReports.take()) {
+                List<ReportFile> batch = batcher.add(report);
+                if (batch == null) {
+                    continue;
+                }
+                if (session == null) {
+                    logger.println(TeamscaleUploadBuilder.INFO
+                            + "Uploading reports in batches of one upload session while scanning, " + concurrency
+                            + " at a time");
+                    session = openSession();
+                }
+                // If the session could not be opened, the scan is still completed to report all reports as failed
+                if (session.isOpen()) {
+                    futures.add(startBatch(executor, batchPermits, baseDirectory, batch, session, futures.size() + 1));
+                }
+            }
+            ReportScanner.Result scanResult;
+            try {
+                scanResult = getScanResult(scan);
+            } catch (IOException e) {
+                if (session != null && session.isOpen()) {
+                    // Size limits that fail the upload are only detected during the scan, after batches have started
+                    logger.println(TeamscaleUploadBuilder.INFO + "Discarding the upload session since the scan failed,"
+                            + " none of the " + futures.size() + " batches started so far take effect");
+                    session.discardIfOpen();
+                }
+                throw e;
+            }
+            scanResult.log(logger);
+
+            UploadResult result;
+            List<ReportFile> lastBatch = batcher.finish();
+            if (session == null) {
+                if (lastBatch == null) {
+                    result = UploadResult.noReports();
+                } else {
+                    // All reports fit into a single request, which is only complete once the scan has finished
+                    result = uploadBatch(baseDirectory, lastBatch, null);
+                    result.log(logger, failureLogLevel);
+                }
+            } else {
+                if (lastBatch != null && session.isOpen()) {
+                    futures.add(
+                            startBatch(executor, batchPermits, baseDirectory, lastBatch, session, futures.size() + 1));
+                }
+                result = session.close(scanResult.getReports(), awaitBatches(futures), startTime);
+            }
+            result.setScan(scanResult);
+            return result;
+        } finally {
+            executor.shutdownNow();
+            if (session != null) {
+                session.discardIfOpen();
+            }
+        }
+    }
+
+    /** Starts uploading a batch once fewer than the configured number of batches are in flight. */
+    private Future<UploadResult> startBatch(
+            ExecutorService executor,
+            Semaphore batchPermits,
+            FilePath baseDirectory,
+            List<ReportFile> batch,
+            UploadSession session,
+            int batchNumber)
+            throws InterruptedException {
+        batchPermits.acquire();
+        String batchDescription = "Batch " + batchNumber + ": " + batch.size() + " reports";
+        return executor.submit(() -> {
+            try {
+                return uploadAndLogBatch(baseDirectory, batch, session.getId(), batchDescription);
+            } finally {
+                batchPermits.release();
+            }
+        });
+    }
+
+    private static ReportScanner.Result getScanResult(Future<ReportScanner.Result> scan)
+            throws IOException, InterruptedException {
+        try {
+            return scan.get();
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof IOException) {
+                throw (IOException) e.getCause();
+            }
+            if (e.getCause() instanceof InterruptedException) {
+                throw (InterruptedException) e.getCause();
+            }
+            throw new IllegalStateException("Unexpected failure while scanning for reports", e.getCause());
+        }
+    }
+
+    private static ExecutorService newExecutor(int threads) {
+        return Executors.newFixedThreadPool(
+                threads, new NamingThreadFactory(new DaemonThreadFactory(), "Teamscale upload"));
+    }
+
+    private UploadResult uploadAndLogBatch(
+            FilePath baseDirectory, List<ReportFile> batch, String sessionId, String batchDescription)
+            throws InterruptedException {
+        UploadResult result = uploadBatch(baseDirectory, batch, sessionId);
+        // Keep the lines of one batch together although batches finish concurrently
+        synchronized (logger) {
+            logger.println(TeamscaleUploadBuilder.INFO + batchDescription);
+            result.log(logger, failureLogLevel);
+        }
+        return result;
+    }
+
+    /** Waits for all batches. */
+    private static List<UploadResult> awaitBatches(List<Future<UploadResult>> futures) throws InterruptedException {
+        try {
+            List<UploadResult> results = new ArrayList<>();
+            for (Future<UploadResult> future : futures) {
+                results.add(future.get());
+            }
+            return results;
+        } catch (ExecutionException e) {
+            // uploadBatch reports all expected failures in its result
+            throw new IllegalStateException("Unexpected failure while uploading reports", e.getCause());
+        }
+    }
+
+    /**
+     * Opens an upload session, retrying according to the {@link RetryPolicy}.
+     *
+     * @return the session, which is not open if the request failed.
+     */
+    private UploadSession openSession() throws InterruptedException {
+        String[] sessionId = new String[1];
+        UploadResult opening = sendWithRetries(
+                0,
+                () -> execute(
+                        sessionApi.openSession(
+                                parameters.getTeamscaleProject(),
+                                parameters.getRevision(),
+                                parameters.getRepository(),
+                                true,
+                                parameters.getPartition(),
+                                parameters.getUploadMessage()),
+                        0,
+                        0,
+                        () -> 0,
+                        body -> sessionId[0] = parseSessionId(body)));
+        if (opening.isSuccessful() && sessionId[0] == null) {
+            opening = UploadResult.failure(0, null, "Teamscale did not return the id of the upload session", 0);
+        }
+        if (!opening.isSuccessful()) {
+            opening.log(logger, failureLogLevel);
+            return new UploadSession(null, opening);
+        }
+        logger.println(TeamscaleUploadBuilder.INFO + "Opened upload session " + sessionId[0]);
+        return new UploadSession(sessionId[0], opening);
+    }
+
+    /** Returns the session id from the response body, which may be a JSON string, or {@code null} if it is empty. */
+    @Nullable
+    static String parseSessionId(String body) {
+        String id = body.trim();
+        if (id.length() >= 2 && id.startsWith("\"") && id.endsWith("\"")) {
+            id = id.substring(1, id.length() - 1);
+        }
+        return id.isEmpty() ? null : id;
+    }
+
+    /**
+     * Uploads the given reports in a single request, retrying according to the {@link RetryPolicy}.
+     *
+     * @param sessionId the upload session the reports are added to, or {@code null} to upload them on their own.
+     */
+    private UploadResult uploadBatch(FilePath baseDirectory, List<ReportFile> reports, @Nullable String sessionId)
+            throws InterruptedException {
+        return sendWithRetries(reports.size(), () -> sendBatch(baseDirectory, reports, sessionId));
+    }
+
+    /**
+     * Sends a request, retrying according to the {@link RetryPolicy}.
+     * Each attempt waits for a free slot of the JVM-wide limit, which is released while waiting for the next attempt.
+     * Fails immediately without a request while the {@link CircuitBreaker} of the server is open.
+     * Request bodies are replayed from disk for every attempt.
+     *
+     * @param reportCount the number of reports sent with the request.
+     * @param sender      sends a single attempt.
+     */
+    private UploadResult sendWithRetries(int reportCount, RequestSender sender) throws InterruptedException {
+        RetryPolicy retryPolicy = parameters.getRetryPolicy();
+        CircuitBreaker circuitBreaker = CircuitBreaker.forServer(parameters);
+        List<UploadResult.Request> failedRequests = new ArrayList<>();
+        for (int attempt = 1; ; attempt++) {
+            UploadResult result;
+            if (circuitBreaker != null && !circuitBreaker.allowRequest(parameters)) {
+                result = UploadResult.rejected(reportCount, circuitBreaker.describeRejection());
+                result.addEarlierRequests(failedRequests);
+                return result;
+            }
+            try (UploadSlots.Slot ignored = UploadSlots.acquire(
+                    parameters.getUrl(),
+                    parameters.getSchedulingQueue(),
+                    parameters.getMaxConcurrentUploads(),
+                    logger)) {
+                result = sender.send();
+            }
+            if (circuitBreaker != null) {
+                circuitBreaker.record(result, parameters);
+            }
+            if (!retryPolicy.shouldRetry(result, attempt)) {
+                result.addEarlierRequests(failedRequests);
+                return result;
+            }
+            failedRequests.addAll(result.getRequests());
+            long delayInMs = retryPolicy.delayInMs(attempt, result.getRetryAfterInMs());
+            logger.println(TeamscaleUploadBuilder.INFO
+                    + String.format(
+                            "Attempt %d/%d failed (%s), retrying in %.1fs",
+                            attempt,
+                            retryPolicy.getMaxAttempts(),
+                            result.getResponseCode() == UploadResult.NO_RESPONSE
+                                    ? "no response"
+                                    : result.getResponseCode(),
+                            delayInMs / 1e3d));
+            Thread.sleep(delayInMs);
+        }
+    }
+
+    /**
+     * Uploads the given reports in a single request.
+     * If merging is enabled and supported by the format, the reports are sent as one merged report. Otherwise, if
+     * compression is enabled, they are sent as one ZIP archive that is compressed on the fly.
+     */
+    private UploadResult sendBatch(FilePath baseDirectory, List<ReportFile> reports, @Nullable String sessionId) {
+        long reportBytes = 0;
+        for (ReportFile report : reports) {
+            reportBytes += report.getSize();
+        }
+
+        UploadRateLimiter rateLimiter =
+                UploadRateLimiter.forServer(parameters.getUrl(), parameters.getMaxUploadBytesPerSecond());
+        List<MultipartBody.Part> parts = new ArrayList<>();
+        LongSupplier bytesSent;
+        if (parameters.isMergeReports() && ReportMerger.supports(parameters.getReportFormatId())) {
+            MergedReportRequestBody merged = new MergedReportRequestBody(
+                    baseDirectory, reports, parameters.getReportFormatId(), parameters.getPreprocessor());
+            RequestBody body = rateLimiter != null ? rateLimiter.throttle(merged) : merged;
+            parts.add(MultipartBody.Part.createFormData("report", merged.getFileName(), body));
+            bytesSent = merged::getBytesWritten;
+        } else if (parameters.isCompressReports()) {
+            ZipRequestBody archive = new ZipRequestBody(baseDirectory, reports, parameters.getPreprocessor());
+            RequestBody body = rateLimiter != null ? rateLimiter.throttle(archive) : archive;
+            parts.add(MultipartBody.Part.createFormData("report", ARCHIVE_NAME, body));
+            bytesSent = archive::getBytesWritten;
+        } else {
+            List<ReportRequestBody> reportBodies = new ArrayList<>();
+            for (ReportFile report : reports) {
+                ReportRequestBody reportBody =
+                        new ReportRequestBody(baseDirectory.child(report.getPath()), parameters.getPreprocessor());
+                reportBodies.add(reportBody);
+                RequestBody body = reportBody;
+                if (rateLimiter != null) {
+                    body = rateLimiter.throttle(body);
+                }
+                parts.add(MultipartBody.Part.createFormData("report", report.getPath(), body));
+            }
+            bytesSent = () -> reportBodies.stream()
+                    .mapToLong(ReportRequestBody::getBytesWritten)
+                    .sum();
+        }
+
+        Call<ResponseBody> apiRequest;
+        if (sessionId == null) {
+            apiRequest = api.uploadExternalReports(
+                    parameters.getTeamscaleProject(),
+                    parameters.getReportFormatId().toUpperCase(),
+                    null,
+                    parameters.getRevision(),
+                    parameters.getRepository(),
+                    true,
+                    parameters.getPartition(),
+                    parameters.getUploadMessage(),
+                    parts);
+        } else {
+            apiRequest = sessionApi.addReports(
+                    parameters.getTeamscaleProject(),
+                    sessionId,
+                    parameters.getReportFormatId().toUpperCase(),
+                    parts);
+        }
+        return execute(apiRequest, reports.size(), reportBytes, bytesSent, null);
+    }
+
+    /**
+     * Executes a single request.
+     *
+     * @param reportCount     the number of reports sent with the request.
+     * @param reportBytes     the total size of the reports sent with the request.
+     * @param bytesSent       the number of bytes sent once the request has been executed.
+     * @param responseHandler receives the body of a successful response, may be {@code null}.
+     */
+    private static UploadResult execute(
+            Call<ResponseBody> apiRequest,
+            int reportCount,
+            long reportBytes,
+            LongSupplier bytesSent,
+            @Nullable Consumer<String> responseHandler) {
+        Request request = apiRequest.request();
+        String requestDescription = request.method() + " - " + request.url();
+        long requestStartTime = System.nanoTime();
+        try {
+            Response<ResponseBody> response = apiRequest.execute();
+            double requestTimeInMs = (System.nanoTime() - requestStartTime) / 1e6d;
+
+            String errorBody = null;
+            if (!response.isSuccessful()) {
+                try (ResponseBody body = response.errorBody()) {
+                    if (body != null) {
+                        errorBody = body.string();
+                    }
+                }
+            } else {
+                try (ResponseBody body = response.body()) {
+                    if (responseHandler != null) {
+                        responseHandler.accept(body != null ? body.string() : "");
+                    }
+                }
+            }
+            return UploadResult.response(
+                    reportCount,
+                    requestDescription,
+                    response.isSuccessful(),
+                    response.code(),
+                    response.message(),
+                    errorBody,
+                    requestTimeInMs,
+                    reportBytes,
+                    bytesSent.getAsLong(),
+                    RetryPolicy.parseRetryAfterInMs(response.headers().get("Retry-After")));
+        } catch (IOException e) {
+            return UploadResult.failure(
+                    reportCount,
+                    requestDescription,
+                    e.getMessage(),
+                    (System.nanoTime() - requestStartTime) / 1e6d);
+        }
+    }
+
+    /** Sends a single attempt of a request. */
+    private interface RequestSender {
+
+        UploadResult send();
+    }
+
+    /**
+     * An upload session that the batches of one upload are sent to, see {@link TeamscaleSessionService}.
+     * Must be closed once all batches have been sent, otherwise it is discarded.
+     */
+    private final class UploadSession {
+
+        /** The id of the session, {@code null} if it could not be opened. */
+        @Nullable
+        private final String id;
+
+        /** The result of opening the session. */
+        private final UploadResult opening;
+
+        private boolean open;
+
+        private UploadSession(@Nullable String id, UploadResult opening) {
+            this.id = id;
+            this.opening = opening;
+            this.open = id != null;
+        }
+
+        boolean isOpen() {
+            return open;
+        }
+
+        String getId() {
+            if (id == null) {
+                throw new IllegalStateException("The upload session could not be opened");
+            }
+            return id;
+        }
+
+        /**
+         * Commits the session if all batches were uploaded successfully, otherwise discards it, and logs the combined
+         * outcome.
+         *
+         * @param reports      all reports of the upload.
+         * @param batchResults the results of the batches sent to the session.
+         * @param startTime    {@link System#nanoTime()} when the upload started.
+         */
+        UploadResult close(List<ReportFile> reports, List<UploadResult> batchResults, long startTime)
+                throws InterruptedException {
+            UploadResult closing = null;
+            boolean committed = false;
+            if (open) {
+                if (batchResults.stream().allMatch(UploadResult::isSuccessful)) {
+                    closing = sendWithRetries(0, () -> execute(
+                            sessionApi.commitSession(parameters.getTeamscaleProject(), id), 0, 0, () -> 0, null));
+                    committed = closing.isSuccessful();
+                }
+                if (committed) {
+                    open = false;
+                } else {
+                    UploadResult discarding = discard();
+                    closing = closing != null ? closing : discarding;
+                }
+            }
+            long reportBytes = 0;
+            for (ReportFile report : reports) {
+                reportBytes += report.getSize();
+            }
+            UploadResult result = UploadResult.combineSession(
+                    reports.size(),
+                    reportBytes,
+                    opening,
+                    batchResults,
+                    closing,
+                    committed,
+                    (System.nanoTime() - startTime) / 1e6d);
+            result.logSummary(logger, failureLogLevel);
+            return result;
+        }
+
+        /** Discards the session if it has been neither committed nor discarded, e.g. because the upload failed. */
+        void discardIfOpen() {
+            if (open) {
+                discard();
+            }
+        }
+
+        /**
+         * Discards the session with a single attempt. If that fails, the session is left to Teamscale, where it has
+         * no effect since it is never committed.
+         */
+        private UploadResult discard() {
+            open = false;
+            UploadResult result =
+                    execute(sessionApi.discardSession(parameters.getTeamscaleProject(), id), 0, 0, () -> 0, null);
+            if (!result.isSuccessful()) {
+                logger.println(TeamscaleUploadBuilder.INFO + "Failed to discard upload session " + id + " ("
+                        + result.describeFailure() + "), it has no effect since it was not committed");
+            }
+            return result;
+        }
+    }
+}
@@ -0,0 +1,100 @@
+package eu.cqse.teamscale.jenkins.upload;
+
+import java.io.Serializable;
+import java.time.Duration;
+import java.time.ZonedDateTime;
+import java.time.format.DateTimeFormatter;
+import java.time.format.DateTimeParseException;
+import java.util.concurrent.ThreadLocalRandom;
+import org.jspecify.annotations.Nullable;
+
+/**
+ * Decides whether a failed upload request is retried and how long to wait before the next attempt.
+ * Uses exponential backoff with full jitter and honours the {@code Retry-After} header sent by Teamscale.
+ */
+class RetryPolicy implements Serializable {
+
+    private static final long serialVersionUID = 1L;
+
+    /** Upper bound for a single delay, including delays requested via {@code Retry-After}. */
+    static final Duration MAX_DELAY = Duration.ofMinutes(2);
+
+    private final int maxAttempts;
+    private final long baseDelayInMs;
+
+    /**
+     * @param maxAttempts      total number of attempts, {@code 1} disables retries.
+     * @param baseDelayInMs    delay before the first retry, doubled for every further retry.
+     */
+    RetryPolicy(int maxAttempts, long baseDelayInMs) {
+        this.maxAttempts = Math.max(1, maxAttempts);
+        this.baseDelayInMs = Math.max(0, baseDelayInMs);
+    }
+
+    int getMaxAttempts() {
+        return maxAttempts;
+    }
+
+    /**
+     * Whether another attempt should be made after the given result.
+     * Requests are retried if they did not get a response at all (e.g. connection refused or reset)
+     * or if Teamscale signals that it is temporarily overloaded or unavailable. Requests that were not sent since the
+     * {@link CircuitBreaker} is open are not retried.
+     *
+     * @param attempt number of the attempt that produced the result, starting at {@code 1}.
+     */
+    boolean shouldRetry(UploadResult result, int attempt) {
+        if (attempt >= maxAttempts || result.isSuccessful() || result.isRejected()) {
+            return false;
+        }
+        switch (result.getResponseCode()) {
+            case UploadResult.NO_RESPONSE:
+            case 408: // Request Timeout
+            case 429: // Too Many Requests
+            case 502: // Bad Gateway
+            case 503: // Service Unavailable
+            case 504: // Gateway Timeout
+                return true;
+            default:
+                return false;
+        }
+    }
+
+    /**
+     * Delay before the next attempt: the server's {@code Retry-After} if present, otherwise a random delay between
+     * zero and the exponentially growing backoff ("full jitter"), which spreads retries of many builds over time.
+     *
+     * @param attempt         number of the attempt that failed, starting at {@code 1}.
+     * @param retryAfterInMs  delay requested by the server, or a negative value if none was requested.
+     */
+    long delayInMs(int attempt, long retryAfterInMs) {
+        if (retryAfterInMs >= 0) {
+            return Math.min(retryAfterInMs, MAX_DELAY.toMillis());
+        }
+        long backoff = baseDelayInMs << Math.min(attempt - 1, 20);
+        long cappedBackoff = Math.min(backoff, MAX_DELAY.toMillis());
+        return ThreadLocalRandom.current().nextLong(cappedBackoff + 1);
+    }
+
+    /**
+     * Parses a {@code Retry-After} header, which is either a number of seconds or an HTTP date.
+     *
+     * @return the requested delay, or {@code -1} if the header is missing or malformed.
+     */
+    static long parseRetryAfterInMs(@Nullable String retryAfter) {
+        if (retryAfter == null || retryAfter.isBlank()) {
+            return -1;
+        }
+        try {
+            return Math.max(0, Long.parseLong(retryAfter.trim()) * 1000);
+        } catch (NumberFormatException e) {
+            // not a number of seconds, try an HTTP date
+        }
+        try {
+            ZonedDateTime date = ZonedDateTime.parse(retryAfter.trim(), DateTimeFormatter.RFC_1123_DATE_TIME);
+            return Math.max(0, Duration.between(ZonedDateTime.now(), date).toMillis());
+        } catch (DateTimeParseException e) {
+            return -1;
+        }
+    }
+}
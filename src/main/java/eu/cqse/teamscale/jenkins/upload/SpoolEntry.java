@@ -0,0 +1,108 @@
+package eu.cqse.teamscale.jenkins.upload;
+
+import hudson.Util;
+import hudson.XmlFile;
+import hudson.model.Run;
+import java.io.File;
+import java.io.IOException;
+import java.util.List;
+import jenkins.model.Jenkins;
+import org.jspecify.annotations.Nullable;
+
+/**
+ * An upload waiting in the {@link UploadSpool}. Persisted as XML next to the spooled reports, so it survives restarts
+ * of the controller. The password contained in the parameters is stored encrypted.
+ */
+public class SpoolEntry {
+
+    private final String id;
+    private final long createdMillis;
+
+    /** {@link Run#getExternalizableId()} of the build that produced the reports, if any. */
+    @Nullable
+    private final String runId;
+
+    private final UploadParameters parameters;
+    private final List<ReportFile> reports;
+
+    private int attempts;
+    private long nextAttemptMillis;
+
+    @Nullable
+    private String lastFailure;
+
+    SpoolEntry(String id, @Nullable String runId, UploadParameters parameters, List<ReportFile> reports) {
+        this.id = id;
+        this.createdMillis = System.currentTimeMillis();
+        this.runId = runId;
+        this.parameters = parameters;
+        this.reports = reports;
+    }
+
+    static XmlFile getXmlFile(File directory) {
+        return new XmlFile(Jenkins.XSTREAM2, new File(directory, "entry.xml"));
+    }
+
+    void save(File directory) throws IOException {
+        getXmlFile(directory).write(this);
+    }
+
+    public String getId() {
+        return id;
+    }
+
+    public long getCreatedMillis() {
+        return createdMillis;
+    }
+
+    /** How long the entry has been in the spool, for display. */
+    public String getAge() {
+        return Util.getTimeSpanString(System.currentTimeMillis() - createdMillis);
+    }
+
+    @Nullable
+    String getRunId() {
+        return runId;
+    }
+
+    /** The build that produced the reports, unless it has been deleted in the meantime. */
+    @Nullable
+    public Run<?, ?> getRun() {
+        return runId != null ? Run.fromExternalizableId(runId) : null;
+    }
+
+    UploadParameters getParameters() {
+        return parameters;
+    }
+
+    List<ReportFile> getReports() {
+        return reports;
+    }
+
+    /**
+     * Uploads of the same key target the same data in Teamscale, so replaying an upload of the same key has the
+     * same effect as uploading it once.
+     */
+    public String getKey() {
+        return parameters.getTeamscaleProject() + "/" + parameters.getPartition() + "@" + parameters.getRevision();
+    }
+
+    public int getAttempts() {
+        return attempts;
+    }
+
+    @Nullable
+    public String getLastFailure() {
+        return lastFailure;
+    }
+
+    boolean isDue(long nowMillis) {
+        return nowMillis >= nextAttemptMillis;
+    }
+
+    void recordFailure(String failure, long nextAttemptMillis) {
+        this.attempts++;
+        this.lastFailure = failure;
+        this.nextAttemptMillis = nextAttemptMillis;
+    }
+}
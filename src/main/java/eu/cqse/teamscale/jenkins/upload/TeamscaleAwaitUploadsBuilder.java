@@ -0,0 +1,114 @@
+package eu.cqse.teamscale.jenkins.upload;
+
+import hudson.EnvVars;
+import hudson.Extension;
+import hudson.FilePath;
+import hudson.Launcher;
+import hudson.model.AbstractProject;
+import hudson.model.Result;
+import hudson.model.Run;
+import hudson.model.TaskListener;
+import hudson.tasks.BuildStepDescriptor;
+import hudson.tasks.Notifier;
+import hudson.tasks.Publisher;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import jenkins.tasks.SimpleBuildStep;
+import org.jenkinsci.Symbol;
+import org.jspecify.annotations.NonNull;
+import org.kohsuke.stapler.DataBoundConstructor;
+import org.kohsuke.stapler.DataBoundSetter;
+
+/**
+ * Waits for the asynchronous Teamscale uploads of the build to finish and applies the configured result on upload
+ * failure, which asynchronous uploads cannot do on their own.
+ */
+public class TeamscaleAwaitUploadsBuilder extends Notifier implements SimpleBuildStep {
+
+    /** Default for {@link #timeoutInMinutes}. */
+    static final int DEFAULT_TIMEOUT_IN_MINUTES = 60;
+
+    /** How long to wait for all uploads together, after which unfinished uploads count as failed. */
+    private int timeoutInMinutes = DEFAULT_TIMEOUT_IN_MINUTES;
+
+    @SuppressWarnings("unused") // used by stapler web framework
+    @DataBoundConstructor
+    public TeamscaleAwaitUploadsBuilder() {}
+
+    @SuppressWarnings("unused") // used by stapler web framework
+    public int getTimeoutInMinutes() {
+        return timeoutInMinutes;
+    }
+
+    @SuppressWarnings("unused") // used by stapler web framework
+    @DataBoundSetter
+    public void setTimeoutInMinutes(int timeoutInMinutes) {
+        this.timeoutInMinutes = timeoutInMinutes > 0 ? timeoutInMinutes : DEFAULT_TIMEOUT_IN_MINUTES;
+    }
+
+    @Override
+    public void perform(
+            @NonNull Run<?, ?> run,
+            @NonNull FilePath workspace,
+            @NonNull EnvVars env,
+            @NonNull Launcher launcher,
+            @NonNull TaskListener listener)
+            throws InterruptedException, IOException {
+        List<TeamscaleUploadAction> uploads = new ArrayList<>(run.getActions(TeamscaleUploadAction.class));
+        // Synchronous uploads have already applied their result
+        uploads.removeIf(upload -> !upload.isAsynchronous());
+        if (uploads.isEmpty()) {
+            listener.getLogger().println(TeamscaleUploadBuilder.INFO + "No asynchronous uploads to wait for");
+            return;
+        }
+        // Steps configured before the timeout existed have none stored
+        int timeout = timeoutInMinutes > 0 ? timeoutInMinutes : DEFAULT_TIMEOUT_IN_MINUTES;
+        long deadlineNanos = System.nanoTime() + TimeUnit.MINUTES.toNanos(timeout);
+        for (TeamscaleUploadAction upload : uploads) {
+            listener.getLogger()
+                    .println(TeamscaleUploadBuilder.INFO + "Waiting for upload to partition " + upload.getPartition());
+            TeamscaleUploadAction.Status status = upload.awaitCompletion(deadlineNanos);
+            if (status == TeamscaleUploadAction.Status.SUCCESSFUL || status == TeamscaleUploadAction.Status.SKIPPED) {
+                listener.getLogger().println(TeamscaleUploadBuilder.INFO + upload.getSummary());
+                continue;
+            }
+            String summary = upload.getSummary();
+            if (!status.isFinal()) {
+                summary = "The upload did not finish within " + timeout
+                        + " minutes and continues in the background" + (summary != null ? ": " + summary : "");
+            }
+            switch (upload.getResultOnUploadFailure()) {
+                case IGNORE:
+                    listener.getLogger().println(TeamscaleUploadBuilder.INFO + summary);
+                    break;
+                case UNSTABLE:
+                    listener.getLogger().println(TeamscaleUploadBuilder.ERROR + summary);
+                    run.setResult(Result.UNSTABLE);
+                    break;
+                case FAILURE:
+                    listener.getLogger().println(TeamscaleUploadBuilder.ERROR + summary);
+                    run.setResult(Result.FAILURE);
+                    break;
+            }
+        }
+    }
+
+    @Symbol("teamscaleAwaitUploads")
+    @Extension
+    @SuppressWarnings("unused") // used by stapler web framework
+    public static final class DescriptorImpl extends BuildStepDescriptor<Publisher> {
+
+        @Override
+        public boolean isApplicable(Class<? extends AbstractProject> aClass) {
+            return true;
+        }
+
+        @NonNull
+        @Override
+        public String getDisplayName() {
+            return Messages.TeamscaleAwaitUploadsBuilder_DescriptorImpl_DisplayName();
+        }
+    }
+}
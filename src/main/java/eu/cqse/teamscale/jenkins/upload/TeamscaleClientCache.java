@@ -0,0 +1,151 @@
+package eu.cqse.teamscale.jenkins.upload;
+
+import com.teamscale.client.ITeamscaleService;
+import hudson.Util;
+import java.time.Duration;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Map;
+import java.util.Objects;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import okhttp3.ConnectionPool;
+import okhttp3.Credentials;
+import okhttp3.HttpUrl;
+import okhttp3.OkHttpClient;
+import okhttp3.Protocol;
+import retrofit2.Retrofit;
+
+/**
+ * JVM-wide cache of Teamscale services, used on the controller as well as on agents.
+ * <p>
+ * All services are derived from one {@link OkHttpClient}, so they share its connection pool (keep-alive connections
+ * are reused across builds), its dispatcher threads and its TLS socket factory (TLS sessions are resumed).
+ * Services are keyed by Teamscale URL, credential and {@link TeamscaleClientOptions} and are evicted after they have
+ * not been used for a while.
+ * <p>
+ * HTTP/2 is negotiated via ALPN on TLS connections, so that concurrent batches of an upload are multiplexed over a
+ * single connection if Teamscale or its reverse proxy supports it. Unencrypted connections use HTTP/1.1 unless the
+ * server is configured to speak HTTP/2 with prior knowledge (h2c).
+ */
+final class TeamscaleClientCache {
+
+    /** How long idle connections are kept alive and how long unused services are kept in the cache. */
+    private static final Duration IDLE_TIMEOUT = Duration.ofMinutes(5);
+
+    private static final OkHttpClient SHARED_CLIENT = new OkHttpClient.Builder()
+            .connectionPool(new ConnectionPool(10, IDLE_TIMEOUT.toMillis(), TimeUnit.MILLISECONDS))
+            .protocols(Arrays.asList(Protocol.HTTP_2, Protocol.HTTP_1_1))
+            .build();
+
+    private static final Map<Key, Entry> SERVICES = new ConcurrentHashMap<>();
+
+    private TeamscaleClientCache() {}
+
+    /**
+     * Returns the service for the Teamscale server and credential of the given upload, creating it if necessary.
+     * Safe to call concurrently from several builds.
+     */
+    static ITeamscaleService getService(UploadParameters parameters) {
+        return getEntry(parameters).service;
+    }
+
+    /** Returns the service for upload sessions, which shares the client of {@link #getService(UploadParameters)}. */
+    static TeamscaleSessionService getSessionService(UploadParameters parameters) {
+        return getEntry(parameters).sessionService;
+    }
+
+    private static Entry getEntry(UploadParameters parameters) {
+        evictUnused();
+        String password = parameters.getPassword().getPlainText();
+        TeamscaleClientOptions options = parameters.getClientOptions();
+        Key key = new Key(parameters.getUrl(), parameters.getUsername(), Util.getDigestOf(password), options);
+        Entry entry = SERVICES.computeIfAbsent(
+                key, k -> new Entry(createRetrofit(parameters.getUrl(), parameters.getUsername(), password, options)));
+        entry.lastUsed = System.nanoTime();
+        return entry;
+    }
+
+    private static Retrofit createRetrofit(
+            String url, String username, String password, TeamscaleClientOptions options) {
+        HttpUrl baseUrl = withTrailingSlash(HttpUrl.get(url));
+        String authorization = Credentials.basic(username, password);
+        // Derived clients share the connection pool and dispatcher of the shared client
+        OkHttpClient.Builder builder = SHARED_CLIENT
+                .newBuilder()
+                .connectTimeout(options.getConnectTimeout())
+                .readTimeout(options.getReadTimeout())
+                .writeTimeout(options.getWriteTimeout())
+                .callTimeout(options.getCallTimeout())
+                .addInterceptor(chain -> chain.proceed(chain.request()
+                        .newBuilder()
+                        .header("Authorization", authorization)
+                        .build()));
+        // Prior knowledge excludes all other protocols and only applies to unencrypted connections
+        if (options.isHttp2PriorKnowledge() && !baseUrl.isHttps()) {
+            builder.protocols(Collections.singletonList(Protocol.H2_PRIOR_KNOWLEDGE));
+        }
+        OkHttpClient client = builder.build();
+        // No converter is needed since the endpoints used only return a raw ResponseBody
+        return new Retrofit.Builder().baseUrl(baseUrl).client(client).build();
+    }
+
+    /** Retrofit requires base URLs to end with a slash, e.g. for Teamscale instances served under a context path. */
+    private static HttpUrl withTrailingSlash(HttpUrl url) {
+        if (url.pathSegments().get(url.pathSize() - 1).isEmpty()) {
+            return url;
+        }
+        return url.newBuilder().addPathSegment("").build();
+    }
+
+    private static void evictUnused() {
+        long now = System.nanoTime();
+        SERVICES.values().removeIf(entry -> now - entry.lastUsed > IDLE_TIMEOUT.toNanos());
+    }
+
+    private static final class Key {
+        private final String url;
+        private final String username;
+        private final String passwordDigest;
+        private final TeamscaleClientOptions options;
+
+        private Key(String url, String username, String passwordDigest, TeamscaleClientOptions options) {
+            this.url = url;
+            this.username = username;
+            this.passwordDigest = passwordDigest;
+            this.options = options;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (this == o) {
+                return true;
+            }
+            if (!(o instanceof Key)) {
+                return false;
+            }
+            Key other = (Key) o;
+            return url.equals(other.url)
+                    && username.equals(other.username)
+                    && passwordDigest.equals(other.passwordDigest)
+                    && options.equals(other.options);
+        }
+
+        @Override
+        public int hashCode() {
+            return Objects.hash(url, username, passwordDigest, options);
+        }
+    }
+
+    private static final class Entry {
+        private final ITeamscaleService service;
+        private final TeamscaleSessionService sessionService;
+        private volatile long lastUsed;
+
+        private Entry(Retrofit retrofit) {
+            this.service = retrofit.create(ITeamscaleService.class);
+            this.sessionService = retrofit.create(TeamscaleSessionService.class);
+            this.lastUsed = System.nanoTime();
+        }
+    }
+}
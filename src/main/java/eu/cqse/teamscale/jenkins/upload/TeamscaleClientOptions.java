@@ -0,0 +1,84 @@
+package eu.cqse.teamscale.jenkins.upload;
+
+import java.io.Serializable;
+import java.time.Duration;
+import java.util.Objects;
+
+/**
+ * Connection settings of the HTTP client for one Teamscale server, resolved from the global configuration.
+ * Part of the {@link UploadParameters}, so the settings also apply to uploads from agents.
+ */
+final class TeamscaleClientOptions implements Serializable {
+
+    private static final long serialVersionUID = 1L;
+
+    /** The timeouts that were used before they could be configured, e.g. for uploads spooled back then. */
+    static final TeamscaleClientOptions DEFAULTS = new TeamscaleClientOptions(
+            Duration.ofSeconds(10), Duration.ofSeconds(60), Duration.ofSeconds(60), Duration.ZERO, false);
+
+    private final long connectTimeoutInMs;
+    private final long readTimeoutInMs;
+    private final long writeTimeoutInMs;
+
+    /** Timeout of a whole request including the upload of the reports, {@code 0} means no limit. */
+    private final long callTimeoutInMs;
+
+    /** Whether HTTP/2 is spoken right away on unencrypted connections (h2c) instead of HTTP/1.1. */
+    private final boolean http2PriorKnowledge;
+
+    TeamscaleClientOptions(
+            Duration connectTimeout,
+            Duration readTimeout,
+            Duration writeTimeout,
+            Duration callTimeout,
+            boolean http2PriorKnowledge) {
+        this.connectTimeoutInMs = connectTimeout.toMillis();
+        this.readTimeoutInMs = readTimeout.toMillis();
+        this.writeTimeoutInMs = writeTimeout.toMillis();
+        this.callTimeoutInMs = callTimeout.toMillis();
+        this.http2PriorKnowledge = http2PriorKnowledge;
+    }
+
+    Duration getConnectTimeout() {
+        return Duration.ofMillis(connectTimeoutInMs);
+    }
+
+    Duration getReadTimeout() {
+        return Duration.ofMillis(readTimeoutInMs);
+    }
+
+    Duration getWriteTimeout() {
+        return Duration.ofMillis(writeTimeoutInMs);
+    }
+
+    /** Timeout of a whole request, {@link Duration#ZERO} means no limit. */
+    Duration getCallTimeout() {
+        return Duration.ofMillis(callTimeoutInMs);
+    }
+
+    boolean isHttp2PriorKnowledge() {
+        return http2PriorKnowledge;
+    }
+
+    @Override
+    public boolean equals(Object o) {
+        if (this == o) {
+            return true;
+        }
+        if (!(o instanceof TeamscaleClientOptions)) {
+            return false;
+        }
+        TeamscaleClientOptions other = (TeamscaleClientOptions) o;
+        return connectTimeoutInMs == other.connectTimeoutInMs
+                && readTimeoutInMs == other.readTimeoutInMs
+                && writeTimeoutInMs == other.writeTimeoutInMs
+                && callTimeoutInMs == other.callTimeoutInMs
+                && http2PriorKnowledge == other.http2PriorKnowledge;
+    }
+
+    @Override
+    public int hashCode() {
+        return Objects.hash(
+                connectTimeoutInMs, readTimeoutInMs, writeTimeoutInMs, callTimeoutInMs, http2PriorKnowledge);
+    }
+}
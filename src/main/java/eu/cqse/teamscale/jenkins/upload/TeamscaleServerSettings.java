@@ -0,0 +1,148 @@
+package eu.cqse.teamscale.jenkins.upload;
+
+import hudson.Extension;
+import hudson.Util;
+import hudson.model.AbstractDescribableImpl;
+import hudson.model.Descriptor;
+import hudson.util.FormValidation;
+import okhttp3.HttpUrl;
+import org.jspecify.annotations.Nullable;
+import org.kohsuke.stapler.DataBoundConstructor;
+import org.kohsuke.stapler.DataBoundSetter;
+import org.kohsuke.stapler.QueryParameter;
+import org.kohsuke.stapler.verb.POST;
+
+/**
+ * Global settings that apply to all uploads to one Teamscale server and override the defaults of
+ * {@link TeamscaleUploadPluginConfiguration}. A value of 0 means inherit from the global configuration.
+ */
+public class TeamscaleServerSettings extends AbstractDescribableImpl<TeamscaleServerSettings> {
+
+    private final String url;
+
+    private int maxConcurrentUploads;
+
+    private int maxUploadRateInMbPerSecond;
+
+    private int connectTimeoutInSeconds;
+
+    private int readTimeoutInSeconds;
+
+    private int writeTimeoutInSeconds;
+
+    private int callTimeoutInSeconds;
+
+    /** Whether HTTP/2 is spoken right away on unencrypted connections (h2c). */
+    private boolean http2PriorKnowledge;
+
+    @DataBoundConstructor
+    public TeamscaleServerSettings(String url) {
+        this.url = Util.fixNull(url).trim();
+    }
+
+    public String getUrl() {
+        return url;
+    }
+
+    public int getMaxConcurrentUploads() {
+        return maxConcurrentUploads;
+    }
+
+    @SuppressWarnings("unused") // used by stapler web framework
+    @DataBoundSetter
+    public void setMaxConcurrentUploads(int maxConcurrentUploads) {
+        this.maxConcurrentUploads = Math.max(0, maxConcurrentUploads);
+    }
+
+    public int getMaxUploadRateInMbPerSecond() {
+        return maxUploadRateInMbPerSecond;
+    }
+
+    @SuppressWarnings("unused") // used by stapler web framework
+    @DataBoundSetter
+    public void setMaxUploadRateInMbPerSecond(int maxUploadRateInMbPerSecond) {
+        this.maxUploadRateInMbPerSecond = Math.max(0, maxUploadRateInMbPerSecond);
+    }
+
+    public int getConnectTimeoutInSeconds() {
+        return connectTimeoutInSeconds;
+    }
+
+    @SuppressWarnings("unused") // used by stapler web framework
+    @DataBoundSetter
+    public void setConnectTimeoutInSeconds(int connectTimeoutInSeconds) {
+        this.connectTimeoutInSeconds = Math.max(0, connectTimeoutInSeconds);
+    }
+
+    public int getReadTimeoutInSeconds() {
+        return readTimeoutInSeconds;
+    }
+
+    @SuppressWarnings("unused") // used by stapler web framework
+    @DataBoundSetter
+    public void setReadTimeoutInSeconds(int readTimeoutInSeconds) {
+        this.readTimeoutInSeconds = Math.max(0, readTimeoutInSeconds);
+    }
+
+    public int getWriteTimeoutInSeconds() {
+        return writeTimeoutInSeconds;
+    }
+
+    @SuppressWarnings("unused") // used by stapler web framework
+    @DataBoundSetter
+    public void setWriteTimeoutInSeconds(int writeTimeoutInSeconds) {
+        this.writeTimeoutInSeconds = Math.max(0, writeTimeoutInSeconds);
+    }
+
+    public int getCallTimeoutInSeconds() {
+        return callTimeoutInSeconds;
+    }
+
+    @SuppressWarnings("unused") // used by stapler web framework
+    @DataBoundSetter
+    public void setCallTimeoutInSeconds(int callTimeoutInSeconds) {
+        this.callTimeoutInSeconds = Math.max(0, callTimeoutInSeconds);
+    }
+
+    public boolean isHttp2PriorKnowledge() {
+        return http2PriorKnowledge;
+    }
+
+    @SuppressWarnings("unused") // used by stapler web framework
+    @DataBoundSetter
+    public void setHttp2PriorKnowledge(boolean http2PriorKnowledge) {
+        this.http2PriorKnowledge = http2PriorKnowledge;
+    }
+
+    /** Whether these settings apply to the given Teamscale URL, ignoring a trailing slash. */
+    boolean matches(String url) {
+        return normalize(this.url).equals(normalize(url));
+    }
+
+    /** Normalizes a Teamscale URL, so that the same server is identified by the same key. */
+    static String normalize(@Nullable String url) {
+        String trimmed = Util.fixNull(url).trim();
+        while (trimmed.endsWith("/")) {
+            trimmed = trimmed.substring(0, trimmed.length() - 1);
+        }
+        return trimmed;
+    }
+
+    @Extension
+    public static class DescriptorImpl extends Descriptor<TeamscaleServerSettings> {
+
+        @Override
+        public String getDisplayName() {
+            return "Teamscale server";
+        }
+
+        @POST
+        @SuppressWarnings({"lgtm[jenkins/no-permission-check]", "unused"}) // secure because no side effects
+        public FormValidation doCheckUrl(@QueryParameter String value) {
+            if (HttpUrl.parse(Util.fixNull(value).trim()) == null) {
+                return FormValidation.error("Invalid URL");
+            }
+            return FormValidation.ok();
+        }
+    }
+}
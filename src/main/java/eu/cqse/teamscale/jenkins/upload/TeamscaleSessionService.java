@@ -0,0 +1,56 @@
+package eu.cqse.teamscale.jenkins.upload;
+
+import com.teamscale.client.ITeamscaleService;
+import java.util.List;
+import okhttp3.MultipartBody;
+import okhttp3.ResponseBody;
+import org.jspecify.annotations.Nullable;
+import retrofit2.Call;
+import retrofit2.http.DELETE;
+import retrofit2.http.Multipart;
+import retrofit2.http.POST;
+import retrofit2.http.Part;
+import retrofit2.http.Path;
+import retrofit2.http.Query;
+
+/**
+ * Teamscale's external analysis sessions, which {@link ITeamscaleService} does not cover.
+ * <p>
+ * Every upload to a partition replaces the data of that partition at the revision. Reports added to a session only
+ * take effect once the session is committed, all at once, so reports sent in several requests replace the data of
+ * the partition together, as if they had been sent in a single request. A session that is discarded or never
+ * committed has no effect.
+ */
+interface TeamscaleSessionService {
+
+    /**
+     * Opens a session.
+     *
+     * @return the id of the session as the response body.
+     */
+    @POST("api/projects/{project}/external-analysis/session")
+    Call<ResponseBody> openSession(
+            @Path("project") String project,
+            @Query("revision") String revision,
+            @Query("repository") @Nullable String repository,
+            @Query("movetolastcommit") boolean moveToLastCommit,
+            @Query("partition") String partition,
+            @Query("message") String message);
+
+    /** Adds reports to an open session. */
+    @Multipart
+    @POST("api/projects/{project}/external-analysis/session/{session}/report")
+    Call<ResponseBody> addReports(
+            @Path("project") String project,
+            @Path("session") String session,
+            @Query("format") String format,
+            @Part List<MultipartBody.Part> report);
+
+    /** Commits a session, so that all of its reports take effect. */
+    @POST("api/projects/{project}/external-analysis/session/{session}")
+    Call<ResponseBody> commitSession(@Path("project") String project, @Path("session") String session);
+
+    /** Discards a session and all of its reports. */
+    @DELETE("api/projects/{project}/external-analysis/session/{session}")
+    Call<ResponseBody> discardSession(@Path("project") String project, @Path("session") String session);
+}
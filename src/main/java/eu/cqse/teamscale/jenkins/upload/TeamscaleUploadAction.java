@@ -0,0 +1,330 @@
+package eu.cqse.teamscale.jenkins.upload;
+
+import hudson.model.Run;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import jenkins.model.RunAction2;
+import org.jspecify.annotations.Nullable;
+import org.kohsuke.stapler.export.Exported;
+import org.kohsuke.stapler.export.ExportedBean;
+
+/**
+ * Records a Teamscale upload on the build: the reports, the time spent in each phase and the outcome.
+ * Shown on the build page and exported to the remote API, e.g. {@code /job/<job>/<build>/api/json?depth=1}.
+ * <p>
+ * For asynchronous uploads the action is added while the upload is still pending and completed later by the
+ * {@link UploadSpool}, possibly after a restart of Jenkins.
+ */
+@ExportedBean
+public class TeamscaleUploadAction implements RunAction2 {
+
+    /** Number of reports recorded individually, so that huge uploads do not bloat the build record. */
+    static final int MAX_RECORDED_REPORTS = 1000;
+
+    /** State of the upload. */
+    public enum Status {
+        PENDING,
+        /** An attempt failed, the upload waits in the {@link UploadSpool} to be retried. */
+        RETRYING,
+        SUCCESSFUL,
+        FAILED,
+        /** Nothing was uploaded, e.g. because a newer upload replaced this one or the reports were unchanged. */
+        SKIPPED,
+        /** The controller was restarted before the upload finished. */
+        INTERRUPTED;
+
+        /** Whether the upload has finished, so the status does not change anymore. */
+        public boolean isFinal() {
+            return this != PENDING && this != RETRYING;
+        }
+    }
+
+    private final String teamscaleProject;
+    private final String partition;
+    private final String revision;
+    private final String uploadMessage;
+
+    /**
+     * Whether the build step waited for the upload. Otherwise it continues in the background and can be awaited with
+     * {@link TeamscaleAwaitUploadsBuilder}. Negated so that actions recorded before it existed are asynchronous.
+     */
+    private final boolean synchronous;
+
+    /** How a failed upload affects the build result, applied when the upload is awaited. */
+    private final TeamscaleUploadPluginResult resultOnUploadFailure;
+
+    private Status status = Status.PENDING;
+
+    /** Id of the entry in the {@link UploadSpool} for asynchronous uploads. */
+    @Nullable
+    private String spoolId;
+
+    @Nullable
+    private String summary;
+
+    /** The first {@link #MAX_RECORDED_REPORTS} reports. */
+    private List<Report> reports = new ArrayList<>();
+
+    private int reportCount;
+    private long reportBytes;
+    private long bytesSent;
+    private int responseCode = UploadResult.NO_RESPONSE;
+    private int requestCount;
+    private int retryCount;
+
+    private long credentialLookupTimeInMs;
+    private long scanTimeInMs;
+    private long transferTimeInMs;
+    private long httpTimeInMs;
+
+    private transient Run<?, ?> run;
+
+    TeamscaleUploadAction(
+            UploadParameters parameters, TeamscaleUploadPluginResult resultOnUploadFailure, boolean asynchronous) {
+        this.teamscaleProject = parameters.getTeamscaleProject();
+        this.partition = parameters.getPartition();
+        this.revision = parameters.getRevision();
+        this.uploadMessage = parameters.getUploadMessage();
+        this.resultOnUploadFailure = resultOnUploadFailure;
+        this.synchronous = !asynchronous;
+    }
+
+    @Override
+    public void onAttached(Run<?, ?> run) {
+        this.run = run;
+    }
+
+    @Override
+    public synchronized void onLoad(Run<?, ?> run) {
+        this.run = run;
+        if (reports == null) {
+            // Recorded before reports were tracked
+            reports = new ArrayList<>();
+        }
+        // Spooled uploads are resumed after a restart, anything else pending was lost
+        if (!status.isFinal() && (spoolId == null || !UploadSpool.get().contains(spoolId))) {
+            status = Status.INTERRUPTED;
+            summary = "The upload was interrupted by a restart of Jenkins";
+        }
+    }
+
+    public Run<?, ?> getRun() {
+        return run;
+    }
+
+    @Exported
+    public String getTeamscaleProject() {
+        return teamscaleProject;
+    }
+
+    @Exported
+    public String getPartition() {
+        return partition;
+    }
+
+    @Exported
+    public String getRevision() {
+        return revision;
+    }
+
+    @Exported
+    public String getUploadMessage() {
+        return uploadMessage;
+    }
+
+    @Exported
+    public boolean isAsynchronous() {
+        return !synchronous;
+    }
+
+    @Exported
+    public synchronized Status getStatus() {
+        return status;
+    }
+
+    @Exported
+    @Nullable
+    public synchronized String getSummary() {
+        return summary;
+    }
+
+    /** The reports of the upload, at most {@link #MAX_RECORDED_REPORTS}. */
+    @Exported
+    public synchronized List<Report> getReports() {
+        return Collections.unmodifiableList(reports);
+    }
+
+    @Exported
+    public synchronized int getReportCount() {
+        return reportCount;
+    }
+
+    @Exported
+    public synchronized long getReportBytes() {
+        return reportBytes;
+    }
+
+    @Exported
+    public synchronized long getBytesSent() {
+        return bytesSent;
+    }
+
+    /** Response code of the last request, {@code -1} if no response was received. */
+    @Exported
+    public synchronized int getResponseCode() {
+        return responseCode;
+    }
+
+    @Exported
+    public synchronized int getRequestCount() {
+        return requestCount;
+    }
+
+    @Exported
+    public synchronized int getRetryCount() {
+        return retryCount;
+    }
+
+    @Exported
+    public synchronized long getCredentialLookupTimeInMs() {
+        return credentialLookupTimeInMs;
+    }
+
+    /** Time spent scanning the workspace, including computing content hashes. */
+    @Exported
+    public synchronized long getScanTimeInMs() {
+        return scanTimeInMs;
+    }
+
+    /** Time spent copying the reports from the agent to the controller, {@code 0} if they were not copied. */
+    @Exported
+    public synchronized long getTransferTimeInMs() {
+        return transferTimeInMs;
+    }
+
+    /**
+     * Time spent in HTTP requests to Teamscale, summed over all requests. Reports are read while they are sent, so
+     * this includes reading them.
+     */
+    @Exported
+    public synchronized long getHttpTimeInMs() {
+        return httpTimeInMs;
+    }
+
+    @Nullable
+    String getSpoolId() {
+        return spoolId;
+    }
+
+    void setSpoolId(String spoolId) {
+        this.spoolId = spoolId;
+    }
+
+    TeamscaleUploadPluginResult getResultOnUploadFailure() {
+        return resultOnUploadFailure;
+    }
+
+    synchronized void setCredentialLookupTimeInMs(long credentialLookupTimeInMs) {
+        this.credentialLookupTimeInMs = credentialLookupTimeInMs;
+    }
+
+    synchronized void addTransferTimeInMs(long transferTimeInMs) {
+        this.transferTimeInMs += transferTimeInMs;
+    }
+
+    /** Records the reports found by a scan. */
+    synchronized void recordScan(List<ReportFile> reports, ReportScanner.Statistics statistics) {
+        this.reports = new ArrayList<>();
+        for (ReportFile report : reports.subList(0, Math.min(reports.size(), MAX_RECORDED_REPORTS))) {
+            this.reports.add(new Report(report.getPath(), report.getSize()));
+        }
+        this.reportCount = statistics.getReportCount();
+        this.reportBytes = statistics.getReportBytes();
+        this.scanTimeInMs += Math.round(statistics.getScanTimeInMs());
+    }
+
+    /** Records the requests of an upload. The scan is recorded as well if it was performed together with the upload. */
+    synchronized void recordUpload(UploadResult result) {
+        if (result.getScanStatistics() != null) {
+            recordScan(result.getScannedReports(), result.getScanStatistics());
+        }
+        if (result.hasReports()) {
+            this.reportCount = result.getReportCount();
+            this.reportBytes = result.getReportBytes();
+        }
+        this.bytesSent = result.getBytesSent();
+        this.responseCode = result.getResponseCode();
+        this.requestCount = result.getRequests().size();
+        this.retryCount = result.getRetryCount();
+        double httpTimeInMs = 0;
+        for (UploadResult.Request request : result.getRequests()) {
+            httpTimeInMs += request.getTimeInMs();
+        }
+        this.httpTimeInMs = Math.round(httpTimeInMs);
+    }
+
+    /** Records the state and wakes up everybody waiting for the upload if it is final. */
+    synchronized void complete(Status status, String summary) {
+        this.status = status;
+        this.summary = summary;
+        notifyAll();
+    }
+
+    /**
+     * Blocks until the upload has finished, including retries from the spool, or the deadline has passed.
+     *
+     * @param deadlineNanos {@link System#nanoTime()} at which to stop waiting.
+     * @return the status, which is not {@linkplain Status#isFinal() final} if the deadline has passed.
+     */
+    synchronized Status awaitCompletion(long deadlineNanos) throws InterruptedException {
+        while (!status.isFinal()) {
+            long remainingMillis = TimeUnit.NANOSECONDS.toMillis(deadlineNanos - System.nanoTime());
+            if (remainingMillis <= 0) {
+                break;
+            }
+            wait(remainingMillis);
+        }
+        return status;
+    }
+
+    @Override
+    public String getIconFileName() {
+        // only shown as summary on the build page
+        return null;
+    }
+
+    @Override
+    public String getDisplayName() {
+        return "Teamscale Upload";
+    }
+
+    @Override
+    public String getUrlName() {
+        return null;
+    }
+
+    /** A single uploaded report. */
+    @ExportedBean(defaultVisibility = 2)
+    public static final class Report {
+
+        private final String path;
+        private final long size;
+
+        Report(String path, long size) {
+            this.path = path;
+            this.size = size;
+        }
+
+        @Exported
+        public String getPath() {
+            return path;
+        }
+
+        @Exported
+        public long getSize() {
+            return size;
+        }
+    }
+}
@@ -6,8 +6,6 @@ import com.cloudbees.plugins.credentials.CredentialsProvider;
 import com.cloudbees.plugins.credentials.common.StandardListBoxModel;
 import com.cloudbees.plugins.credentials.common.StandardUsernamePasswordCredentials;
 import com.cloudbees.plugins.credentials.domains.URIRequirementBuilder;
-import com.teamscale.client.ITeamscaleService;
-import com.teamscale.client.TeamscaleServiceGenerator;
 import hudson.EnvVars;
 import hudson.Extension;
 import hudson.FilePath;
@@ -25,10 +23,9 @@ import hudson.util.FormValidation;
 import hudson.util.ListBoxModel;
 import java.io.File;
 import java.io.IOException;
-import java.io.PrintStream;
-import java.nio.charset.StandardCharsets;
-import java.time.Duration;
+import java.nio.file.Files;
 import java.util.*;
+import java.util.concurrent.TimeUnit;
 import java.util.regex.Matcher;
 import java.util.regex.Pattern;
 import java.util.stream.Collectors;
@@ -37,9 +34,7 @@ import jenkins.MasterToSlaveFileCallable;
 import jenkins.model.Jenkins;
 import jenkins.tasks.SimpleBuildStep;
 import okhttp3.*;
-import org.apache.commons.io.FileUtils;
 import org.apache.commons.lang.StringUtils;
-import org.apache.tools.ant.DirectoryScanner;
 import org.jenkinsci.Symbol;
 import org.jspecify.annotations.NonNull;
 import org.jspecify.annotations.Nullable;
@@ -48,8 +43,6 @@ import org.kohsuke.stapler.DataBoundConstructor;
 import org.kohsuke.stapler.DataBoundSetter;
 import org.kohsuke.stapler.QueryParameter;
 import org.kohsuke.stapler.verb.POST;
-import retrofit2.Call;
-import retrofit2.Response;
 
 /**
  * The Teamscale Jenkins plugin.
@@ -63,11 +56,6 @@ public class TeamscaleUploadBuilder extends Notifier implements SimpleBuildStep
     private static final CredentialsMatcher MATCHER =
             CredentialsMatchers.anyOf(CredentialsMatchers.instanceOf(StandardUsernamePasswordCredentials.class));
 
-    /**
-     * Api for uploading files to Teamscale.
-     */
-    private ITeamscaleService api;
-
     /**
      * For printing errors to jenkins console.
      */
@@ -78,6 +66,8 @@ public class TeamscaleUploadBuilder extends Notifier implements SimpleBuildStep
      */
     public static final String INFO = "TS-INFO: ";
 
+    private static final long BYTES_PER_MB = 1024L * 1024L;
+
     private final String url;
     private final String teamscaleProject;
     private final String partition;
@@ -102,6 +92,57 @@ public class TeamscaleUploadBuilder extends Notifier implements SimpleBuildStep
     @Nullable
     private TeamscaleUploadPluginResult resultOnUploadFailure;
 
+    /** Whether the reports are uploaded from the agent instead of being transferred to the controller first. */
+    private boolean uploadFromAgent;
+
+    /** Whether the reports are compressed into a single ZIP archive while they are uploaded. */
+    private boolean compressReports;
+
+    /** Maximum total size of the reports uploaded in one request, {@code 0} means no limit. */
+    private int maxBatchSizeInMb;
+
+    /** Maximum number of reports uploaded in one request, {@code 0} means no limit. */
+    private int maxReportsPerBatch;
+
+    /** Number of batches uploaded concurrently, {@code 0} means inherit from global configuration. */
+    private int uploadConcurrency;
+
+    /** Number of attempts per upload request, {@code 0} means inherit from global configuration. */
+    private int maxUploadAttempts;
+
+    /** Delay before the first retry, {@code 0} means inherit from global configuration. */
+    private int retryBaseDelayInSeconds;
+
+    /** Whether the upload is queued on the controller instead of holding the executor until it is finished. */
+    private boolean asyncUpload;
+
+    /** Comma-separated Ant-style patterns of files that are not uploaded although they match the include pattern. */
+    @Nullable
+    private String excludePattern;
+
+    /** Whether uploads are skipped if the same reports were already uploaded to the same revision and partition. */
+    private boolean skipUnchangedReports;
+
+    /** Whether only the reports of the modules changed according to the changelog of the build are uploaded. */
+    private boolean onlyChangedModules;
+
+    /** Number of directory levels below the workspace that identify a module, {@code 0} means 1. */
+    private int moduleDepth;
+
+    /** Whether whitespace and content that Teamscale ignores are removed from the reports while they are uploaded. */
+    private boolean preprocessReports;
+
+    /** Path prefixes replaced in the reports while they are uploaded, one {@code prefix=replacement} per line. */
+    @Nullable
+    private String pathMappings;
+
+    /** Whether the SIMPLE, LCOV and JaCoCo reports of a request are merged into one report on the agent. */
+    private boolean mergeReports;
+
+    /** Further partitions the reports are uploaded to, {@code null} if there are none. */
+    @Nullable
+    private List<PartitionUpload> additionalUploads;
+
     /**
      * Automatic data binding on save of the plugin configuration in jenkins.
      *
@@ -235,6 +276,189 @@ public class TeamscaleUploadBuilder extends Notifier implements SimpleBuildStep
         }
     }
 
+    @SuppressWarnings("unused") // used by stapler web framework
+    public boolean isUploadFromAgent() {
+        return uploadFromAgent;
+    }
+
+    @SuppressWarnings("unused") // used by stapler web framework
+    @DataBoundSetter
+    public void setUploadFromAgent(boolean uploadFromAgent) {
+        this.uploadFromAgent = uploadFromAgent;
+    }
+
+    @SuppressWarnings("unused") // used by stapler web framework
+    public boolean isCompressReports() {
+        return compressReports;
+    }
+
+    @SuppressWarnings("unused") // used by stapler web framework
+    @DataBoundSetter
+    public void setCompressReports(boolean compressReports) {
+        this.compressReports = compressReports;
+    }
+
+    @SuppressWarnings("unused") // used by stapler web framework
+    public int getMaxBatchSizeInMb() {
+        return maxBatchSizeInMb;
+    }
+
+    @SuppressWarnings("unused") // used by stapler web framework
+    @DataBoundSetter
+    public void setMaxBatchSizeInMb(int maxBatchSizeInMb) {
+        this.maxBatchSizeInMb = Math.max(0, maxBatchSizeInMb);
+    }
+
+    @SuppressWarnings("unused") // used by stapler web framework
+    public int getMaxReportsPerBatch() {
+        return maxReportsPerBatch;
+    }
+
+    @SuppressWarnings("unused") // used by stapler web framework
+    @DataBoundSetter
+    public void setMaxReportsPerBatch(int maxReportsPerBatch) {
+        this.maxReportsPerBatch = Math.max(0, maxReportsPerBatch);
+    }
+
+    @SuppressWarnings("unused") // used by stapler web framework
+    public int getUploadConcurrency() {
+        return uploadConcurrency;
+    }
+
+    @SuppressWarnings("unused") // used by stapler web framework
+    @DataBoundSetter
+    public void setUploadConcurrency(int uploadConcurrency) {
+        this.uploadConcurrency = Math.max(0, uploadConcurrency);
+    }
+
+    @SuppressWarnings("unused") // used by stapler web framework
+    public int getMaxUploadAttempts() {
+        return maxUploadAttempts;
+    }
+
+    @SuppressWarnings("unused") // used by stapler web framework
+    @DataBoundSetter
+    public void setMaxUploadAttempts(int maxUploadAttempts) {
+        this.maxUploadAttempts = Math.max(0, maxUploadAttempts);
+    }
+
+    @SuppressWarnings("unused") // used by stapler web framework
+    public int getRetryBaseDelayInSeconds() {
+        return retryBaseDelayInSeconds;
+    }
+
+    @SuppressWarnings("unused") // used by stapler web framework
+    @DataBoundSetter
+    public void setRetryBaseDelayInSeconds(int retryBaseDelayInSeconds) {
+        this.retryBaseDelayInSeconds = Math.max(0, retryBaseDelayInSeconds);
+    }
+
+    @SuppressWarnings("unused") // used by stapler web framework
+    public boolean isAsyncUpload() {
+        return asyncUpload;
+    }
+
+    @SuppressWarnings("unused") // used by stapler web framework
+    @DataBoundSetter
+    public void setAsyncUpload(boolean asyncUpload) {
+        this.asyncUpload = asyncUpload;
+    }
+
+    @SuppressWarnings("unused") // used by stapler web framework
+    public @Nullable String getExcludePattern() {
+        return excludePattern;
+    }
+
+    @SuppressWarnings("unused") // used by stapler web framework
+    @DataBoundSetter
+    public void setExcludePattern(@Nullable String excludePattern) {
+        this.excludePattern = Util.fixEmptyAndTrim(excludePattern);
+    }
+
+    @SuppressWarnings("unused") // used by stapler web framework
+    public boolean isSkipUnchangedReports() {
+        return skipUnchangedReports;
+    }
+
+    @SuppressWarnings("unused") // used by stapler web framework
+    @DataBoundSetter
+    public void setSkipUnchangedReports(boolean skipUnchangedReports) {
+        this.skipUnchangedReports = skipUnchangedReports;
+    }
+
+    @SuppressWarnings("unused") // used by stapler web framework
+    public boolean isOnlyChangedModules() {
+        return onlyChangedModules;
+    }
+
+    @SuppressWarnings("unused") // used by stapler web framework
+    @DataBoundSetter
+    public void setOnlyChangedModules(boolean onlyChangedModules) {
+        this.onlyChangedModules = onlyChangedModules;
+    }
+
+    @SuppressWarnings("unused") // used by stapler web framework
+    public int getModuleDepth() {
+        return moduleDepth;
+    }
+
+    @SuppressWarnings("unused") // used by stapler web framework
+    @DataBoundSetter
+    public void setModuleDepth(int moduleDepth) {
+        this.moduleDepth = Math.max(0, moduleDepth);
+    }
+
+    @SuppressWarnings("unused") // used by stapler web framework
+    public boolean isPreprocessReports() {
+        return preprocessReports;
+    }
+
+    @SuppressWarnings("unused") // used by stapler web framework
+    @DataBoundSetter
+    public void setPreprocessReports(boolean preprocessReports) {
+        this.preprocessReports = preprocessReports;
+    }
+
+    @SuppressWarnings("unused") // used by stapler web framework
+    public @Nullable String getPathMappings() {
+        return pathMappings;
+    }
+
+    @SuppressWarnings("unused") // used by stapler web framework
+    @DataBoundSetter
+    public void setPathMappings(@Nullable String pathMappings) {
+        this.pathMappings = Util.fixEmptyAndTrim(pathMappings);
+    }
+
+    @SuppressWarnings("unused") // used by stapler web framework
+    public boolean isMergeReports() {
+        return mergeReports;
+    }
+
+    @SuppressWarnings("unused") // used by stapler web framework
+    @DataBoundSetter
+    public void setMergeReports(boolean mergeReports) {
+        this.mergeReports = mergeReports;
+    }
+
+    @SuppressWarnings("unused") // used by stapler web framework
+    public List<PartitionUpload> getAdditionalUploads() {
+        if (additionalUploads == null) {
+            return Collections.emptyList();
+        }
+        return additionalUploads;
+    }
+
+    @SuppressWarnings("unused") // used by stapler web framework
+    @DataBoundSetter
+    public void setAdditionalUploads(@Nullable List<PartitionUpload> additionalUploads) {
+        if (additionalUploads == null || additionalUploads.isEmpty()) {
+            this.additionalUploads = null;
+        } else {
+            this.additionalUploads = new ArrayList<>(additionalUploads);
+        }
+    }
+
     @Override
     public void perform(
             @NonNull Run<?, ?> run,
@@ -244,11 +468,8 @@ public class TeamscaleUploadBuilder extends Notifier implements SimpleBuildStep
             @NonNull TaskListener listener)
             throws InterruptedException, IOException {
 
-        StandardUsernamePasswordCredentials credential = CredentialsProvider.findCredentialById(
-                credentialsId,
-                StandardUsernamePasswordCredentials.class,
-                run,
-                URIRequirementBuilder.fromUri(getUrl()).build());
+        long credentialLookupStartTime = System.nanoTime();
+        StandardUsernamePasswordCredentials credential = CredentialsCache.lookup(credentialsId, run, getUrl());
 
         if (credential == null) {
             listener.getLogger().println(ERROR + "credentials are null");
@@ -263,13 +484,7 @@ public class TeamscaleUploadBuilder extends Notifier implements SimpleBuildStep
             return;
         }
 
-        api = TeamscaleServiceGenerator.createService(
-                ITeamscaleService.class,
-                url,
-                credential.getUsername(),
-                credential.getPassword().getPlainText(),
-                Duration.ofSeconds(60),
-                Duration.ofSeconds(60));
+        long credentialLookupTimeInMs = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - credentialLookupStartTime);
 
         String rev = getScmRevision(env);
         listener.getLogger().println(INFO + "revision: " + rev);
@@ -280,20 +495,343 @@ public class TeamscaleUploadBuilder extends Notifier implements SimpleBuildStep
             return;
         }
 
-        Map<String, String> reports =
-                workspace.act(new CoverageCollectingFileCallable(new String[] {getIncludePattern()}));
+        TeamscaleUploadPluginConfiguration globalConfiguration = TeamscaleUploadPluginConfiguration.get();
+        List<PartitionUpload> uploads = new ArrayList<>();
+        uploads.add(new PartitionUpload(getIncludePattern(), getReportFormatId(), getPartition()));
+        uploads.addAll(getAdditionalUploads());
+        if (hasDuplicatePartition(uploads, run, listener)) {
+            return;
+        }
+        List<UploadParameters> parameters = new ArrayList<>();
+        List<ReportScanner> scanners = new ArrayList<>();
+        for (PartitionUpload upload : uploads) {
+            parameters.add(createParameters(upload, credential, rev, run, globalConfiguration));
+            scanners.add(createScanner(upload, globalConfiguration));
+        }
+        if (onlyChangedModules) {
+            int depth = Math.max(1, moduleDepth);
+            Set<String> modules = ChangedModules.of(run, depth);
+            if (modules == null) {
+                listener.getLogger()
+                        .println(INFO + "Uploading the reports of all modules, the build has no changelog or changes"
+                                + " files outside of the modules");
+            } else {
+                listener.getLogger()
+                        .println(INFO + "Uploading only the reports of " + modules.size() + " changed modules: "
+                                + modules.stream().sorted().collect(Collectors.joining(", ")));
+                scanners.replaceAll(scanner -> scanner.withModules(modules, depth));
+            }
+        }
+        if (uploads.size() == 1 && !onlyChangedModules) {
+            UploadCoalescer.Ticket ticket = registerForCoalescing(parameters.get(0), globalConfiguration);
+            try {
+                performUpload(
+                        run,
+                        workspace,
+                        listener,
+                        uploads.get(0),
+                        parameters.get(0),
+                        scanners.get(0),
+                        null,
+                        ticket,
+                        credentialLookupTimeInMs);
+            } finally {
+                if (ticket != null) {
+                    ticket.cancel();
+                }
+            }
+            return;
+        }
+
+        // Scan once for the reports of all partitions, each upload then picks its own reports from the result
+        ReportScanner combinedScanner = scanners.get(0)
+                .withIncludes(uploads.stream()
+                        .flatMap(upload -> Arrays.stream(ReportScanner.splitPatterns(upload.getIncludePattern())))
+                        .distinct()
+                        .toArray(String[]::new));
+        if (skipUnchangedReports) {
+            combinedScanner = combinedScanner.withHashes();
+        }
+        listener.getLogger().println(INFO + "Scanning for the reports of " + uploads.size() + " partitions");
+        ReportScanner.Result scan;
+        try {
+            scan = workspace.act(new CoverageCollectingFileCallable(combinedScanner, listener));
+        } catch (ReportScanner.SizeLimitExceededException e) {
+            TeamscaleUploadPluginResult resultOnSizeLimit = getResultOnSizeLimit(globalConfiguration);
+            logSizeLimitExceeded(listener, e, resultOnSizeLimit);
+            for (UploadParameters uploadParameters : parameters) {
+                recordOutcome(
+                        run,
+                        createAction(uploadParameters, globalConfiguration),
+                        TeamscaleUploadAction.Status.FAILED,
+                        e.getMessage());
+            }
+            setResult(run, resultOnSizeLimit);
+            return;
+        }
+        UploadMetrics.recordScan(parameters.get(0), scan.getStatistics());
+        List<ReportScanner.Result> scans = new ArrayList<>(Collections.nCopies(uploads.size(), scan));
+        if (onlyChangedModules) {
+            splitByModule(uploads, parameters, scanners, scans, credential, rev, run, globalConfiguration);
+            // The partition of a module may coincide with an additional partition
+            if (hasDuplicatePartition(uploads, run, listener)) {
+                return;
+            }
+        }
+        // Registered together, so that the coalescing windows of all partitions elapse concurrently
+        List<UploadCoalescer.Ticket> tickets = new ArrayList<>();
+        for (UploadParameters uploadParameters : parameters) {
+            tickets.add(registerForCoalescing(uploadParameters, globalConfiguration));
+        }
+        try {
+            for (int i = 0; i < uploads.size(); i++) {
+                listener.getLogger()
+                        .println(INFO + "Uploading to partition \"" + uploads.get(i).getPartition() + "\"");
+                // The credentials were only looked up once for all partitions
+                performUpload(
+                        run,
+                        workspace,
+                        listener,
+                        uploads.get(i),
+                        parameters.get(i),
+                        scanners.get(i),
+                        scans.get(i),
+                        tickets.get(i),
+                        i == 0 ? credentialLookupTimeInMs : 0);
+            }
+        } finally {
+            for (UploadCoalescer.Ticket ticket : tickets) {
+                if (ticket != null) {
+                    ticket.cancel();
+                }
+            }
+        }
+    }
+
+    /**
+     * Fails the build if several uploads of the step go to the same partition, since they would replace each other's
+     * data.
+     *
+     * @return whether a partition is uploaded to more than once.
+     */
+    private static boolean hasDuplicatePartition(List<PartitionUpload> uploads, Run<?, ?> run, TaskListener listener) {
+        Set<String> partitions = new HashSet<>();
+        for (PartitionUpload upload : uploads) {
+            if (!partitions.add(upload.getPartition())) {
+                listener.getLogger()
+                        .println(ERROR + "The partition \"" + upload.getPartition() + "\" is uploaded to more than"
+                                + " once. Each upload replaces the data of its partition, so use one include pattern"
+                                + " for all of its reports instead.");
+                run.setResult(Result.FAILURE);
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Registers a synchronous upload with the {@link UploadCoalescer} if a coalescing window is configured.
+     *
+     * @return the ticket, which must be cancelled if it is not turned in, or {@code null} if there is nothing to wait
+     * for.
+     */
+    private UploadCoalescer.@Nullable Ticket registerForCoalescing(
+            UploadParameters parameters, TeamscaleUploadPluginConfiguration globalConfiguration) {
+        long coalescingWindowInMs = TimeUnit.SECONDS.toMillis(globalConfiguration.getCoalescingWindowInSeconds());
+        if (coalescingWindowInMs <= 0 || asyncUpload) {
+            return null;
+        }
+        return UploadCoalescer.register(parameters.getCoalescingKey(), coalescingWindowInMs);
+    }
+
+    /**
+     * Replaces each upload by one upload per module that it found reports in, to a partition of its own named
+     * {@code <partition>/<module>}. Every upload replaces the data of its partition, so the reports of unchanged
+     * modules that are not uploaded only remain in Teamscale if each module has its own partition. Reports above the
+     * module level are uploaded to the partition itself, which is also kept if no module has reports, so that the
+     * usual handling of missing reports applies.
+     *
+     * @param scans the result of the scan for all uploads, replaced by the results limited to the reports of a module.
+     */
+    private void splitByModule(
+            List<PartitionUpload> uploads,
+            List<UploadParameters> parameters,
+            List<ReportScanner> scanners,
+            List<ReportScanner.Result> scans,
+            StandardUsernamePasswordCredentials credential,
+            String rev,
+            Run<?, ?> run,
+            TeamscaleUploadPluginConfiguration globalConfiguration) {
+        int depth = Math.max(1, moduleDepth);
+        List<PartitionUpload> moduleUploads = new ArrayList<>();
+        List<UploadParameters> moduleParameters = new ArrayList<>();
+        List<ReportScanner> moduleScanners = new ArrayList<>();
+        List<ReportScanner.Result> moduleScans = new ArrayList<>();
+        for (int i = 0; i < uploads.size(); i++) {
+            PartitionUpload upload = uploads.get(i);
+            ReportScanner scanner = scanners.get(i);
+            ReportScanner.Result scan = scans.get(i);
+            Set<String> modules = new TreeSet<>();
+            boolean hasReportsAboveModules = false;
+            for (ReportFile report : scanner.select(scan).getReports()) {
+                String module = ChangedModules.getModule(report.getPath(), depth);
+                if (module == null) {
+                    hasReportsAboveModules = true;
+                } else {
+                    modules.add(module);
+                }
+            }
+            if (hasReportsAboveModules || modules.isEmpty()) {
+                moduleUploads.add(upload);
+                moduleParameters.add(parameters.get(i));
+                moduleScanners.add(scanner);
+                moduleScans.add(ReportScanner.selectModule(scan, null, depth));
+            }
+            for (String module : modules) {
+                PartitionUpload moduleUpload = new PartitionUpload(
+                        upload.getIncludePattern(), upload.getReportFormatId(), upload.getPartition() + "/" + module);
+                moduleUploads.add(moduleUpload);
+                moduleParameters.add(createParameters(moduleUpload, credential, rev, run, globalConfiguration));
+                moduleScanners.add(scanner);
+                moduleScans.add(ReportScanner.selectModule(scan, module, depth));
+            }
+        }
+        uploads.clear();
+        uploads.addAll(moduleUploads);
+        parameters.clear();
+        parameters.addAll(moduleParameters);
+        scanners.clear();
+        scanners.addAll(moduleScanners);
+        scans.clear();
+        scans.addAll(moduleScans);
+    }
+
+    /**
+     * Uploads the reports of one partition and records the outcome in a {@link TeamscaleUploadAction}.
+     *
+     * @param scan   the result of a scan for the reports of all partitions of the step, or {@code null} if the
+     *               workspace is scanned for the reports of this partition only.
+     * @param ticket the registration with the {@link UploadCoalescer}, or {@code null} if uploads are not coalesced.
+     */
+    private void performUpload(
+            Run<?, ?> run,
+            FilePath workspace,
+            TaskListener listener,
+            PartitionUpload upload,
+            UploadParameters parameters,
+            ReportScanner scanner,
+            ReportScanner.@Nullable Result scan,
+            UploadCoalescer.@Nullable Ticket ticket,
+            long credentialLookupTimeInMs)
+            throws IOException, InterruptedException {
+        TeamscaleUploadPluginConfiguration globalConfiguration = TeamscaleUploadPluginConfiguration.get();
+        TeamscaleUploadPluginResult resultingResultOnUploadFailure = getResultOnUploadFailure(globalConfiguration);
+        String logLevel;
+        if (resultingResultOnUploadFailure == TeamscaleUploadPluginResult.IGNORE) {
+            logLevel = INFO;
+        } else {
+            logLevel = ERROR;
+        }
+        TeamscaleUploadAction action = createAction(parameters, globalConfiguration);
+        action.setCredentialLookupTimeInMs(credentialLookupTimeInMs);
 
-        if (reports.isEmpty()) {
+        UploadCoalescer.Turn turn = null;
+        if (ticket != null) {
+            listener.getLogger()
+                    .println(INFO + "Waiting " + globalConfiguration.getCoalescingWindowInSeconds()
+                            + "s for newer uploads of the same revision and partition");
+            turn = ticket.awaitTurn();
+            if (turn == null) {
+                listener.getLogger()
+                        .println(INFO + "Skipping upload, a newer upload of the same revision and partition"
+                                + " replaced it");
+                recordOutcome(
+                        run,
+                        action,
+                        TeamscaleUploadAction.Status.SKIPPED,
+                        "Replaced by a newer upload of the same revision and partition");
+                return;
+            }
+        }
+
+        UploadResult result;
+        List<ReportFile> reports = null;
+        List<ReportFile> hashedReports = null;
+        try (UploadCoalescer.Turn ignored = turn;
+                UploadMetrics.InFlight inFlight = UploadMetrics.uploadStarted()) {
+            if (skipUnchangedReports) {
+                hashedReports = collectReports(workspace, scanner.withHashes(), scan, parameters, action, listener);
+                UploadIndex index = UploadIndex.load(run.getParent());
+                listener.getLogger()
+                        .println(INFO
+                                + UploadIndex.describeHitRate(
+                                        index.countUnchanged(parameters, hashedReports), hashedReports.size()));
+                if (!hashedReports.isEmpty() && index.isAlreadyUploaded(parameters, hashedReports)) {
+                    listener.getLogger()
+                            .println(INFO + "The same reports were already uploaded to this revision and partition,"
+                                    + " skipping the upload");
+                    recordOutcome(
+                            run,
+                            action,
+                            TeamscaleUploadAction.Status.SKIPPED,
+                            "The same reports were already uploaded to this revision and partition");
+                    if (turn != null) {
+                        turn.succeeded();
+                    }
+                    return;
+                }
+            }
+            if (uploadFromAgent && !asyncUpload) {
+                listener.getLogger().println(INFO + "Uploading reports from the agent");
+                if (scan != null) {
+                    reports = hashedReports != null
+                            ? hashedReports
+                            : collectReports(workspace, scanner, scan, parameters, action, listener);
+                    result = workspace.act(new AgentUploadCallable(reports, parameters, listener, logLevel));
+                } else {
+                    result = workspace.act(new AgentUploadCallable(scanner, parameters, listener, logLevel));
+                }
+                if (workspace.isRemote()) {
+                    CircuitBreaker.recordRemoteUpload(parameters, result);
+                }
+            } else {
+                reports = hashedReports != null
+                        ? hashedReports
+                        : collectReports(workspace, scanner, scan, parameters, action, listener);
+                if (asyncUpload && !reports.isEmpty()) {
+                    queueUpload(run, action, workspace, reports, parameters, listener);
+                    return;
+                }
+                ReportUploader uploader = new ReportUploader(parameters, listener.getLogger(), logLevel);
+                if (parameters.getRetryPolicy().getMaxAttempts() > 1 && workspace.isRemote() && !reports.isEmpty()) {
+                    result = uploadFromLocalCopy(uploader, workspace, reports, action, listener);
+                } else {
+                    result = uploader.upload(workspace, reports);
+                }
+            }
+            if (turn != null && result.isSuccessful()) {
+                turn.succeeded();
+            }
+        } catch (ReportScanner.SizeLimitExceededException e) {
+            TeamscaleUploadPluginResult resultOnSizeLimit = getResultOnSizeLimit(globalConfiguration);
+            logSizeLimitExceeded(listener, e, resultOnSizeLimit);
+            recordOutcome(run, action, TeamscaleUploadAction.Status.FAILED, e.getMessage());
+            setResult(run, resultOnSizeLimit);
+            return;
+        }
+        UploadMetrics.recordUpload(parameters, result);
+        action.recordUpload(result);
+
+        if (!result.hasReports()) {
             TeamscaleUploadPluginResult resultingResultNoReports = resultNoReports;
             if (resultingResultNoReports == null) {
                 // If the job is set to inherit, use global configuration
-                resultingResultNoReports =
-                        TeamscaleUploadPluginConfiguration.get().getResultNoReportsEnum();
+                resultingResultNoReports = globalConfiguration.getResultNoReportsEnum();
             }
-            String logLevel = ERROR;
+            String noReportsLogLevel = ERROR;
             switch (resultingResultNoReports) {
                 case IGNORE:
-                    logLevel = INFO;
+                    noReportsLogLevel = INFO;
                     break;
                 case UNSTABLE:
                     run.setResult(Result.UNSTABLE);
@@ -303,36 +841,229 @@ public class TeamscaleUploadBuilder extends Notifier implements SimpleBuildStep
                     break;
             }
             listener.getLogger()
-                    .println(logLevel + "No files found to upload to Teamscale with pattern \"" + getIncludePattern()
-                            + "\"");
+                    .println(noReportsLogLevel + "No files found to upload to Teamscale with pattern \""
+                            + upload.getIncludePattern() + "\"");
+            recordOutcome(run, action, TeamscaleUploadAction.Status.SKIPPED, result.getSummary());
             return;
         }
-        TeamscaleUploadPluginResult resultingResultOnUploadFailure = resultOnUploadFailure;
-        if (resultingResultOnUploadFailure == null) {
+        if (result.isSuccessful() && hashedReports != null) {
+            UploadIndex.record(run.getParent(), parameters, hashedReports);
+        }
+        recordOutcome(
+                run,
+                action,
+                result.isSuccessful() ? TeamscaleUploadAction.Status.SUCCESSFUL : TeamscaleUploadAction.Status.FAILED,
+                result.getSummary());
+        if (!result.isSuccessful()) {
+            if (globalConfiguration.isSpoolFailedUploads()) {
+                if (reports == null) {
+                    // The reports were only collected on the agent
+                    reports = hashedReports != null
+                            ? hashedReports
+                            : workspace.act(new CoverageCollectingFileCallable(scanner, listener))
+                                    .getReports();
+                }
+                UploadSpool.get().add(run, null, parameters, workspace, reports);
+                listener.getLogger().println(INFO + "The reports were spooled and will be uploaded in the background");
+            }
+            setResult(run, resultingResultOnUploadFailure);
+        }
+    }
+
+    private UploadParameters createParameters(
+            PartitionUpload upload,
+            StandardUsernamePasswordCredentials credential,
+            String rev,
+            Run<?, ?> run,
+            TeamscaleUploadPluginConfiguration globalConfiguration) {
+        RetryPolicy retryPolicy = new RetryPolicy(
+                maxUploadAttempts > 0 ? maxUploadAttempts : globalConfiguration.getMaxUploadAttempts(),
+                TimeUnit.SECONDS.toMillis(
+                        retryBaseDelayInSeconds > 0
+                                ? retryBaseDelayInSeconds
+                                : globalConfiguration.getRetryBaseDelayInSeconds()));
+        return new UploadParameters.Builder(
+                        getUrl(),
+                        credential.getUsername(),
+                        credential.getPassword(),
+                        getTeamscaleProject(),
+                        upload.getPartition(),
+                        upload.getReportFormatId(),
+                        rev)
+                .repository(getRepository())
+                .uploadMessage(getUploadMessage())
+                .compressReports(compressReports)
+                .batchLimits(maxBatchSizeInMb * BYTES_PER_MB, maxReportsPerBatch)
+                .uploadConcurrency(
+                        uploadConcurrency > 0 ? uploadConcurrency : globalConfiguration.getUploadConcurrency())
+                .maxConcurrentUploads(globalConfiguration.getMaxConcurrentUploads(getUrl()))
+                .maxUploadBytesPerSecond(globalConfiguration.getMaxUploadRateInMbPerSecond(getUrl()) * BYTES_PER_MB)
+                .schedulingQueue(getSchedulingQueue(run.getParent()))
+                .retryPolicy(retryPolicy)
+                .circuitBreaker(
+                        globalConfiguration.getCircuitBreakerFailureThreshold(),
+                        TimeUnit.SECONDS.toMillis(globalConfiguration.getCircuitBreakerCooldownInSeconds()))
+                .clientOptions(globalConfiguration.getClientOptions(getUrl()))
+                .preprocessor(
+                        preprocessReports ? new ReportPreprocessor(upload.getReportFormatId(), pathMappings) : null)
+                .mergeReports(mergeReports)
+                .build();
+    }
+
+    private ReportScanner createScanner(
+            PartitionUpload upload, TeamscaleUploadPluginConfiguration globalConfiguration) {
+        return new ReportScanner(
+                ReportScanner.splitPatterns(upload.getIncludePattern()),
+                ReportScanner.splitPatterns(excludePattern),
+                false,
+                globalConfiguration.getMaxReportSizeInMb() * BYTES_PER_MB,
+                globalConfiguration.getMaxTotalReportSizeInMb() * BYTES_PER_MB,
+                globalConfiguration.getReportSizeLimitPolicyEnum() != ReportSizeLimitPolicy.SKIP);
+    }
+
+    private TeamscaleUploadAction createAction(
+            UploadParameters parameters, TeamscaleUploadPluginConfiguration globalConfiguration) {
+        return new TeamscaleUploadAction(parameters, getResultOnUploadFailure(globalConfiguration), asyncUpload);
+    }
+
+    private TeamscaleUploadPluginResult getResultOnUploadFailure(
+            TeamscaleUploadPluginConfiguration globalConfiguration) {
+        if (resultOnUploadFailure == null) {
             // If the job is set to inherit, use global configuration
-            resultingResultOnUploadFailure =
-                    TeamscaleUploadPluginConfiguration.get().getResultOnUploadFailureEnum();
+            return globalConfiguration.getResultOnUploadFailureEnum();
         }
-        String logLevel;
-        if (resultingResultOnUploadFailure == TeamscaleUploadPluginResult.IGNORE) {
-            logLevel = INFO;
+        return resultOnUploadFailure;
+    }
+
+    private TeamscaleUploadPluginResult getResultOnSizeLimit(TeamscaleUploadPluginConfiguration globalConfiguration) {
+        if (globalConfiguration.getReportSizeLimitPolicyEnum() == ReportSizeLimitPolicy.FAIL) {
+            return TeamscaleUploadPluginResult.FAILURE;
+        }
+        return getResultOnUploadFailure(globalConfiguration);
+    }
+
+    private static void logSizeLimitExceeded(
+            TaskListener listener,
+            ReportScanner.SizeLimitExceededException e,
+            TeamscaleUploadPluginResult resultOnSizeLimit) {
+        listener.getLogger()
+                .println((resultOnSizeLimit == TeamscaleUploadPluginResult.IGNORE ? INFO : ERROR) + e.getMessage()
+                        + ", the upload was aborted");
+    }
+
+    /**
+     * Scans the workspace and records the scan in the {@link UploadMetrics} and the action.
+     *
+     * @param scan the result of an earlier scan for the reports of several partitions, which is recorded in the
+     *             metrics already, or {@code null} if the workspace is scanned now.
+     */
+    private static List<ReportFile> collectReports(
+            FilePath workspace,
+            ReportScanner scanner,
+            ReportScanner.@Nullable Result scan,
+            UploadParameters parameters,
+            TeamscaleUploadAction action,
+            TaskListener listener)
+            throws IOException, InterruptedException {
+        ReportScanner.Result scanResult;
+        if (scan != null) {
+            scanResult = scanner.select(scan);
         } else {
-            logLevel = ERROR;
+            scanResult = workspace.act(new CoverageCollectingFileCallable(scanner, listener));
+            UploadMetrics.recordScan(parameters, scanResult.getStatistics());
         }
-        if (!uploadReports(listener.getLogger(), logLevel, reports, rev)) {
-            switch (resultingResultOnUploadFailure) {
-                case IGNORE:
-                    break;
-                case UNSTABLE:
-                    run.setResult(Result.UNSTABLE);
-                    break;
-                case FAILURE:
-                    run.setResult(Result.FAILURE);
-                    break;
+        action.recordScan(scanResult.getReports(), scanResult.getStatistics());
+        return scanResult.getReports();
+    }
+
+    /** Completes the action of a synchronous upload and attaches it to the build. */
+    private static void recordOutcome(
+            Run<?, ?> run, TeamscaleUploadAction action, TeamscaleUploadAction.Status status, String summary) {
+        action.complete(status, summary);
+        run.addAction(action);
+    }
+
+    /**
+     * The queue in which the requests of the job wait for an upload slot: its folder, or the job itself if it is not
+     * in a folder. Branches of a multibranch project share the queue of the project.
+     */
+    private static String getSchedulingQueue(Job<?, ?> job) {
+        ItemGroup<?> parent = job.getParent();
+        if (parent instanceof Item) {
+            return ((Item) parent).getFullName();
+        }
+        return job.getFullName();
+    }
+
+    private static void setResult(Run<?, ?> run, TeamscaleUploadPluginResult result) {
+        switch (result) {
+            case IGNORE:
+                break;
+            case UNSTABLE:
+                run.setResult(Result.UNSTABLE);
+                break;
+            case FAILURE:
+                run.setResult(Result.FAILURE);
+                break;
+        }
+    }
+
+    /**
+     * Copies the reports from the agent to a temporary directory on the controller in one transfer and uploads them
+     * from there, so that retries replay the request bodies from the local disk instead of transferring the reports
+     * from the agent again.
+     */
+    private UploadResult uploadFromLocalCopy(
+            ReportUploader uploader,
+            FilePath workspace,
+            List<ReportFile> reports,
+            TeamscaleUploadAction action,
+            TaskListener listener)
+            throws IOException, InterruptedException {
+        FilePath localCopy = new FilePath(Files.createTempDirectory("teamscale-upload").toFile());
+        try {
+            long copyStartTime = System.nanoTime();
+            copyReports(workspace, reports, localCopy);
+            action.addTransferTimeInMs(TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - copyStartTime));
+            return uploader.upload(localCopy, reports);
+        } finally {
+            try {
+                localCopy.deleteRecursive();
+            } catch (IOException e) {
+                listener.getLogger()
+                        .println(INFO + "Failed to delete temporary copy of the reports: " + e.getMessage());
             }
         }
     }
 
+    /**
+     * Copies the reports into the {@link UploadSpool}, which uploads them in the background, so the build does not
+     * wait for the upload. The outcome is recorded in a {@link TeamscaleUploadAction}, which
+     * {@link TeamscaleAwaitUploadsBuilder} can wait for.
+     */
+    private void queueUpload(
+            Run<?, ?> run,
+            TeamscaleUploadAction action,
+            FilePath workspace,
+            List<ReportFile> reports,
+            UploadParameters parameters,
+            TaskListener listener)
+            throws IOException, InterruptedException {
+        long copyStartTime = System.nanoTime();
+        UploadSpool.get().add(run, action, parameters, workspace, reports);
+        action.addTransferTimeInMs(TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - copyStartTime));
+        listener.getLogger()
+                .println(INFO + "Queued asynchronous upload of " + reports.size() + " reports, see "
+                        + UploadSpool.LOG_FILE_NAME + " in the build directory for details");
+    }
+
+    /** Copies the reports from the workspace to the given directory in a single transfer. */
+    static void copyReports(FilePath workspace, List<ReportFile> reports, FilePath target)
+            throws IOException, InterruptedException {
+        String fileMask = reports.stream().map(ReportFile::getPath).collect(Collectors.joining(","));
+        workspace.copyRecursiveTo(fileMask, target);
+    }
+
     /**
      * Retrieves the SCM revision.
      * Either takes the parameter from the constructor if it matches certain criteria or checks the environment variables for SVN or GIT revisions.
@@ -355,60 +1086,6 @@ public class TeamscaleUploadBuilder extends Notifier implements SimpleBuildStep
         return envVars.get("SVN_REVISION");
     }
 
-    private boolean uploadReports(PrintStream logger, String logLevel, Map<String, String> reports, String revision) {
-        List<MultipartBody.Part> parts = new ArrayList<>();
-        for (Map.Entry<String, String> filenameAndReportContent : reports.entrySet()) {
-            parts.add(MultipartBody.Part.createFormData(
-                    "report",
-                    filenameAndReportContent.getKey(),
-                    RequestBody.create(filenameAndReportContent.getValue(), MultipartBody.FORM)));
-        }
-
-        Call<ResponseBody> apiRequest = api.uploadExternalReports(
-                getTeamscaleProject(),
-                getReportFormatId().toUpperCase(),
-                null,
-                revision,
-                getRepository(),
-                true,
-                getPartition(),
-                getUploadMessage(),
-                parts);
-        try {
-            Request request = apiRequest.request();
-
-            long requestStartTime = System.nanoTime();
-            logger.print(TeamscaleUploadBuilder.INFO + request.method() + " - ");
-            logger.println(request.url());
-
-            Response<ResponseBody> response = apiRequest.execute();
-
-            long requestEndTime = System.nanoTime();
-
-            double requestTimeInMs = (requestEndTime - requestStartTime) / 1e6d;
-
-            if (!response.isSuccessful()) {
-                try (ResponseBody body = response.errorBody()) {
-                    logger.printf(
-                            "%sResponse - %s %s in %.1fms body:%n%s%n",
-                            logLevel,
-                            response.code(),
-                            response.message(),
-                            requestTimeInMs,
-                            body != null ? body.string() : "Empty");
-                }
-                return false;
-            } else {
-                logger.println(TeamscaleUploadBuilder.INFO
-                        + String.format("Response - %s in %.1fms", response.code(), requestTimeInMs));
-                return true;
-            }
-        } catch (IOException e) {
-            logger.println(logLevel + "Failed to upload reports to Teamscale: " + e.getMessage());
-            return false;
-        }
-    }
-
     /**
      * Description/Hint provided if user does not fill out the plugin fields correctly.
      */
@@ -595,28 +1272,30 @@ public class TeamscaleUploadBuilder extends Notifier implements SimpleBuildStep
         }
     }
 
-    private static class CoverageCollectingFileCallable extends MasterToSlaveFileCallable<Map<String, String>> {
+    /**
+     * Finds the reports matching the include and exclude patterns. Only their paths, sizes and optionally content
+     * hashes are returned together with statistics of the scan, the contents are streamed from the workspace during
+     * the upload.
+     */
+    static class CoverageCollectingFileCallable extends MasterToSlaveFileCallable<ReportScanner.Result> {
 
         private static final long serialVersionUID = 1L;
 
-        private final String[] includes;
+        private final ReportScanner scanner;
 
-        public CoverageCollectingFileCallable(String[] includes) {
-            this.includes = includes;
+        private final TaskListener listener;
+
+        CoverageCollectingFileCallable(ReportScanner scanner, TaskListener listener) {
+            this.scanner = scanner;
+            this.listener = listener;
         }
 
         @Override
-        public Map<String, String> invoke(File directory, VirtualChannel virtualChannel)
+        public ReportScanner.Result invoke(File directory, VirtualChannel virtualChannel)
                 throws IOException, InterruptedException {
-            DirectoryScanner directoryScanner = new DirectoryScanner();
-            directoryScanner.setBasedir(directory);
-            directoryScanner.setIncludes(includes);
-            directoryScanner.scan();
-            Map<String, String> reports = new HashMap<>();
-            for (String file : directoryScanner.getIncludedFiles()) {
-                reports.put(file, FileUtils.readFileToString(new File(directory, file), StandardCharsets.UTF_8));
-            }
-            return reports;
+            ReportScanner.Result result = scanner.scan(directory);
+            result.log(listener.getLogger());
+            return result;
         }
     }
 }
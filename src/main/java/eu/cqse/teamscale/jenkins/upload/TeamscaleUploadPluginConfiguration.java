@@ -2,13 +2,20 @@ package eu.cqse.teamscale.jenkins.upload;
 
 import hudson.Extension;
 import hudson.ExtensionList;
+import hudson.model.Descriptor;
 import hudson.util.FormValidation;
 import hudson.util.ListBoxModel;
+import java.time.Duration;
+import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.List;
 import java.util.stream.Collectors;
 import jenkins.model.GlobalConfiguration;
+import net.sf.json.JSONObject;
+import org.jspecify.annotations.Nullable;
 import org.kohsuke.stapler.DataBoundSetter;
 import org.kohsuke.stapler.QueryParameter;
+import org.kohsuke.stapler.StaplerRequest2;
 import org.kohsuke.stapler.verb.POST;
 
 /**
@@ -25,12 +32,341 @@ public class TeamscaleUploadPluginConfiguration extends GlobalConfiguration {
 
     private TeamscaleUploadPluginResult resultOnUploadFailure;
 
+    /** Default for {@link #maxConcurrentUploads}. */
+    static final int DEFAULT_MAX_CONCURRENT_UPLOADS = 10;
+
+    /** Number of batches of one upload that are sent concurrently, unless overridden by the job. */
+    private int uploadConcurrency = 1;
+
+    /** Maximum number of requests sent concurrently to one Teamscale server by all builds, see {@link UploadSlots}. */
+    private int maxConcurrentUploads = DEFAULT_MAX_CONCURRENT_UPLOADS;
+
+    /** Maximum rate at which reports are sent to one Teamscale server, {@code 0} means no limit. */
+    private int maxUploadRateInMbPerSecond;
+
+    /** Timeout for establishing a connection to Teamscale. */
+    private int connectTimeoutInSeconds = 10;
+
+    /** Timeout for each read while waiting for the response of Teamscale. */
+    private int readTimeoutInSeconds = 60;
+
+    /** Timeout for each write while sending the reports to Teamscale. */
+    private int writeTimeoutInSeconds = 60;
+
+    /** Timeout of a whole request including sending the reports, {@code 0} means no limit. */
+    private int callTimeoutInSeconds;
+
+    /** Settings that override the above limits and timeouts for single Teamscale servers. */
+    private List<TeamscaleServerSettings> serverSettings = new ArrayList<>();
+
+    /** Number of attempts per upload request, unless overridden by the job. {@code 1} disables retries. */
+    private int maxUploadAttempts = 1;
+
+    /** Delay before the first retry, unless overridden by the job. Doubled for every further retry. */
+    private int retryBaseDelayInSeconds = 2;
+
+    /** Whether failed synchronous uploads are put into the {@link UploadSpool} to be retried in the background. */
+    private boolean spoolFailedUploads;
+
+    /** Default for {@link #spoolThreads}. */
+    static final int DEFAULT_SPOOL_THREADS = 2;
+
+    /** Number of entries of the {@link UploadSpool} that are uploaded at the same time. */
+    private int spoolThreads = DEFAULT_SPOOL_THREADS;
+
+    /** Debounce window in which uploads of the same revision and partition are coalesced, {@code 0} disables it. */
+    private int coalescingWindowInSeconds;
+
+    /** Reports larger than this are not uploaded, {@code 0} means no limit. */
+    private int maxReportSizeInMb;
+
+    /** Maximum total size of the reports of one upload, {@code 0} means no limit. */
+    private int maxTotalReportSizeInMb;
+
+    private ReportSizeLimitPolicy reportSizeLimitPolicy = ReportSizeLimitPolicy.SKIP;
+
+    /** Consecutive failed requests to a server after which its {@link CircuitBreaker} opens, {@code 0} disables it. */
+    private int circuitBreakerFailureThreshold;
+
+    /** How long a {@link CircuitBreaker} stays open before a probe request is sent. */
+    private int circuitBreakerCooldownInSeconds = 60;
+
     public TeamscaleUploadPluginConfiguration() {
         resultNoReports = TeamscaleUploadPluginResult.IGNORE;
         resultOnUploadFailure = TeamscaleUploadPluginResult.IGNORE;
         load();
     }
 
+    @Override
+    public boolean configure(StaplerRequest2 req, JSONObject json) throws Descriptor.FormException {
+        // Removing the last server from the form omits the field, so its setter would not be called
+        serverSettings = new ArrayList<>();
+        return super.configure(req, json);
+    }
+
+    public int getUploadConcurrency() {
+        return uploadConcurrency;
+    }
+
+    @SuppressWarnings("unused") // used by stapler web framework
+    @DataBoundSetter
+    public void setUploadConcurrency(int uploadConcurrency) {
+        this.uploadConcurrency = Math.max(1, uploadConcurrency);
+        save();
+    }
+
+    public int getMaxConcurrentUploads() {
+        return maxConcurrentUploads;
+    }
+
+    @SuppressWarnings("unused") // used by stapler web framework
+    @DataBoundSetter
+    public void setMaxConcurrentUploads(int maxConcurrentUploads) {
+        this.maxConcurrentUploads = Math.max(1, maxConcurrentUploads);
+        save();
+    }
+
+    /** Maximum number of concurrent requests to the given Teamscale server. */
+    public int getMaxConcurrentUploads(String url) {
+        TeamscaleServerSettings settings = getServerSettings(url);
+        return settings != null
+                ? orDefault(settings.getMaxConcurrentUploads(), maxConcurrentUploads)
+                : maxConcurrentUploads;
+    }
+
+    public int getMaxUploadRateInMbPerSecond() {
+        return maxUploadRateInMbPerSecond;
+    }
+
+    @SuppressWarnings("unused") // used by stapler web framework
+    @DataBoundSetter
+    public void setMaxUploadRateInMbPerSecond(int maxUploadRateInMbPerSecond) {
+        this.maxUploadRateInMbPerSecond = Math.max(0, maxUploadRateInMbPerSecond);
+        save();
+    }
+
+    /** Maximum upload rate to the given Teamscale server, {@code 0} means no limit. */
+    public int getMaxUploadRateInMbPerSecond(String url) {
+        TeamscaleServerSettings settings = getServerSettings(url);
+        return settings != null
+                ? orDefault(settings.getMaxUploadRateInMbPerSecond(), maxUploadRateInMbPerSecond)
+                : maxUploadRateInMbPerSecond;
+    }
+
+    public int getConnectTimeoutInSeconds() {
+        return connectTimeoutInSeconds;
+    }
+
+    @SuppressWarnings("unused") // used by stapler web framework
+    @DataBoundSetter
+    public void setConnectTimeoutInSeconds(int connectTimeoutInSeconds) {
+        this.connectTimeoutInSeconds = Math.max(1, connectTimeoutInSeconds);
+        save();
+    }
+
+    public int getReadTimeoutInSeconds() {
+        return readTimeoutInSeconds;
+    }
+
+    @SuppressWarnings("unused") // used by stapler web framework
+    @DataBoundSetter
+    public void setReadTimeoutInSeconds(int readTimeoutInSeconds) {
+        this.readTimeoutInSeconds = Math.max(1, readTimeoutInSeconds);
+        save();
+    }
+
+    public int getWriteTimeoutInSeconds() {
+        return writeTimeoutInSeconds;
+    }
+
+    @SuppressWarnings("unused") // used by stapler web framework
+    @DataBoundSetter
+    public void setWriteTimeoutInSeconds(int writeTimeoutInSeconds) {
+        this.writeTimeoutInSeconds = Math.max(1, writeTimeoutInSeconds);
+        save();
+    }
+
+    public int getCallTimeoutInSeconds() {
+        return callTimeoutInSeconds;
+    }
+
+    @SuppressWarnings("unused") // used by stapler web framework
+    @DataBoundSetter
+    public void setCallTimeoutInSeconds(int callTimeoutInSeconds) {
+        this.callTimeoutInSeconds = Math.max(0, callTimeoutInSeconds);
+        save();
+    }
+
+    /** Timeouts and protocols of the connections to the given Teamscale server. */
+    TeamscaleClientOptions getClientOptions(String url) {
+        TeamscaleServerSettings settings = getServerSettings(url);
+        if (settings == null) {
+            settings = new TeamscaleServerSettings(url);
+        }
+        return new TeamscaleClientOptions(
+                Duration.ofSeconds(orDefault(settings.getConnectTimeoutInSeconds(), connectTimeoutInSeconds)),
+                Duration.ofSeconds(orDefault(settings.getReadTimeoutInSeconds(), readTimeoutInSeconds)),
+                Duration.ofSeconds(orDefault(settings.getWriteTimeoutInSeconds(), writeTimeoutInSeconds)),
+                Duration.ofSeconds(orDefault(settings.getCallTimeoutInSeconds(), callTimeoutInSeconds)),
+                settings.isHttp2PriorKnowledge());
+    }
+
+    /** A server setting of {@code 0} inherits the global one. */
+    private static int orDefault(int serverValue, int globalValue) {
+        return serverValue > 0 ? serverValue : globalValue;
+    }
+
+    public List<TeamscaleServerSettings> getServerSettings() {
+        return serverSettings;
+    }
+
+    @SuppressWarnings("unused") // used by stapler web framework
+    @DataBoundSetter
+    public void setServerSettings(List<TeamscaleServerSettings> serverSettings) {
+        this.serverSettings = new ArrayList<>(serverSettings);
+        save();
+    }
+
+    /** The settings of the given Teamscale server, or {@code null} if it uses the defaults. */
+    @Nullable
+    public TeamscaleServerSettings getServerSettings(String url) {
+        for (TeamscaleServerSettings settings : serverSettings) {
+            if (settings.matches(url)) {
+                return settings;
+            }
+        }
+        return null;
+    }
+
+    public int getMaxUploadAttempts() {
+        return maxUploadAttempts;
+    }
+
+    @SuppressWarnings("unused") // used by stapler web framework
+    @DataBoundSetter
+    public void setMaxUploadAttempts(int maxUploadAttempts) {
+        this.maxUploadAttempts = Math.max(1, maxUploadAttempts);
+        save();
+    }
+
+    public int getRetryBaseDelayInSeconds() {
+        return retryBaseDelayInSeconds;
+    }
+
+    @SuppressWarnings("unused") // used by stapler web framework
+    @DataBoundSetter
+    public void setRetryBaseDelayInSeconds(int retryBaseDelayInSeconds) {
+        this.retryBaseDelayInSeconds = Math.max(0, retryBaseDelayInSeconds);
+        save();
+    }
+
+    public boolean isSpoolFailedUploads() {
+        return spoolFailedUploads;
+    }
+
+    @SuppressWarnings("unused") // used by stapler web framework
+    @DataBoundSetter
+    public void setSpoolFailedUploads(boolean spoolFailedUploads) {
+        this.spoolFailedUploads = spoolFailedUploads;
+        save();
+    }
+
+    public int getSpoolThreads() {
+        return spoolThreads;
+    }
+
+    @SuppressWarnings("unused") // used by stapler web framework
+    @DataBoundSetter
+    public void setSpoolThreads(int spoolThreads) {
+        this.spoolThreads = Math.max(1, spoolThreads);
+        save();
+    }
+
+    public int getCoalescingWindowInSeconds() {
+        return coalescingWindowInSeconds;
+    }
+
+    @SuppressWarnings("unused") // used by stapler web framework
+    @DataBoundSetter
+    public void setCoalescingWindowInSeconds(int coalescingWindowInSeconds) {
+        this.coalescingWindowInSeconds = Math.max(0, coalescingWindowInSeconds);
+        save();
+    }
+
+    public int getMaxReportSizeInMb() {
+        return maxReportSizeInMb;
+    }
+
+    @SuppressWarnings("unused") // used by stapler web framework
+    @DataBoundSetter
+    public void setMaxReportSizeInMb(int maxReportSizeInMb) {
+        this.maxReportSizeInMb = Math.max(0, maxReportSizeInMb);
+        save();
+    }
+
+    public int getMaxTotalReportSizeInMb() {
+        return maxTotalReportSizeInMb;
+    }
+
+    @SuppressWarnings("unused") // used by stapler web framework
+    @DataBoundSetter
+    public void setMaxTotalReportSizeInMb(int maxTotalReportSizeInMb) {
+        this.maxTotalReportSizeInMb = Math.max(0, maxTotalReportSizeInMb);
+        save();
+    }
+
+    public int getCircuitBreakerFailureThreshold() {
+        return circuitBreakerFailureThreshold;
+    }
+
+    @SuppressWarnings("unused") // used by stapler web framework
+    @DataBoundSetter
+    public void setCircuitBreakerFailureThreshold(int circuitBreakerFailureThreshold) {
+        this.circuitBreakerFailureThreshold = Math.max(0, circuitBreakerFailureThreshold);
+        save();
+    }
+
+    public int getCircuitBreakerCooldownInSeconds() {
+        return circuitBreakerCooldownInSeconds;
+    }
+
+    @SuppressWarnings("unused") // used by stapler web framework
+    @DataBoundSetter
+    public void setCircuitBreakerCooldownInSeconds(int circuitBreakerCooldownInSeconds) {
+        this.circuitBreakerCooldownInSeconds = Math.max(1, circuitBreakerCooldownInSeconds);
+        save();
+    }
+
+    /** The circuit breakers of the Teamscale servers that the controller sent requests to. */
+    @SuppressWarnings("unused") // used by stapler web framework
+    public List<CircuitBreaker> getCircuitBreakers() {
+        return CircuitBreaker.getAll();
+    }
+
+    @SuppressWarnings("unused") // used by stapler web framework
+    public String getReportSizeLimitPolicy() {
+        return reportSizeLimitPolicy.toString();
+    }
+
+    public ReportSizeLimitPolicy getReportSizeLimitPolicyEnum() {
+        return reportSizeLimitPolicy;
+    }
+
+    @SuppressWarnings("unused") // used by stapler web framework
+    @DataBoundSetter
+    public void setReportSizeLimitPolicy(String reportSizeLimitPolicy) {
+        this.reportSizeLimitPolicy = ReportSizeLimitPolicy.valueOf(reportSizeLimitPolicy);
+        save();
+    }
+
+    @POST
+    @SuppressWarnings({"lgtm[jenkins/no-permission-check]", "unused"}) // secure because no side effects
+    public ListBoxModel doFillReportSizeLimitPolicyItems() {
+        return new ListBoxModel(Arrays.stream(ReportSizeLimitPolicy.values())
+                .map(e -> new ListBoxModel.Option(e.toString()))
+                .collect(Collectors.toList()));
+    }
+
     @SuppressWarnings("unused") // used by stapler web framework
     public String getResultOnUploadFailure() {
         return resultOnUploadFailure.toString();
@@ -0,0 +1,169 @@
+package eu.cqse.teamscale.jenkins.upload;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.TreeSet;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.ReentrantLock;
+import org.jspecify.annotations.Nullable;
+
+/**
+ * Coalesces synchronous uploads of the same {@linkplain UploadParameters#getCoalescingKey() key} on the controller.
+ * Each upload waits for the debounce window first. If a newer upload of the same key arrives in the meantime, the
+ * older one waits for it and is skipped once it succeeded, since the newer report set replaces it in Teamscale anyway.
+ * If the newer upload fails, the older one is uploaded after all, so that its data is not lost. Uploads of the same
+ * key are never in flight at the same time, so the newest report set is always the last one to arrive at Teamscale.
+ * <p>
+ * An upload only waits for newer uploads that are waiting for their turn or in flight themselves, never for uploads
+ * that are merely registered. A step that uploads to several partitions registers all of them up front but awaits
+ * them one after the other, so waiting for its registered uploads could deadlock: with the step itself if a partition
+ * is uploaded twice, or with another step that uploads the same partitions in a different order. Waits thus always go
+ * from older to newer active uploads and cannot form a cycle.
+ */
+final class UploadCoalescer {
+
+    /** Guarded by the class lock. */
+    private static final Map<String, Slot> SLOTS = new HashMap<>();
+
+    /** Guarded by the class lock. */
+    private static long lastTicket;
+
+    private UploadCoalescer() {}
+
+    /**
+     * Registers an upload, which starts its debounce window. The windows of several uploads, e.g. to several
+     * partitions, thus elapse concurrently if they are all registered before the first one awaits its turn.
+     *
+     * @param key        identifies uploads that replace each other.
+     * @param windowInMs debounce window.
+     * @return the ticket, which must be {@linkplain Ticket#awaitTurn() turned in} or {@linkplain Ticket#cancel()
+     * cancelled}, otherwise older uploads of the same key wait for it forever.
+     */
+    static synchronized Ticket register(String key, long windowInMs) {
+        Slot slot = SLOTS.computeIfAbsent(key, k -> new Slot());
+        long number = ++lastTicket;
+        slot.pendingTickets.add(number);
+        return new Ticket(key, slot, number, System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(windowInMs));
+    }
+
+    private static final class Slot {
+
+        private final ReentrantLock inFlight = new ReentrantLock(true);
+
+        /** Tickets of the uploads that have neither finished nor been skipped. Guarded by the class lock. */
+        private final TreeSet<Long> pendingTickets = new TreeSet<>();
+
+        /** Pending tickets whose uploads wait for their turn or are in flight. Guarded by the class lock. */
+        private final TreeSet<Long> activeTickets = new TreeSet<>();
+
+        /** Newest ticket whose upload succeeded, {@code 0} if none. Guarded by the class lock. */
+        private long succeededTicket;
+    }
+
+    /** A registered upload that has not been started yet. */
+    static final class Ticket {
+
+        private final String key;
+        private final Slot slot;
+        private final long number;
+
+        /** {@link System#nanoTime()} at which the debounce window ends. */
+        private final long windowEndNanos;
+
+        /** Guarded by the class lock of {@link UploadCoalescer}. */
+        private boolean released;
+
+        private Ticket(String key, Slot slot, long number, long windowEndNanos) {
+            this.key = key;
+            this.slot = slot;
+            this.number = number;
+            this.windowEndNanos = windowEndNanos;
+        }
+
+        /**
+         * Waits for the rest of the debounce window, for newer uploads of the same key that are waiting for their turn
+         * themselves and for in-flight uploads of the same key.
+         *
+         * @return the turn to upload, which must be closed after the upload, or {@code null} if a newer upload of the
+         * same key succeeded.
+         */
+        @Nullable
+        Turn awaitTurn() throws InterruptedException {
+            boolean proceed = false;
+            synchronized (UploadCoalescer.class) {
+                if (!released) {
+                    slot.activeTickets.add(number);
+                }
+            }
+            try {
+                long remainingNanos = windowEndNanos - System.nanoTime();
+                if (remainingNanos > 0) {
+                    TimeUnit.NANOSECONDS.sleep(remainingNanos);
+                }
+                synchronized (UploadCoalescer.class) {
+                    // Only a successful newer upload replaces the data of this one
+                    while (slot.activeTickets.higher(number) != null) {
+                        UploadCoalescer.class.wait();
+                    }
+                    if (slot.succeededTicket > number) {
+                        return null;
+                    }
+                }
+                slot.inFlight.lockInterruptibly();
+                proceed = true;
+                return new Turn(this);
+            } finally {
+                if (!proceed) {
+                    release(false);
+                }
+            }
+        }
+
+        /** Gives up the ticket without uploading, unless it has already been turned in. */
+        void cancel() {
+            release(false);
+        }
+
+        private void release(boolean succeeded) {
+            synchronized (UploadCoalescer.class) {
+                if (released) {
+                    return;
+                }
+                released = true;
+                if (succeeded) {
+                    slot.succeededTicket = Math.max(slot.succeededTicket, number);
+                }
+                slot.pendingTickets.remove(number);
+                slot.activeTickets.remove(number);
+                if (slot.pendingTickets.isEmpty()) {
+                    SLOTS.remove(key);
+                }
+                // Older uploads of the key may be waiting for this one
+                UploadCoalescer.class.notifyAll();
+            }
+        }
+    }
+
+    /** Permission to upload, held while the upload is in flight. */
+    static final class Turn implements AutoCloseable {
+
+        private final Ticket ticket;
+
+        private boolean succeeded;
+
+        private Turn(Ticket ticket) {
+            this.ticket = ticket;
+        }
+
+        /** Records that the reports are in Teamscale, so that older uploads of the same key can be skipped. */
+        void succeeded() {
+            succeeded = true;
+        }
+
+        @Override
+        public void close() {
+            ticket.slot.inFlight.unlock();
+            ticket.release(succeeded);
+        }
+    }
+}
@@ -0,0 +1,148 @@
+package eu.cqse.teamscale.jenkins.upload;
+
+import hudson.XmlFile;
+import hudson.model.Job;
+import java.io.File;
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import jenkins.model.Jenkins;
+
+/**
+ * Per-job index of the content hashes of the reports that were last uploaded successfully, per Teamscale server,
+ * project, partition and repository. Stored as XML in the job directory.
+ * <p>
+ * An upload can only be skipped as a whole: each upload replaces all data of the partition at its revision, so
+ * dropping single unchanged reports from an upload would remove their data from Teamscale.
+ */
+class UploadIndex {
+
+    private static final Logger LOGGER = Logger.getLogger(UploadIndex.class.getName());
+
+    private static final String FILE_NAME = "teamscale-upload-index.xml";
+
+    /** Number of partitions remembered per job, the least recently uploaded ones are forgotten first. */
+    private static final int MAX_PARTITIONS = 100;
+
+    /** Last uploads by {@link #keyOf(UploadParameters)}, least recently uploaded first. */
+    private final LinkedHashMap<String, Upload> uploads = new LinkedHashMap<>();
+
+    /** Loads the index of the given job, or returns an empty index if there is none yet. */
+    static UploadIndex load(Job<?, ?> job) {
+        return load(job.getRootDir());
+    }
+
+    static synchronized UploadIndex load(File directory) {
+        XmlFile xmlFile = getXmlFile(directory);
+        if (xmlFile.exists()) {
+            try {
+                return (UploadIndex) xmlFile.read();
+            } catch (IOException | RuntimeException e) {
+                LOGGER.log(Level.WARNING, "Failed to read upload index " + xmlFile + ", starting over", e);
+            }
+        }
+        return new UploadIndex();
+    }
+
+    /**
+     * Records a successful upload in the index of the given job. Reports without a hash are not recorded.
+     * Concurrent builds of the same job may record uploads at the same time, so the index is re-read first.
+     */
+    static void record(Job<?, ?> job, UploadParameters parameters, List<ReportFile> reports) {
+        record(job.getRootDir(), parameters, reports);
+    }
+
+    static synchronized void record(File directory, UploadParameters parameters, List<ReportFile> reports) {
+        Map<String, String> hashes = new HashMap<>();
+        for (ReportFile report : reports) {
+            if (report.getHash() == null) {
+                return;
+            }
+            hashes.put(report.getPath(), report.getHash());
+        }
+        UploadIndex index = load(directory);
+        String key = keyOf(parameters);
+        index.uploads.remove(key);
+        index.uploads.put(key, new Upload(parameters.getRevision(), hashes));
+        Iterator<String> keys = index.uploads.keySet().iterator();
+        while (index.uploads.size() > MAX_PARTITIONS) {
+            keys.next();
+            keys.remove();
+        }
+        try {
+            getXmlFile(directory).write(index);
+        } catch (IOException e) {
+            LOGGER.log(Level.WARNING, "Failed to write upload index " + getXmlFile(directory), e);
+        }
+    }
+
+    private static XmlFile getXmlFile(File directory) {
+        return new XmlFile(Jenkins.XSTREAM2, new File(directory, FILE_NAME));
+    }
+
+    /** The revision is not part of the key, so reports can be compared with the last upload of an older revision. */
+    private static String keyOf(UploadParameters parameters) {
+        return String.join(
+                "\n",
+                parameters.getUrl(),
+                parameters.getTeamscaleProject(),
+                parameters.getPartition(),
+                String.valueOf(parameters.getRepository()));
+    }
+
+    /**
+     * Compares the reports with the last upload to the same partition.
+     *
+     * @return the number of reports whose contents are identical to the last upload, regardless of its revision.
+     */
+    int countUnchanged(UploadParameters parameters, List<ReportFile> reports) {
+        Upload upload = uploads.get(keyOf(parameters));
+        if (upload == null) {
+            return 0;
+        }
+        int unchanged = 0;
+        for (ReportFile report : reports) {
+            if (report.getHash() != null && report.getHash().equals(upload.hashes.get(report.getPath()))) {
+                unchanged++;
+            }
+        }
+        return unchanged;
+    }
+
+    /**
+     * Whether exactly these reports were already uploaded successfully to the same revision and partition, so
+     * uploading them again would not change anything in Teamscale.
+     */
+    boolean isAlreadyUploaded(UploadParameters parameters, List<ReportFile> reports) {
+        Upload upload = uploads.get(keyOf(parameters));
+        return upload != null
+                && upload.revision.equals(parameters.getRevision())
+                && upload.hashes.size() == reports.size()
+                && countUnchanged(parameters, reports) == reports.size();
+    }
+
+    /** Hit rate for the build log. */
+    static String describeHitRate(int unchanged, int total) {
+        return String.format(
+                "%d of %d reports unchanged since the last upload (%.1f%% hit rate)",
+                unchanged, total, total == 0 ? 0 : 100d * unchanged / total);
+    }
+
+    private static final class Upload {
+
+        private final String revision;
+
+        /** Content hashes by report path. */
+        private final Map<String, String> hashes;
+
+        private Upload(String revision, Map<String, String> hashes) {
+            this.revision = revision;
+            this.hashes = hashes;
+        }
+    }
+}
@@ -0,0 +1,113 @@
+package eu.cqse.teamscale.jenkins.upload;
+
+import hudson.ExtensionList;
+import hudson.ExtensionPoint;
+import java.util.concurrent.atomic.AtomicInteger;
+import okhttp3.HttpUrl;
+
+/**
+ * Publishes measurements of uploads, on the controller only. Measurements taken on agents are sent back as part of
+ * the {@link UploadResult} and published from there.
+ * <p>
+ * The measurements are passed on to all {@link Sink} extensions, so nothing is published unless an optional plugin
+ * that provides a sink, like the Metrics plugin, is installed.
+ */
+final class UploadMetrics {
+
+    /** Uploads that are currently in progress on the controller, including uploads performed by agents. */
+    private static final AtomicInteger IN_FLIGHT = new AtomicInteger();
+
+    private UploadMetrics() {}
+
+    static int getInFlight() {
+        return IN_FLIGHT.get();
+    }
+
+    /** Counts an upload as in flight until the returned object is closed. */
+    static InFlight uploadStarted() {
+        IN_FLIGHT.incrementAndGet();
+        return new InFlight();
+    }
+
+    static void recordScan(UploadParameters parameters, ReportScanner.Statistics statistics) {
+        Target target = Target.of(parameters);
+        for (Sink sink : ExtensionList.lookup(Sink.class)) {
+            sink.recordScan(target, statistics);
+        }
+    }
+
+    /** Records all requests of the upload and the scan, if it was performed together with the upload. */
+    static void recordUpload(UploadParameters parameters, UploadResult result) {
+        if (result.getScanStatistics() != null) {
+            recordScan(parameters, result.getScanStatistics());
+        }
+        Target target = Target.of(parameters);
+        for (Sink sink : ExtensionList.lookup(Sink.class)) {
+            for (UploadResult.Request request : result.getRequests()) {
+                sink.recordRequest(target, request);
+            }
+            sink.recordUpload(target, result);
+        }
+    }
+
+    /** An upload in progress. */
+    static final class InFlight implements AutoCloseable {
+
+        private boolean closed;
+
+        private InFlight() {}
+
+        @Override
+        public void close() {
+            if (!closed) {
+                closed = true;
+                IN_FLIGHT.decrementAndGet();
+            }
+        }
+    }
+
+    /** The Teamscale server and project that measurements refer to. */
+    static final class Target {
+
+        private final String host;
+        private final String project;
+
+        private Target(String host, String project) {
+            this.host = host;
+            this.project = project;
+        }
+
+        private static Target of(UploadParameters parameters) {
+            HttpUrl url = HttpUrl.parse(parameters.getUrl());
+            if (url == null) {
+                return new Target("unknown", parameters.getTeamscaleProject());
+            }
+            String host = url.host();
+            if (url.port() != HttpUrl.defaultPort(url.scheme())) {
+                host += "_" + url.port();
+            }
+            return new Target(host, parameters.getTeamscaleProject());
+        }
+
+        /** Host name of the Teamscale server, with the port if it is not the default port. */
+        String getHost() {
+            return host;
+        }
+
+        String getProject() {
+            return project;
+        }
+    }
+
+    /** Receives measurements, e.g. to publish them to a monitoring system. */
+    interface Sink extends ExtensionPoint {
+
+        void recordScan(Target target, ReportScanner.Statistics statistics);
+
+        /** Called for every HTTP request, including retried ones. */
+        void recordRequest(Target target, UploadResult.Request request);
+
+        /** Called once per upload after its requests have been recorded. */
+        void recordUpload(Target target, UploadResult result);
+    }
+}
@@ -0,0 +1,307 @@
+package eu.cqse.teamscale.jenkins.upload;
+
+import hudson.util.Secret;
+import java.io.Serializable;
+import org.jspecify.annotations.Nullable;
+
+/**
+ * Everything needed to perform an upload to Teamscale, resolved on the controller.
+ * Sent over the remoting channel when the upload is performed from the agent, so it must stay small.
+ */
+class UploadParameters implements Serializable {
+
+    private static final long serialVersionUID = 1L;
+
+    private final String url;
+    private final String username;
+    private final Secret password;
+    private final String teamscaleProject;
+    private final String partition;
+    private final String reportFormatId;
+    private final String revision;
+
+    @Nullable
+    private final String repository;
+
+    private final String uploadMessage;
+    private final boolean compressReports;
+    private final long maxBatchBytes;
+    private final long maxBatchReports;
+    private final int uploadConcurrency;
+    private final int maxConcurrentUploads;
+    private final long maxUploadBytesPerSecond;
+
+    @Nullable
+    private final String schedulingQueue;
+
+    private final RetryPolicy retryPolicy;
+    private final int circuitBreakerFailureThreshold;
+    private final long circuitBreakerCooldownInMs;
+
+    @Nullable
+    private final TeamscaleClientOptions clientOptions;
+
+    @Nullable
+    private final ReportPreprocessor preprocessor;
+
+    private final boolean mergeReports;
+
+    private UploadParameters(Builder builder) {
+        this.url = builder.url;
+        this.username = builder.username;
+        this.password = builder.password;
+        this.teamscaleProject = builder.teamscaleProject;
+        this.partition = builder.partition;
+        this.reportFormatId = builder.reportFormatId;
+        this.revision = builder.revision;
+        this.repository = builder.repository;
+        this.uploadMessage = builder.uploadMessage;
+        this.compressReports = builder.compressReports;
+        this.maxBatchBytes = builder.maxBatchBytes;
+        this.maxBatchReports = builder.maxBatchReports;
+        this.uploadConcurrency = Math.max(1, builder.uploadConcurrency);
+        this.maxConcurrentUploads = Math.max(1, builder.maxConcurrentUploads);
+        this.maxUploadBytesPerSecond = builder.maxUploadBytesPerSecond;
+        this.schedulingQueue = builder.schedulingQueue;
+        this.retryPolicy = builder.retryPolicy;
+        this.circuitBreakerFailureThreshold = builder.circuitBreakerFailureThreshold;
+        this.circuitBreakerCooldownInMs = builder.circuitBreakerCooldownInMs;
+        this.clientOptions = builder.clientOptions;
+        this.preprocessor = builder.preprocessor;
+        this.mergeReports = builder.mergeReports;
+    }
+
+    String getUrl() {
+        return url;
+    }
+
+    String getUsername() {
+        return username;
+    }
+
+    Secret getPassword() {
+        return password;
+    }
+
+    String getTeamscaleProject() {
+        return teamscaleProject;
+    }
+
+    String getPartition() {
+        return partition;
+    }
+
+    String getReportFormatId() {
+        return reportFormatId;
+    }
+
+    String getRevision() {
+        return revision;
+    }
+
+    @Nullable
+    String getRepository() {
+        return repository;
+    }
+
+    String getUploadMessage() {
+        return uploadMessage;
+    }
+
+    boolean isCompressReports() {
+        return compressReports;
+    }
+
+    /** Maximum total size of the reports sent in one request, or {@link ReportBatches#UNLIMITED}. */
+    long getMaxBatchBytes() {
+        return maxBatchBytes;
+    }
+
+    /** Maximum number of reports sent in one request, or {@link ReportBatches#UNLIMITED}. */
+    long getMaxBatchReports() {
+        return maxBatchReports;
+    }
+
+    /** Number of batches of this upload that are sent concurrently. */
+    int getUploadConcurrency() {
+        return uploadConcurrency;
+    }
+
+    /** Maximum number of requests sent concurrently to the Teamscale server by all builds, see {@link UploadSlots}. */
+    int getMaxConcurrentUploads() {
+        return maxConcurrentUploads;
+    }
+
+    /** Maximum rate at which all builds send reports to the Teamscale server, {@code 0} means no limit. */
+    long getMaxUploadBytesPerSecond() {
+        return maxUploadBytesPerSecond;
+    }
+
+    /** The queue in which requests wait for a slot, i.e. the folder of the job, see {@link UploadSlots}. */
+    String getSchedulingQueue() {
+        // Spooled uploads may have been written before the queue was recorded
+        return schedulingQueue != null ? schedulingQueue : "";
+    }
+
+    RetryPolicy getRetryPolicy() {
+        return retryPolicy;
+    }
+
+    /** Consecutive failed requests after which the {@link CircuitBreaker} opens, {@code 0} disables it. */
+    int getCircuitBreakerFailureThreshold() {
+        return circuitBreakerFailureThreshold;
+    }
+
+    /** How long the {@link CircuitBreaker} stays open before a probe request is sent. */
+    long getCircuitBreakerCooldownInMs() {
+        return circuitBreakerCooldownInMs;
+    }
+
+    /** Timeouts and protocols of the connection to the Teamscale server. */
+    TeamscaleClientOptions getClientOptions() {
+        // Spooled uploads may have been written before the options were recorded
+        return clientOptions != null ? clientOptions : TeamscaleClientOptions.DEFAULTS;
+    }
+
+    /** Processes the reports while they are uploaded, or {@code null} if they are uploaded unchanged. */
+    @Nullable
+    ReportPreprocessor getPreprocessor() {
+        return preprocessor;
+    }
+
+    /** Whether the reports of a request are merged into one report if their format supports it. */
+    boolean isMergeReports() {
+        return mergeReports;
+    }
+
+    /** Uploads with the same key replace each other's data in Teamscale. */
+    String getCoalescingKey() {
+        return String.join("\n", url, teamscaleProject, partition, revision, String.valueOf(repository));
+    }
+
+    /**
+     * Collects the parameters of an upload. Everything but the target of the upload is optional and defaults to a
+     * single uncompressed request without retries, rate limits or circuit breaking.
+     */
+    static final class Builder {
+
+        private final String url;
+        private final String username;
+        private final Secret password;
+        private final String teamscaleProject;
+        private final String partition;
+        private final String reportFormatId;
+        private final String revision;
+
+        @Nullable
+        private String repository;
+
+        private String uploadMessage = "";
+        private boolean compressReports;
+        private long maxBatchBytes = ReportBatches.UNLIMITED;
+        private long maxBatchReports = ReportBatches.UNLIMITED;
+        private int uploadConcurrency = 1;
+        private int maxConcurrentUploads = 1;
+        private long maxUploadBytesPerSecond;
+        private String schedulingQueue = "";
+        private RetryPolicy retryPolicy = new RetryPolicy(1, 0);
+        private int circuitBreakerFailureThreshold;
+        private long circuitBreakerCooldownInMs;
+        private TeamscaleClientOptions clientOptions = TeamscaleClientOptions.DEFAULTS;
+
+        @Nullable
+        private ReportPreprocessor preprocessor;
+
+        private boolean mergeReports;
+
+        Builder(
+                String url,
+                String username,
+                Secret password,
+                String teamscaleProject,
+                String partition,
+                String reportFormatId,
+                String revision) {
+            this.url = url;
+            this.username = username;
+            this.password = password;
+            this.teamscaleProject = teamscaleProject;
+            this.partition = partition;
+            this.reportFormatId = reportFormatId;
+            this.revision = revision;
+        }
+
+        Builder repository(@Nullable String repository) {
+            this.repository = repository;
+            return this;
+        }
+
+        Builder uploadMessage(String uploadMessage) {
+            this.uploadMessage = uploadMessage;
+            return this;
+        }
+
+        Builder compressReports(boolean compressReports) {
+            this.compressReports = compressReports;
+            return this;
+        }
+
+        /** Limits of a single request, {@link ReportBatches#UNLIMITED} means no limit. */
+        Builder batchLimits(long maxBatchBytes, long maxBatchReports) {
+            this.maxBatchBytes = maxBatchBytes;
+            this.maxBatchReports = maxBatchReports;
+            return this;
+        }
+
+        Builder uploadConcurrency(int uploadConcurrency) {
+            this.uploadConcurrency = uploadConcurrency;
+            return this;
+        }
+
+        Builder maxConcurrentUploads(int maxConcurrentUploads) {
+            this.maxConcurrentUploads = maxConcurrentUploads;
+            return this;
+        }
+
+        Builder maxUploadBytesPerSecond(long maxUploadBytesPerSecond) {
+            this.maxUploadBytesPerSecond = maxUploadBytesPerSecond;
+            return this;
+        }
+
+        Builder schedulingQueue(String schedulingQueue) {
+            this.schedulingQueue = schedulingQueue;
+            return this;
+        }
+
+        Builder retryPolicy(RetryPolicy retryPolicy) {
+            this.retryPolicy = retryPolicy;
+            return this;
+        }
+
+        /** Settings of the {@link CircuitBreaker}, a threshold of {@code 0} disables it. */
+        Builder circuitBreaker(int failureThreshold, long cooldownInMs) {
+            this.circuitBreakerFailureThreshold = failureThreshold;
+            this.circuitBreakerCooldownInMs = cooldownInMs;
+            return this;
+        }
+
+        Builder clientOptions(TeamscaleClientOptions clientOptions) {
+            this.clientOptions = clientOptions;
+            return this;
+        }
+
+        Builder preprocessor(@Nullable ReportPreprocessor preprocessor) {
+            this.preprocessor = preprocessor;
+            return this;
+        }
+
+        Builder mergeReports(boolean mergeReports) {
+            this.mergeReports = mergeReports;
+            return this;
+        }
+
+        UploadParameters build() {
+            return new UploadParameters(this);
+        }
+    }
+}
@@ -0,0 +1,137 @@
+package eu.cqse.teamscale.jenkins.upload;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import okhttp3.MediaType;
+import okhttp3.RequestBody;
+import okio.Buffer;
+import okio.BufferedSink;
+import okio.ForwardingSink;
+import okio.Okio;
+import org.jspecify.annotations.Nullable;
+
+/**
+ * JVM-wide token bucket that limits the rate at which reports are sent to one Teamscale server, shared by all builds.
+ * The bucket holds up to one second of the rate, so short bursts are sent at full speed.
+ */
+final class UploadRateLimiter {
+
+    /** Number of bytes written at once, so that concurrent requests take turns. */
+    private static final long CHUNK_BYTES = 64 * 1024;
+
+    private static final Map<String, UploadRateLimiter> LIMITERS = new ConcurrentHashMap<>();
+
+    private long bytesPerSecond;
+
+    /** Bytes that may be sent right away, negative if requests already wait for the bucket to fill up. */
+    private double tokens;
+
+    private long lastRefillTime = System.nanoTime();
+
+    private UploadRateLimiter(long bytesPerSecond) {
+        this.bytesPerSecond = bytesPerSecond;
+        this.tokens = bytesPerSecond;
+    }
+
+    /**
+     * Returns the limiter of the given Teamscale server, applying the given rate.
+     *
+     * @return the limiter, or {@code null} if the rate is not limited.
+     */
+    @Nullable
+    static UploadRateLimiter forServer(String url, long bytesPerSecond) {
+        String key = TeamscaleServerSettings.normalize(url);
+        if (bytesPerSecond <= 0) {
+            LIMITERS.remove(key);
+            return null;
+        }
+        UploadRateLimiter limiter = LIMITERS.computeIfAbsent(key, k -> new UploadRateLimiter(bytesPerSecond));
+        limiter.setRate(bytesPerSecond);
+        return limiter;
+    }
+
+    private synchronized void setRate(long bytesPerSecond) {
+        refill();
+        this.bytesPerSecond = bytesPerSecond;
+        this.tokens = Math.min(tokens, bytesPerSecond);
+    }
+
+    private void refill() {
+        long now = System.nanoTime();
+        tokens = Math.min(bytesPerSecond, tokens + (now - lastRefillTime) * bytesPerSecond / 1e9d);
+        lastRefillTime = now;
+    }
+
+    /** Takes the bytes from the bucket and returns how long to wait until they may be sent. */
+    private synchronized long reserveInNanos(long bytes) {
+        refill();
+        tokens -= bytes;
+        if (tokens >= 0) {
+            return 0;
+        }
+        return (long) (-tokens * 1e9d / bytesPerSecond);
+    }
+
+    /** Blocks until the given number of bytes may be sent. */
+    void acquire(long bytes) throws InterruptedIOException {
+        long waitTimeInNanos = reserveInNanos(bytes);
+        if (waitTimeInNanos > 0) {
+            try {
+                TimeUnit.NANOSECONDS.sleep(waitTimeInNanos);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new InterruptedIOException("Interrupted while waiting for the upload rate limit");
+            }
+        }
+    }
+
+    /** Wraps the body, so that it is written no faster than the rate of this limiter. */
+    RequestBody throttle(RequestBody body) {
+        return new ThrottledRequestBody(body);
+    }
+
+    private final class ThrottledRequestBody extends RequestBody {
+
+        private final RequestBody delegate;
+
+        private ThrottledRequestBody(RequestBody delegate) {
+            this.delegate = delegate;
+        }
+
+        @Override
+        public @Nullable MediaType contentType() {
+            return delegate.contentType();
+        }
+
+        @Override
+        public long contentLength() throws IOException {
+            return delegate.contentLength();
+        }
+
+        @Override
+        public void writeTo(BufferedSink sink) throws IOException {
+            BufferedSink throttledSink = Okio.buffer(new ForwardingSink(sink) {
+                @Override
+                public void write(Buffer source, long byteCount) throws IOException {
+                    long remaining = byteCount;
+                    while (remaining > 0) {
+                        long chunk = Math.min(remaining, CHUNK_BYTES);
+                        acquire(chunk);
+                        super.write(source, chunk);
+                        remaining -= chunk;
+                    }
+                }
+
+                @Override
+                public void close() {
+                    // The request owns the underlying sink
+                }
+            });
+            delegate.writeTo(throttledSink);
+            throttledSink.flush();
+        }
+    }
+}
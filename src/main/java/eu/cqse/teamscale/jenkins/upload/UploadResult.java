@@ -0,0 +1,471 @@
+package eu.cqse.teamscale.jenkins.upload;
+
+import java.io.PrintStream;
+import java.io.Serializable;
+import java.util.ArrayList;
+import java.util.List;
+import org.jspecify.annotations.Nullable;
+
+/**
+ * Outcome of an upload to Teamscale, either of a single request or combined over all batches.
+ * Returned over the remoting channel when the upload is performed from the agent, so it only holds a summary.
+ */
+class UploadResult implements Serializable {
+
+    private static final long serialVersionUID = 1L;
+
+    /** Response code if no HTTP response was received. */
+    static final int NO_RESPONSE = -1;
+
+    private final int reportCount;
+    private final int batchCount;
+    private final int failedBatchCount;
+
+    @Nullable
+    private final String requestDescription;
+
+    /** Response code of the request, or of the last failed batch for combined results. */
+    private final int responseCode;
+
+    @Nullable
+    private final String responseMessage;
+
+    @Nullable
+    private final String errorBody;
+
+    @Nullable
+    private final String failureMessage;
+
+    private final double requestTimeInMs;
+
+    /** Total size of the reports. */
+    private final long reportBytes;
+
+    /**
+     * Size of the payload as sent, which differs from {@link #reportBytes} if the reports were compressed, minified or
+     * merged.
+     */
+    private final long bytesSent;
+
+    /** Delay requested by Teamscale via {@code Retry-After}, or {@code -1}. */
+    private final long retryAfterInMs;
+
+    /** Every HTTP request sent for this result, including retried ones, for {@link UploadMetrics}. */
+    private final List<Request> requests = new ArrayList<>();
+
+    /**
+     * Number of requests that failed and were sent again. Counted explicitly, since the requests of an upload session
+     * include the ones that opened and closed it.
+     */
+    private int retryCount;
+
+    /** Whether no request was sent since the {@link CircuitBreaker} of the server is open. */
+    private boolean rejected;
+
+    /** Statistics of the scan, if the reports were scanned in the same JVM as they were uploaded. */
+    @Nullable
+    private ReportScanner.Statistics scanStatistics;
+
+    /** The first reports found by the scan, if the reports were scanned in the same JVM as they were uploaded. */
+    private List<ReportFile> scannedReports = new ArrayList<>();
+
+    private UploadResult(
+            int reportCount,
+            int batchCount,
+            int failedBatchCount,
+            @Nullable String requestDescription,
+            int responseCode,
+            @Nullable String responseMessage,
+            @Nullable String errorBody,
+            @Nullable String failureMessage,
+            double requestTimeInMs,
+            long reportBytes,
+            long bytesSent,
+            long retryAfterInMs) {
+        this.reportCount = reportCount;
+        this.batchCount = batchCount;
+        this.failedBatchCount = failedBatchCount;
+        this.requestDescription = requestDescription;
+        this.responseCode = responseCode;
+        this.responseMessage = responseMessage;
+        this.errorBody = errorBody;
+        this.failureMessage = failureMessage;
+        this.requestTimeInMs = requestTimeInMs;
+        this.reportBytes = reportBytes;
+        this.bytesSent = bytesSent;
+        this.retryAfterInMs = retryAfterInMs;
+    }
+
+    /** No reports matched the include pattern, so nothing was sent. */
+    static UploadResult noReports() {
+        return new UploadResult(0, 0, 0, null, NO_RESPONSE, null, null, null, 0, 0, 0, -1);
+    }
+
+    /** Teamscale answered, either successfully or with an error status code. */
+    static UploadResult response(
+            int reportCount,
+            String requestDescription,
+            boolean successful,
+            int responseCode,
+            String responseMessage,
+            @Nullable String errorBody,
+            double requestTimeInMs,
+            long reportBytes,
+            long bytesSent,
+            long retryAfterInMs) {
+        UploadResult result = new UploadResult(
+                reportCount,
+                1,
+                successful ? 0 : 1,
+                requestDescription,
+                responseCode,
+                responseMessage,
+                errorBody,
+                null,
+                requestTimeInMs,
+                reportBytes,
+                bytesSent,
+                retryAfterInMs);
+        result.requests.add(new Request(responseCode, requestTimeInMs, bytesSent));
+        return result;
+    }
+
+    /** The request could not be completed, e.g. because the server was not reachable. */
+    static UploadResult failure(
+            int reportCount, @Nullable String requestDescription, String failureMessage, double requestTimeInMs) {
+        UploadResult result = new UploadResult(
+                reportCount,
+                1,
+                1,
+                requestDescription,
+                NO_RESPONSE,
+                null,
+                null,
+                failureMessage,
+                requestTimeInMs,
+                0,
+                0,
+                -1);
+        result.requests.add(new Request(NO_RESPONSE, requestTimeInMs, 0));
+        return result;
+    }
+
+    /** No request was sent since the {@link CircuitBreaker} of the server is open. */
+    static UploadResult rejected(int reportCount, String failureMessage) {
+        UploadResult result =
+                new UploadResult(reportCount, 1, 1, null, NO_RESPONSE, null, null, failureMessage, 0, 0, 0, -1);
+        result.rejected = true;
+        return result;
+    }
+
+    /**
+     * Combines the results of several batches.
+     *
+     * @param batchResults  the results of the single requests.
+     * @param totalTimeInMs wall-clock time of all batches together.
+     */
+    static UploadResult combine(List<UploadResult> batchResults, double totalTimeInMs) {
+        int reportCount = 0;
+        int batchCount = 0;
+        int failedBatchCount = 0;
+        int responseCode = NO_RESPONSE;
+        long reportBytes = 0;
+        long bytesSent = 0;
+        boolean rejected = false;
+        int retryCount = 0;
+        List<Request> requests = new ArrayList<>();
+        for (UploadResult result : batchResults) {
+            requests.addAll(result.requests);
+            rejected |= result.rejected;
+            retryCount += result.retryCount;
+            reportCount += result.reportCount;
+            batchCount += result.batchCount;
+            failedBatchCount += result.failedBatchCount;
+            reportBytes += result.reportBytes;
+            bytesSent += result.bytesSent;
+            if (responseCode == NO_RESPONSE || !result.isSuccessful()) {
+                responseCode = result.responseCode;
+            }
+        }
+        UploadResult combined = new UploadResult(
+                reportCount,
+                batchCount,
+                failedBatchCount,
+                null,
+                responseCode,
+                null,
+                null,
+                null,
+                totalTimeInMs,
+                reportBytes,
+                bytesSent,
+                -1);
+        combined.requests.addAll(requests);
+        combined.rejected = rejected;
+        combined.retryCount = retryCount;
+        return combined;
+    }
+
+    /**
+     * Combines the results of the batches of an upload session with the requests that opened and closed the session.
+     * The batches only take effect once the session is committed, so unless it was, all of them count as failed.
+     *
+     * @param reportCount   the number of reports of the upload, including those that were not sent.
+     * @param reportBytes   the total size of the reports of the upload.
+     * @param opening       the result of opening the session.
+     * @param batchResults  the results of the batches sent to the session, empty if it could not be opened.
+     * @param closing       the result of committing or discarding the session, {@code null} if it was not opened.
+     * @param committed     whether the session was committed.
+     * @param totalTimeInMs wall-clock time of all requests together.
+     */
+    static UploadResult combineSession(
+            int reportCount,
+            long reportBytes,
+            UploadResult opening,
+            List<UploadResult> batchResults,
+            @Nullable UploadResult closing,
+            boolean committed,
+            double totalTimeInMs) {
+        UploadResult batches = combine(batchResults, totalTimeInMs);
+        UploadResult combined;
+        if (committed) {
+            combined = new UploadResult(
+                    reportCount,
+                    batches.batchCount,
+                    0,
+                    null,
+                    batches.responseCode,
+                    null,
+                    null,
+                    null,
+                    totalTimeInMs,
+                    reportBytes,
+                    batches.bytesSent,
+                    -1);
+        } else {
+            UploadResult failed;
+            String failureMessage;
+            if (!opening.isSuccessful()) {
+                failed = opening;
+                failureMessage = "Failed to open an upload session: " + opening.describeFailure();
+            } else if (!batches.isSuccessful()) {
+                failed = batches;
+                failureMessage = batches.failedBatchCount + " of " + batches.batchCount
+                        + " batches failed, the upload session was discarded and none of the reports take effect";
+            } else {
+                failed = closing != null ? closing : opening;
+                failureMessage = "Failed to commit the upload session: " + failed.describeFailure();
+            }
+            combined = new UploadResult(
+                    reportCount,
+                    batches.batchCount,
+                    batches.batchCount,
+                    null,
+                    failed.responseCode,
+                    null,
+                    null,
+                    failureMessage,
+                    totalTimeInMs,
+                    reportBytes,
+                    batches.bytesSent,
+                    -1);
+            combined.rejected = failed.rejected;
+        }
+        combined.requests.addAll(opening.requests);
+        combined.requests.addAll(batches.requests);
+        combined.retryCount = opening.retryCount + batches.retryCount;
+        if (closing != null) {
+            combined.requests.addAll(closing.requests);
+            combined.retryCount += closing.retryCount;
+        }
+        return combined;
+    }
+
+    int getReportCount() {
+        return reportCount;
+    }
+
+    boolean hasReports() {
+        return reportCount > 0;
+    }
+
+    int getBatchCount() {
+        return batchCount;
+    }
+
+    int getFailedBatchCount() {
+        return failedBatchCount;
+    }
+
+    boolean isSuccessful() {
+        return batchCount > 0 && failedBatchCount == 0;
+    }
+
+    /** Whether no request was sent for this result, or for one of the combined batches, due to the breaker. */
+    boolean isRejected() {
+        return rejected;
+    }
+
+    int getResponseCode() {
+        return responseCode;
+    }
+
+    double getRequestTimeInMs() {
+        return requestTimeInMs;
+    }
+
+    long getReportBytes() {
+        return reportBytes;
+    }
+
+    long getBytesSent() {
+        return bytesSent;
+    }
+
+    long getRetryAfterInMs() {
+        return retryAfterInMs;
+    }
+
+    List<Request> getRequests() {
+        return requests;
+    }
+
+    /** Adds requests that were sent before this one for the same batch, i.e. failed attempts that were retried. */
+    void addEarlierRequests(List<Request> earlierRequests) {
+        requests.addAll(0, earlierRequests);
+        retryCount += earlierRequests.size();
+    }
+
+    /** Number of requests that were retried. */
+    int getRetryCount() {
+        return retryCount;
+    }
+
+    @Nullable
+    ReportScanner.Statistics getScanStatistics() {
+        return scanStatistics;
+    }
+
+    List<ReportFile> getScannedReports() {
+        return scannedReports;
+    }
+
+    /** Records the scan that found the reports, keeping only as many reports as the build records. */
+    void setScan(ReportScanner.Result scan) {
+        this.scanStatistics = scan.getStatistics();
+        List<ReportFile> reports = scan.getReports();
+        this.scannedReports = new ArrayList<>(
+                reports.subList(0, Math.min(reports.size(), TeamscaleUploadAction.MAX_RECORDED_REPORTS)));
+    }
+
+    /** Why a single request failed. */
+    String describeFailure() {
+        if (failureMessage != null) {
+            return failureMessage;
+        }
+        return responseCode == NO_RESPONSE ? "no response" : "response code " + responseCode;
+    }
+
+    /** One-line description of the outcome, e.g. for the build page. */
+    String getSummary() {
+        if (!hasReports()) {
+            return "No reports found";
+        }
+        if (isSuccessful()) {
+            return String.format(
+                    "Uploaded %d reports (%d bytes) in %d request(s) in %.1fms",
+                    reportCount, reportBytes, batchCount, requestTimeInMs);
+        }
+        if (failureMessage != null) {
+            return "Upload failed: " + failureMessage;
+        }
+        return String.format(
+                "%d of %d request(s) failed, response code %d", failedBatchCount, batchCount, responseCode);
+    }
+
+    /**
+     * Prints the outcome of a single request to the build log.
+     *
+     * @param logger   to print to.
+     * @param logLevel prefix for failures, depending on whether they affect the build result.
+     */
+    void log(PrintStream logger, String logLevel) {
+        if (requestDescription != null) {
+            logger.println(TeamscaleUploadBuilder.INFO + requestDescription);
+        }
+        if (failureMessage != null) {
+            logger.println(logLevel + "Failed to upload reports to Teamscale: " + failureMessage);
+        } else if (!isSuccessful()) {
+            logger.printf(
+                    "%sResponse - %s %s in %.1fms body:%n%s%n",
+                    logLevel,
+                    responseCode,
+                    responseMessage,
+                    requestTimeInMs,
+                    errorBody != null ? errorBody : "Empty");
+        } else {
+            logger.println(TeamscaleUploadBuilder.INFO
+                    + String.format(
+                            "Response - %s in %.1fms (%d reports, %d bytes)",
+                            responseCode,
+                            requestTimeInMs,
+                            reportCount,
+                            reportBytes));
+            if (bytesSent != reportBytes) {
+                logger.println(TeamscaleUploadBuilder.INFO
+                        + String.format("Sent %d bytes for %d bytes of reports", bytesSent, reportBytes));
+            }
+        }
+    }
+
+    /**
+     * Prints the combined outcome of several batches to the build log.
+     *
+     * @param logger   to print to.
+     * @param logLevel prefix for failures, depending on whether they affect the build result.
+     */
+    void logSummary(PrintStream logger, String logLevel) {
+        if (failureMessage != null) {
+            logger.println(logLevel + failureMessage);
+        } else if (failedBatchCount > 0) {
+            logger.println(logLevel + failedBatchCount + " of " + batchCount + " batches failed to upload");
+        }
+        logger.println(TeamscaleUploadBuilder.INFO
+                + String.format(
+                        "Finished %d batches with %d reports (%d bytes, %d bytes sent) in %.1fms",
+                        batchCount,
+                        reportCount,
+                        reportBytes,
+                        bytesSent,
+                        requestTimeInMs));
+    }
+
+    /** A single HTTP request. */
+    static final class Request implements Serializable {
+
+        private static final long serialVersionUID = 1L;
+
+        private final int responseCode;
+        private final double timeInMs;
+        private final long bytesSent;
+
+        private Request(int responseCode, double timeInMs, long bytesSent) {
+            this.responseCode = responseCode;
+            this.timeInMs = timeInMs;
+            this.bytesSent = bytesSent;
+        }
+
+        /** The response code or {@link #NO_RESPONSE}. */
+        int getResponseCode() {
+            return responseCode;
+        }
+
+        double getTimeInMs() {
+            return timeInMs;
+        }
+
+        long getBytesSent() {
+            return bytesSent;
+        }
+    }
+}
@@ -0,0 +1,203 @@
+package eu.cqse.teamscale.jenkins.upload;
+
+import java.io.PrintStream;
+import java.util.ArrayDeque;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * JVM-wide limit of the number of requests that are concurrently sent to each Teamscale server, shared by all builds.
+ * The limits are configured globally and applied by each upload, so they also hold on agents.
+ * <p>
+ * Requests that wait for a slot are queued per folder, and free slots are handed to the folders in turn. A folder that
+ * starts many uploads at once, e.g. when a release train finishes, thus does not hold up the uploads of other folders.
+ */
+final class UploadSlots {
+
+    /** How often a request that is still waiting logs its position in the queue. */
+    private static final long LOG_INTERVAL_MS = TimeUnit.SECONDS.toMillis(30);
+
+    /** Slots and queues by normalized Teamscale URL, guarded by the class. */
+    private static final Map<String, Server> SERVERS = new HashMap<>();
+
+    private UploadSlots() {}
+
+    /**
+     * Blocks until a slot for the Teamscale server is free and occupies it.
+     * While waiting, the position in the queue is logged now and then.
+     *
+     * @param url    of the Teamscale server.
+     * @param queue  the folder of the job, slots are shared fairly between folders.
+     * @param limit  maximum number of concurrent requests to the server.
+     * @param logger to print the queue position to.
+     * @return the slot, which must be closed once the request is done.
+     */
+    static Slot acquire(String url, String queue, int limit, PrintStream logger) throws InterruptedException {
+        String key = TeamscaleServerSettings.normalize(url);
+        Waiter waiter = new Waiter(queue);
+        Server server;
+        synchronized (UploadSlots.class) {
+            server = SERVERS.computeIfAbsent(key, k -> new Server());
+            server.limit = Math.max(1, limit);
+            server.enqueue(waiter);
+            server.grant();
+        }
+
+        long lastLogTime = 0;
+        try {
+            while (true) {
+                String message;
+                synchronized (UploadSlots.class) {
+                    if (waiter.granted) {
+                        return new Slot(key, server);
+                    }
+                    long now = System.currentTimeMillis();
+                    if (now - lastLogTime >= LOG_INTERVAL_MS) {
+                        lastLogTime = now;
+                        message = String.format(
+                                "Waiting for an upload slot for %s: position %d in the queue, %d/%d slots in use",
+                                url,
+                                server.positionOf(waiter),
+                                server.inUse,
+                                server.limit);
+                    } else {
+                        message = null;
+                        UploadSlots.class.wait(LOG_INTERVAL_MS);
+                    }
+                }
+                // Printed outside of the lock since the log may be remote
+                if (message != null) {
+                    logger.println(TeamscaleUploadBuilder.INFO + message);
+                }
+            }
+        } catch (InterruptedException e) {
+            synchronized (UploadSlots.class) {
+                if (waiter.granted) {
+                    release(key, server);
+                } else {
+                    server.remove(waiter);
+                    removeIfIdle(key, server);
+                }
+            }
+            throw e;
+        }
+    }
+
+    private static void release(String key, Server server) {
+        server.inUse--;
+        server.grant();
+        removeIfIdle(key, server);
+    }
+
+    private static void removeIfIdle(String key, Server server) {
+        if (server.inUse == 0 && server.queues.isEmpty()) {
+            SERVERS.remove(key, server);
+        }
+    }
+
+    /** An occupied slot. */
+    static final class Slot implements AutoCloseable {
+
+        private final String key;
+        private final Server server;
+        private boolean closed;
+
+        private Slot(String key, Server server) {
+            this.key = key;
+            this.server = server;
+        }
+
+        /** Frees the slot for the next waiting request. */
+        @Override
+        public void close() {
+            synchronized (UploadSlots.class) {
+                if (!closed) {
+                    closed = true;
+                    release(key, server);
+                }
+            }
+        }
+    }
+
+    /** A request waiting for a slot. */
+    private static final class Waiter {
+
+        private final String queue;
+        private boolean granted;
+
+        private Waiter(String queue) {
+            this.queue = queue;
+        }
+    }
+
+    /** Slots of one Teamscale server, guarded by {@link UploadSlots}. */
+    private static final class Server {
+
+        private int limit;
+        private int inUse;
+
+        /** Waiting requests by folder, in the order in which the folders get the next free slots. */
+        private final LinkedHashMap<String, ArrayDeque<Waiter>> queues = new LinkedHashMap<>();
+
+        private void enqueue(Waiter waiter) {
+            queues.computeIfAbsent(waiter.queue, q -> new ArrayDeque<>()).add(waiter);
+        }
+
+        private void remove(Waiter waiter) {
+            ArrayDeque<Waiter> queue = queues.get(waiter.queue);
+            if (queue != null && queue.remove(waiter) && queue.isEmpty()) {
+                queues.remove(waiter.queue);
+            }
+        }
+
+        /** Hands free slots to the waiting requests, one folder after the other. */
+        private void grant() {
+            boolean granted = false;
+            while (inUse < limit && !queues.isEmpty()) {
+                Iterator<Map.Entry<String, ArrayDeque<Waiter>>> iterator = queues.entrySet().iterator();
+                Map.Entry<String, ArrayDeque<Waiter>> next = iterator.next();
+                iterator.remove();
+                ArrayDeque<Waiter> queue = next.getValue();
+                queue.poll().granted = true;
+                inUse++;
+                granted = true;
+                // The folder moves to the end of the rotation
+                if (!queue.isEmpty()) {
+                    queues.put(next.getKey(), queue);
+                }
+            }
+            if (granted) {
+                UploadSlots.class.notifyAll();
+            }
+        }
+
+        /**
+         * Number of requests that get a slot before or together with the given waiting one, assuming no further
+         * requests arrive. Each folder ahead of the waiter's folder in the rotation gets one slot more than the
+         * folders after it.
+         */
+        private int positionOf(Waiter waiter) {
+            int index = 0;
+            for (Waiter other : queues.get(waiter.queue)) {
+                if (other == waiter) {
+                    break;
+                }
+                index++;
+            }
+            int position = 1;
+            boolean beforeOwnFolder = true;
+            for (Map.Entry<String, ArrayDeque<Waiter>> entry : queues.entrySet()) {
+                if (entry.getKey().equals(waiter.queue)) {
+                    position += index;
+                    beforeOwnFolder = false;
+                } else {
+                    position += Math.min(entry.getValue().size(), beforeOwnFolder ? index + 1 : index);
+                }
+            }
+            return position;
+        }
+    }
+}
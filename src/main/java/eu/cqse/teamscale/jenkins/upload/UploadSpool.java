@@ -0,0 +1,400 @@
+package eu.cqse.teamscale.jenkins.upload;
+
+import hudson.Extension;
+import hudson.ExtensionList;
+import hudson.FilePath;
+import hudson.Util;
+import hudson.XmlFile;
+import hudson.model.PeriodicWork;
+import hudson.model.Run;
+import hudson.security.ACL;
+import hudson.security.ACLContext;
+import hudson.util.DaemonThreadFactory;
+import hudson.util.NamingThreadFactory;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.PrintStream;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import jenkins.model.Jenkins;
+import jenkins.util.Timer;
+import org.jspecify.annotations.Nullable;
+
+/**
+ * Durable spool of uploads under {@code JENKINS_HOME}. Reports are copied into the spool before they are uploaded,
+ * so they survive restarts of the controller and failed uploads. The spool is drained by a background worker with a
+ * configurable number of threads, which bounds the load it puts on Teamscale.
+ * <p>
+ * Replays are idempotent per revision and partition: the spool keeps an {@link UploadIndex} of the content hashes of
+ * the last successful upload to each partition, so an entry with exactly the reports that were last uploaded to its
+ * revision and partition is not uploaded again, e.g. if the same reports were spooled twice or an entry whose upload
+ * succeeded could not be deleted.
+ */
+@Extension
+public class UploadSpool {
+
+    private static final Logger LOGGER = Logger.getLogger(UploadSpool.class.getName());
+
+    /** Name of the file in the build directory that holds the log output of spooled uploads. */
+    static final String LOG_FILE_NAME = "teamscale-upload.log";
+
+    private static final String REPORTS_DIRECTORY = "reports";
+
+    /** Delay before a failed entry is retried. */
+    private static final long RETRY_DELAY_MILLIS = TimeUnit.MINUTES.toMillis(5);
+
+    /** After this many failed attempts an entry is dropped from the spool. */
+    private static final int MAX_ATTEMPTS = 12;
+
+    /**
+     * Uploads the entries, with as many threads as {@linkplain TeamscaleUploadPluginConfiguration#getSpoolThreads()
+     * configured}. Requests are further limited by {@link UploadSlots}.
+     */
+    private final ThreadPoolExecutor executor = (ThreadPoolExecutor) Executors.newFixedThreadPool(
+            TeamscaleUploadPluginConfiguration.DEFAULT_SPOOL_THREADS,
+            new NamingThreadFactory(new DaemonThreadFactory(), "Teamscale upload spool"));
+
+    /** Ids of the entries that are currently being uploaded. */
+    private final Set<String> inProgress = ConcurrentHashMap.newKeySet();
+
+    /**
+     * {@linkplain UploadParameters#getCoalescingKey() Keys} of the entries that are currently being uploaded, so that
+     * a duplicate of an entry is only uploaded once the upload of the entry has been recorded in the index.
+     */
+    private final Set<String> keysInProgress = ConcurrentHashMap.newKeySet();
+
+    public static UploadSpool get() {
+        return ExtensionList.lookupSingleton(UploadSpool.class);
+    }
+
+    File getDirectory() {
+        return new File(Jenkins.get().getRootDir(), "teamscale-upload-spool");
+    }
+
+    /**
+     * Copies the reports into the spool and triggers the upload.
+     *
+     * @param run        the build that produced the reports, if any.
+     * @param action     records the outcome, attached to the build once the reports have been copied. May be
+     *                   {@code null} if the outcome need not be recorded.
+     * @param parameters of the upload.
+     * @param workspace  the workspace the reports are relative to, may be remote.
+     * @param reports    the reports to spool.
+     * @return the id of the new entry.
+     */
+    String add(
+            @Nullable Run<?, ?> run,
+            @Nullable TeamscaleUploadAction action,
+            UploadParameters parameters,
+            FilePath workspace,
+            List<ReportFile> reports)
+            throws IOException, InterruptedException {
+        String id = UUID.randomUUID().toString();
+        File directory = new File(getDirectory(), id);
+        FilePath reportsDirectory = new FilePath(new File(directory, REPORTS_DIRECTORY));
+        TeamscaleUploadBuilder.copyReports(workspace, reports, reportsDirectory);
+        // Hashed locally, so that replays of the same reports can be recognized
+        List<ReportFile> spooledReports = new ArrayList<>();
+        for (ReportFile report : reports) {
+            if (report.getHash() != null) {
+                spooledReports.add(report);
+            } else {
+                File file = new File(reportsDirectory.child(report.getPath()).getRemote());
+                spooledReports.add(
+                        new ReportFile(report.getPath(), report.getSize(), ReportScanner.hash(file.toPath())));
+            }
+        }
+        if (run != null && action != null) {
+            // Attached before the entry is written, so the worker always finds it
+            action.setSpoolId(id);
+            run.addAction(action);
+        }
+        // The entry file is written last, so incompletely copied entries are never uploaded
+        new SpoolEntry(id, run != null ? run.getExternalizableId() : null, parameters, spooledReports).save(directory);
+        drain();
+        int coalescingWindowInSeconds = TeamscaleUploadPluginConfiguration.get().getCoalescingWindowInSeconds();
+        if (coalescingWindowInSeconds > 0) {
+            // Upload the entry as soon as its window has passed rather than on the next run of the worker
+            Timer.get().schedule(this::drain, coalescingWindowInSeconds, TimeUnit.SECONDS);
+        }
+        return id;
+    }
+
+    boolean contains(String id) {
+        return SpoolEntry.getXmlFile(new File(getDirectory(), id)).exists();
+    }
+
+    /** All spooled entries, oldest first. */
+    public List<SpoolEntry> getEntries() {
+        File[] directories = getDirectory().listFiles(File::isDirectory);
+        List<SpoolEntry> entries = new ArrayList<>();
+        if (directories == null) {
+            return entries;
+        }
+        for (File directory : directories) {
+            XmlFile xmlFile = SpoolEntry.getXmlFile(directory);
+            if (!xmlFile.exists()) {
+                continue;
+            }
+            try {
+                entries.add((SpoolEntry) xmlFile.read());
+            } catch (IOException e) {
+                LOGGER.log(Level.WARNING, "Failed to read spooled upload " + xmlFile, e);
+            }
+        }
+        entries.sort(Comparator.comparingLong(SpoolEntry::getCreatedMillis));
+        return entries;
+    }
+
+    /** Age of the oldest entry, or an empty string if the spool is empty. */
+    public String getOldestAge() {
+        List<SpoolEntry> entries = getEntries();
+        if (entries.isEmpty()) {
+            return "";
+        }
+        return Util.getTimeSpanString(System.currentTimeMillis() - entries.get(0).getCreatedMillis());
+    }
+
+    /**
+     * Starts uploading all entries that are due and not already being uploaded.
+     * If a coalescing window is configured, only the newest entry of each
+     * {@linkplain UploadParameters#getCoalescingKey() key} is uploaded once the window has passed. Older ones are
+     * dropped once the newest one has been uploaded, since their reports are replaced in Teamscale then. If the newest
+     * one fails for good, the next older one is uploaded instead.
+     */
+    synchronized void drain() {
+        long now = System.currentTimeMillis();
+        TeamscaleUploadPluginConfiguration configuration = TeamscaleUploadPluginConfiguration.get();
+        setThreads(configuration.getSpoolThreads());
+        long windowInMs = TimeUnit.SECONDS.toMillis(configuration.getCoalescingWindowInSeconds());
+        List<SpoolEntry> entries = getEntries();
+        if (windowInMs > 0) {
+            entries = coalesce(entries, now, windowInMs);
+        }
+        for (SpoolEntry entry : entries) {
+            String key = entry.getParameters().getCoalescingKey();
+            // Entries for an unavailable server are postponed without using up one of their attempts
+            if (entry.isDue(now)
+                    && !CircuitBreaker.isOpen(entry.getParameters().getUrl())
+                    && !inProgress.contains(entry.getId())
+                    && keysInProgress.add(key)) {
+                inProgress.add(entry.getId());
+                executor.execute(() -> {
+                    try (ACLContext ignored = ACL.as2(ACL.SYSTEM2)) {
+                        process(entry);
+                    } finally {
+                        inProgress.remove(entry.getId());
+                        keysInProgress.remove(key);
+                        // Entries of the same key may have been held back
+                        Timer.get().submit(this::drain);
+                    }
+                });
+            }
+        }
+    }
+
+    /**
+     * Returns the newest entry of each key if its window has passed.
+     * Keys with an entry in progress are left alone, so uploads of the same key are never in flight at the same time.
+     */
+    private List<SpoolEntry> coalesce(List<SpoolEntry> entries, long now, long windowInMs) {
+        Map<String, List<SpoolEntry>> entriesByKey = new LinkedHashMap<>();
+        for (SpoolEntry entry : entries) {
+            entriesByKey
+                    .computeIfAbsent(entry.getParameters().getCoalescingKey(), k -> new ArrayList<>())
+                    .add(entry);
+        }
+        List<SpoolEntry> newestEntries = new ArrayList<>();
+        for (List<SpoolEntry> group : entriesByKey.values()) {
+            if (group.stream().anyMatch(entry -> inProgress.contains(entry.getId()))) {
+                continue;
+            }
+            // Entries are sorted oldest first, older ones are kept until the newest one has been uploaded
+            SpoolEntry newest = group.get(group.size() - 1);
+            if (now >= newest.getCreatedMillis() + windowInMs) {
+                newestEntries.add(newest);
+            }
+        }
+        return newestEntries;
+    }
+
+    /** Adapts the number of threads to the configuration, which may have changed since the last drain. */
+    private void setThreads(int threads) {
+        if (threads > executor.getMaximumPoolSize()) {
+            executor.setMaximumPoolSize(threads);
+            executor.setCorePoolSize(threads);
+        } else if (threads < executor.getMaximumPoolSize()) {
+            executor.setCorePoolSize(threads);
+            executor.setMaximumPoolSize(threads);
+        }
+    }
+
+    private void process(SpoolEntry entry) {
+        File directory = new File(getDirectory(), entry.getId());
+        Run<?, ?> run = entry.getRun();
+        if (UploadIndex.load(getDirectory()).isAlreadyUploaded(entry.getParameters(), entry.getReports())) {
+            LOGGER.fine(() -> "Skipping spooled Teamscale upload " + entry.getKey()
+                    + ", the same reports were already uploaded to this revision and partition");
+            completeAction(
+                    run,
+                    entry.getId(),
+                    TeamscaleUploadAction.Status.SKIPPED,
+                    "The same reports were already uploaded to this revision and partition");
+            deleteQuietly(directory);
+            dropSuperseded(entry);
+            return;
+        }
+
+        File logFile = new File(run != null ? run.getRootDir() : directory, LOG_FILE_NAME);
+        UploadResult result;
+        try (UploadMetrics.InFlight inFlight = UploadMetrics.uploadStarted();
+                PrintStream logger =
+                        new PrintStream(new FileOutputStream(logFile, true), true, StandardCharsets.UTF_8)) {
+            logger.println(TeamscaleUploadBuilder.INFO + "Uploading spooled reports for " + entry.getKey()
+                    + " (attempt " + (entry.getAttempts() + 1) + ")");
+            result = new ReportUploader(entry.getParameters(), logger, TeamscaleUploadBuilder.ERROR)
+                    .upload(new FilePath(new File(directory, REPORTS_DIRECTORY)), entry.getReports());
+        } catch (IOException | RuntimeException e) {
+            LOGGER.log(Level.WARNING, "Spooled Teamscale upload " + entry.getKey() + " failed", e);
+            result = UploadResult.failure(entry.getReports().size(), null, String.valueOf(e.getMessage()), 0);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return;
+        }
+        UploadMetrics.recordUpload(entry.getParameters(), result);
+        if (run != null) {
+            for (TeamscaleUploadAction action : run.getActions(TeamscaleUploadAction.class)) {
+                if (entry.getId().equals(action.getSpoolId())) {
+                    action.recordUpload(result);
+                }
+            }
+        }
+
+        if (result.isSuccessful()) {
+            // Recorded before the entry is deleted, so that it is not uploaded again if the deletion fails
+            UploadIndex.record(getDirectory(), entry.getParameters(), entry.getReports());
+            if (run != null) {
+                UploadIndex.record(run.getParent(), entry.getParameters(), entry.getReports());
+            }
+            completeAction(run, entry.getId(), TeamscaleUploadAction.Status.SUCCESSFUL, result.getSummary());
+            deleteQuietly(directory);
+            dropSuperseded(entry);
+            return;
+        }
+
+        entry.recordFailure(result.getSummary(), System.currentTimeMillis() + RETRY_DELAY_MILLIS);
+        if (entry.getAttempts() >= MAX_ATTEMPTS) {
+            LOGGER.warning(() -> "Dropping spooled Teamscale upload " + entry.getKey() + " after "
+                    + entry.getAttempts() + " attempts: " + entry.getLastFailure());
+            completeAction(run, entry.getId(), TeamscaleUploadAction.Status.FAILED, result.getSummary());
+            deleteQuietly(directory);
+            return;
+        }
+        try {
+            entry.save(directory);
+        } catch (IOException e) {
+            LOGGER.log(Level.WARNING, "Failed to update spooled upload " + entry.getKey(), e);
+        }
+        completeAction(
+                run,
+                entry.getId(),
+                TeamscaleUploadAction.Status.RETRYING,
+                result.getSummary() + " (attempt " + entry.getAttempts() + " of " + MAX_ATTEMPTS
+                        + ", will be retried)");
+    }
+
+    /**
+     * Drops the entries of the same key that are older than the given one, which has just been uploaded, since their
+     * reports have been replaced in Teamscale. Uploading them later would replace the newer reports with older ones.
+     */
+    private void dropSuperseded(SpoolEntry uploaded) {
+        String key = uploaded.getParameters().getCoalescingKey();
+        for (SpoolEntry entry : getEntries()) {
+            if (entry.getCreatedMillis() > uploaded.getCreatedMillis()) {
+                break;
+            }
+            if (!entry.getId().equals(uploaded.getId())
+                    && key.equals(entry.getParameters().getCoalescingKey())
+                    && !inProgress.contains(entry.getId())) {
+                LOGGER.fine(() -> "Dropping spooled Teamscale upload " + entry.getKey() + " superseded by "
+                        + uploaded.getId());
+                completeAction(
+                        entry.getRun(),
+                        entry.getId(),
+                        TeamscaleUploadAction.Status.SKIPPED,
+                        "Superseded by a newer upload of the same revision and partition");
+                deleteQuietly(new File(getDirectory(), entry.getId()));
+            }
+        }
+    }
+
+    /** Removes an entry without uploading it. */
+    void delete(String id) {
+        File directory = new File(getDirectory(), id);
+        XmlFile xmlFile = SpoolEntry.getXmlFile(directory);
+        if (xmlFile.exists()) {
+            try {
+                SpoolEntry entry = (SpoolEntry) xmlFile.read();
+                completeAction(
+                        entry.getRun(), id, TeamscaleUploadAction.Status.FAILED, "Removed from the upload spool");
+            } catch (IOException e) {
+                LOGGER.log(Level.WARNING, "Failed to read spooled upload " + xmlFile, e);
+            }
+        }
+        deleteQuietly(directory);
+    }
+
+    private static void completeAction(
+            @Nullable Run<?, ?> run, String spoolId, TeamscaleUploadAction.Status status, String summary) {
+        if (run == null) {
+            return;
+        }
+        for (TeamscaleUploadAction action : run.getActions(TeamscaleUploadAction.class)) {
+            if (spoolId.equals(action.getSpoolId())) {
+                action.complete(status, summary);
+            }
+        }
+        try {
+            // The build may have finished in the meantime, so the completed action has to be persisted explicitly
+            run.save();
+        } catch (IOException e) {
+            LOGGER.log(Level.WARNING, "Failed to save " + run, e);
+        }
+    }
+
+    private static void deleteQuietly(File directory) {
+        try {
+            Util.deleteRecursive(directory);
+        } catch (IOException e) {
+            LOGGER.log(Level.WARNING, "Failed to delete " + directory, e);
+        }
+    }
+
+    /** Periodically retries failed entries and picks up entries left over from before a restart. */
+    @Extension
+    public static class Worker extends PeriodicWork {
+
+        @Override
+        public long getRecurrencePeriod() {
+            return MIN;
+        }
+
+        @Override
+        protected void doRun() {
+            UploadSpool.get().drain();
+        }
+    }
+}
@@ -0,0 +1,59 @@
+package eu.cqse.teamscale.jenkins.upload;
+
+import hudson.Extension;
+import hudson.model.ManagementLink;
+import java.util.UUID;
+import jenkins.model.Jenkins;
+import org.jspecify.annotations.NonNull;
+import org.kohsuke.stapler.HttpResponse;
+import org.kohsuke.stapler.HttpResponses;
+import org.kohsuke.stapler.QueryParameter;
+import org.kohsuke.stapler.verb.POST;
+
+/**
+ * Shows the backlog of the {@link UploadSpool} under Manage Jenkins.
+ */
+@Extension
+public class UploadSpoolManagementLink extends ManagementLink {
+
+    @Override
+    public String getIconFileName() {
+        return "clipboard.png";
+    }
+
+    @Override
+    public String getDisplayName() {
+        return "Teamscale Upload Spool";
+    }
+
+    @Override
+    public String getDescription() {
+        return "Uploads to Teamscale that are waiting to be sent or retried.";
+    }
+
+    @Override
+    public String getUrlName() {
+        return "teamscale-upload-spool";
+    }
+
+    @NonNull
+    @Override
+    public Category getCategory() {
+        return Category.STATUS;
+    }
+
+    @SuppressWarnings("unused") // used by jelly
+    public UploadSpool getSpool() {
+        return UploadSpool.get();
+    }
+
+    /** Removes an entry from the spool without uploading it. */
+    @POST
+    @SuppressWarnings("unused") // used by stapler web framework
+    public HttpResponse doDelete(@QueryParameter String id) {
+        Jenkins.get().checkPermission(Jenkins.ADMINISTER);
+        // Entry ids are UUIDs, which also rules out path traversal
+        UploadSpool.get().delete(UUID.fromString(id).toString());
+        return HttpResponses.redirectToDot();
+    }
+}
@@ -0,0 +1,105 @@
+package eu.cqse.teamscale.jenkins.upload;
+
+import hudson.FilePath;
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.util.List;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipOutputStream;
+import okhttp3.MediaType;
+import okhttp3.RequestBody;
+import okio.BufferedSink;
+import org.jspecify.annotations.Nullable;
+
+/**
+ * Request body that compresses several reports into one ZIP archive on the fly while the request is written.
+ * Neither the reports nor the archive are ever held in memory as a whole. The reports are processed by a
+ * {@link ReportPreprocessor} before they are compressed, if there is one.
+ */
+class ZipRequestBody extends RequestBody {
+
+    private static final MediaType ZIP = MediaType.get("application/zip");
+
+    private final FilePath baseDirectory;
+    private final List<ReportFile> reports;
+
+    @Nullable
+    private final ReportPreprocessor preprocessor;
+
+    /** Size of the archive written by the last call to {@link #writeTo(BufferedSink)}. */
+    private volatile long bytesWritten;
+
+    ZipRequestBody(FilePath baseDirectory, List<ReportFile> reports, @Nullable ReportPreprocessor preprocessor) {
+        this.baseDirectory = baseDirectory;
+        this.reports = reports;
+        this.preprocessor = preprocessor;
+    }
+
+    @Override
+    public MediaType contentType() {
+        return ZIP;
+    }
+
+    /** The size of the archive is not known before it has been written, so the body is sent chunked. */
+    @Override
+    public long contentLength() {
+        return -1;
+    }
+
+    long getBytesWritten() {
+        return bytesWritten;
+    }
+
+    @Override
+    public void writeTo(BufferedSink sink) throws IOException {
+        NonClosingCountingOutputStream output = new NonClosingCountingOutputStream(sink.outputStream());
+        try (ZipOutputStream zip = new ZipOutputStream(output)) {
+            for (ReportFile report : reports) {
+                zip.putNextEntry(new ZipEntry(report.getPath().replace('\\', '/')));
+                FilePath file = baseDirectory.child(report.getPath());
+                if (preprocessor != null) {
+                    preprocessor.process(file, zip);
+                } else {
+                    try (InputStream inputStream = file.read()) {
+                        inputStream.transferTo(zip);
+                    }
+                }
+                zip.closeEntry();
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted while compressing reports");
+        }
+        bytesWritten = output.count;
+    }
+
+    /** Lets the ZIP stream release its deflater on close without closing the underlying request sink. */
+    private static class NonClosingCountingOutputStream extends FilterOutputStream {
+
+        private long count;
+
+        private NonClosingCountingOutputStream(OutputStream out) {
+            super(out);
+        }
+
+        @Override
+        public void write(int b) throws IOException {
+            out.write(b);
+            count++;
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) throws IOException {
+            out.write(b, off, len);
+            count += len;
+        }
+
+        @Override
+        public void close() throws IOException {
+            flush();
+        }
+    }
+}
@@ -0,0 +1,34 @@
+package eu.cqse.teamscale.jenkins.upload;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import org.junit.jupiter.api.Test;
+
+class ChangedModulesTest {
+
+    @Test
+    void findsTheModulesOfTheChangedFiles() {
+        assertEquals(
+                new HashSet<>(Arrays.asList("services/billing", "libs/util")),
+                ChangedModules.of(
+                        Arrays.asList(
+                                "services/billing/src/Main.java",
+                                "services/billing/pom.xml",
+                                "libs\\util\\src\\Util.java"),
+                        2));
+    }
+
+    @Test
+    void allModulesAreAffectedByChangesOutsideOfTheModules() {
+        assertNull(ChangedModules.of(Arrays.asList("services/billing/src/Main.java", "services/pom.xml"), 2));
+        assertNull(ChangedModules.of(Collections.singletonList("Jenkinsfile"), 1));
+    }
+
+    @Test
+    void allModulesAreAffectedWithoutChangelog() {
+        assertNull(ChangedModules.of(Collections.emptyList(), 1));
+    }
+}
@@ -0,0 +1,105 @@
+package eu.cqse.teamscale.jenkins.upload;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+import hudson.util.Secret;
+import java.util.Arrays;
+import org.junit.jupiter.api.Test;
+
+class CircuitBreakerTest {
+
+    private static final long LONG_COOLDOWN = 60_000;
+
+    @Test
+    void opensAfterConsecutiveFailures() {
+        UploadParameters parameters = parameters("http://opens:8080", 2, LONG_COOLDOWN);
+        CircuitBreaker breaker = CircuitBreaker.forServer(parameters);
+        assertNotNull(breaker);
+
+        assertTrue(breaker.allowRequest(parameters));
+        breaker.record(failure(), parameters);
+        assertEquals(CircuitBreaker.State.CLOSED, breaker.getState());
+        assertTrue(breaker.allowRequest(parameters));
+        breaker.record(failure(), parameters);
+
+        assertEquals(CircuitBreaker.State.OPEN, breaker.getState());
+        assertFalse(breaker.allowRequest(parameters));
+        assertTrue(CircuitBreaker.isOpen("http://opens:8080/"));
+        assertTrue(breaker.describeRejection().contains("after 2 consecutive failed requests"));
+    }
+
+    @Test
+    void clientErrorsAndSuccessesResetTheFailures() {
+        UploadParameters parameters = parameters("http://resets:8080", 2, LONG_COOLDOWN);
+        CircuitBreaker breaker = CircuitBreaker.forServer(parameters);
+        assertNotNull(breaker);
+
+        breaker.record(failure(), parameters);
+        breaker.record(response(401), parameters);
+        breaker.record(failure(), parameters);
+        assertEquals(CircuitBreaker.State.CLOSED, breaker.getState());
+        assertEquals(1, breaker.getConsecutiveFailures());
+
+        breaker.record(response(503), parameters);
+        assertEquals(CircuitBreaker.State.OPEN, breaker.getState());
+    }
+
+    @Test
+    void halfOpensWithASingleProbeAfterTheCooldown() {
+        UploadParameters parameters = parameters("http://probes:8080", 1, 0);
+        CircuitBreaker breaker = CircuitBreaker.forServer(parameters);
+        assertNotNull(breaker);
+        breaker.record(failure(), parameters);
+        assertEquals(CircuitBreaker.State.HALF_OPEN, breaker.getState(), "cool-down has passed");
+
+        assertTrue(breaker.allowRequest(parameters), "probe");
+        breaker.record(failure(), parameters);
+        assertTrue(breaker.allowRequest(parameters), "next probe");
+        breaker.record(response(200), parameters);
+
+        assertEquals(CircuitBreaker.State.CLOSED, breaker.getState());
+        assertEquals(0, breaker.getConsecutiveFailures());
+        assertFalse(CircuitBreaker.isOpen("http://probes:8080"));
+    }
+
+    @Test
+    void onlyOneProbeIsSentAtATime() {
+        UploadParameters openParameters = parameters("http://single-probe:8080", 1, 0);
+        CircuitBreaker breaker = CircuitBreaker.forServer(openParameters);
+        assertNotNull(breaker);
+        breaker.record(failure(), openParameters);
+
+        UploadParameters parameters = parameters("http://single-probe:8080", 1, LONG_COOLDOWN);
+        assertTrue(breaker.allowRequest(parameters), "probe");
+        assertFalse(breaker.allowRequest(parameters), "probe is pending");
+        assertTrue(CircuitBreaker.isOpen("http://single-probe:8080"));
+    }
+
+    @Test
+    void disabledWithoutThreshold() {
+        assertNull(CircuitBreaker.forServer(parameters("http://disabled:8080", 0, LONG_COOLDOWN)));
+    }
+
+    @Test
+    void combinedResultIsRejectedIfABatchWasRejected() {
+        UploadResult combined =
+                UploadResult.combine(Arrays.asList(response(200), UploadResult.rejected(1, "unavailable")), 1);
+        assertTrue(combined.isRejected());
+        assertFalse(UploadResult.combine(Arrays.asList(response(200), failure()), 1).isRejected());
+    }
+
+    private static UploadResult failure() {
+        return UploadResult.failure(1, null, "Connection refused", 1);
+    }
+
+    private static UploadResult response(int responseCode) {
+        return UploadResult.response(1, "POST", responseCode < 400, responseCode, "message", null, 1, 10, 10, -1);
+    }
+
+    private static UploadParameters parameters(String url, int failureThreshold, long cooldownInMs) {
+        return new UploadParameters.Builder(
+                        url, "user", Secret.fromString("password"), "project", "partition", "SIMPLE", "revision")
+                .circuitBreaker(failureThreshold, cooldownInMs)
+                .build();
+    }
+}
@@ -0,0 +1,48 @@
+package eu.cqse.teamscale.jenkins.upload;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+import java.util.Arrays;
+import java.util.List;
+import org.junit.jupiter.api.Test;
+
+class ReportBatchesTest {
+
+    private static final List<ReportFile> REPORTS = Arrays.asList(
+            new ReportFile("a.simple", 10),
+            new ReportFile("b.simple", 20),
+            new ReportFile("c.simple", 100),
+            new ReportFile("d.simple", 5));
+
+    @Test
+    void unlimitedKeepsAllReportsInOneBatch() {
+        List<List<ReportFile>> batches =
+                ReportBatches.split(REPORTS, ReportBatches.UNLIMITED, ReportBatches.UNLIMITED);
+        assertEquals(1, batches.size());
+        assertEquals(4, batches.get(0).size());
+    }
+
+    @Test
+    void splitsBySize() {
+        List<List<ReportFile>> batches = ReportBatches.split(REPORTS, 50, ReportBatches.UNLIMITED);
+        assertEquals(3, batches.size());
+        assertEquals(2, batches.get(0).size());
+        // a report larger than the limit gets a batch of its own
+        assertEquals("c.simple", batches.get(1).get(0).getPath());
+        assertEquals(1, batches.get(1).size());
+        assertEquals(1, batches.get(2).size());
+    }
+
+    @Test
+    void splitsByCount() {
+        List<List<ReportFile>> batches = ReportBatches.split(REPORTS, ReportBatches.UNLIMITED, 3);
+        assertEquals(2, batches.size());
+        assertEquals(3, batches.get(0).size());
+        assertEquals(1, batches.get(1).size());
+    }
+
+    @Test
+    void noReportsNoBatches() {
+        assertTrue(ReportBatches.split(List.of(), 50, 3).isEmpty());
+    }
+}
@@ -0,0 +1,64 @@
+package eu.cqse.teamscale.jenkins.upload;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import org.junit.jupiter.api.Test;
+
+class ReportMergerTest {
+
+    @Test
+    void mergesSimpleReportsByTheUnionOfCoveredLines() throws IOException {
+        ReportMerger merger = new ReportMerger("simple", null);
+        add(merger, "src/B.java\n1-3\n\nsrc/A.java\n7\n");
+        add(merger, "src/A.java\n8-9\n20\n");
+        add(merger, "src/B.java\n2-5\n");
+
+        assertEquals("src/A.java\n7-9\n20\nsrc/B.java\n1-5\n", write(merger));
+    }
+
+    @Test
+    void mergesLcovReportsLineByLine() throws IOException {
+        ReportMerger merger = new ReportMerger("LCOV", null);
+        add(merger, "TN:\nSF:src/main.c\nFN:1,main\nDA:1,0\nDA:2,0\nDA:4,0\nend_of_record\n");
+        add(merger, "TN:\nSF:src/main.c\nDA:1,3\nDA:2,0\nDA:4,0,abc\nend_of_record\n");
+        add(merger, "SF:src/main.c\nDA:4,1\nend_of_record\n");
+
+        assertEquals("SF:src/main.c\nDA:1,1\nDA:2,0\nDA:4,1\nLH:2\nLF:3\nend_of_record\n", write(merger));
+    }
+
+    @Test
+    void onlyMergesFormatsWhoseCoverageCanBeUnitedExactly() {
+        assertTrue(ReportMerger.supports("simple"));
+        assertTrue(ReportMerger.supports("LCOV"));
+        assertFalse(ReportMerger.supports("JACOCO"), "only counts covered branches per line, not which ones");
+    }
+
+    @Test
+    void appliesPathMappingsToTheMergedReport() throws IOException {
+        ReportMerger merger = new ReportMerger("SIMPLE", new ReportPreprocessor("SIMPLE", "/agent/job/="));
+        add(merger, "/agent/job/src/Main.java\n3\n");
+
+        assertEquals("src/Main.java\n3\n", write(merger));
+    }
+
+    @Test
+    void rejectsMalformedReports() {
+        ReportMerger merger = new ReportMerger("LCOV", null);
+
+        assertThrows(IOException.class, () -> add(merger, "SF:src/main.c\nDA:x,1\nend_of_record\n"));
+    }
+
+    private static void add(ReportMerger merger, String report) throws IOException {
+        merger.add(new ByteArrayInputStream(report.getBytes(StandardCharsets.UTF_8)));
+    }
+
+    private static String write(ReportMerger merger) throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        merger.write(out);
+        return out.toString(StandardCharsets.UTF_8);
+    }
+}
@@ -0,0 +1,83 @@
+package eu.cqse.teamscale.jenkins.upload;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import org.junit.jupiter.api.Test;
+
+class ReportPreprocessorTest {
+
+    @Test
+    void minifiesJacocoReports() throws IOException {
+        String report = "<?xml version=\"1.0\" encoding=\"UTF-8\" standalone=\"yes\"?>\n"
+                + "<!DOCTYPE report PUBLIC \"-//JACOCO//DTD Report 1.1//EN\" \"report.dtd\">\n"
+                + "<report name=\"app\">\n"
+                + "  <sessioninfo id=\"host-1\" start=\"1\" dump=\"2\"/>\n"
+                + "  <!-- generated -->\n"
+                + "  <package name=\"build/classes/com/example\">\n"
+                + "    <class name=\"build/classes/com/example/Main\" sourcefilename=\"Main.java\"/>\n"
+                + "    <sourcefile name=\"Main.java\">\n"
+                + "      <line nr=\"3\" mi=\"0\" ci=\"2\" mb=\"0\" cb=\"0\"/>\n"
+                + "    </sourcefile>\n"
+                + "  </package>\n"
+                + "</report>\n";
+
+        String processed = process("JACOCO", "build/classes/=", report);
+
+        assertFalse(processed.contains("sessioninfo"));
+        assertFalse(processed.contains("generated"));
+        assertFalse(processed.contains("\n  "));
+        assertTrue(processed.contains("<package name=\"com/example\">"));
+        assertTrue(processed.contains("name=\"com/example/Main\""));
+        assertTrue(processed.contains("sourcefilename=\"Main.java\""));
+        assertTrue(processed.contains("ci=\"2\""));
+        assertTrue(processed.contains("/></sourcefile>"), "empty elements stay empty");
+    }
+
+    @Test
+    void remapsCoberturaSources() throws IOException {
+        String report = "<coverage>\n"
+                + "  <sources>\n"
+                + "    <source>/agent/workspace/job/src</source>\n"
+                + "  </sources>\n"
+                + "</coverage>";
+
+        assertTrue(process("COBERTURA", "/agent/workspace/job/=", report).contains("<source>src</source>"));
+    }
+
+    @Test
+    void remapsLcovReports() throws IOException {
+        String report = "TN:\n"
+                + "SF:/agent/workspace/job/src/main.c\n"
+                + "  DA:3,1  \n"
+                + "\n"
+                + "end_of_record\n";
+
+        assertEquals(
+                "TN:\nSF:src/main.c\nDA:3,1\nend_of_record\n", process("lcov", "/agent/workspace/job/", report));
+    }
+
+    @Test
+    void remapsSimpleReports() throws IOException {
+        String report = "/agent/workspace/job/src/Main.java\n 3-5\n8\n\n";
+
+        assertEquals("core/src/Main.java\n3-5\n8\n", process("SIMPLE", "/agent/workspace/job/=core/", report));
+    }
+
+    @Test
+    void leavesOtherFormatsUnchanged() throws IOException {
+        String report = "{ \"tests\": [ ] }\n";
+
+        assertEquals(report, process("TESTWISE_COVERAGE", "/agent/", report));
+    }
+
+    private static String process(String reportFormatId, String pathMappings, String report) throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        new ReportPreprocessor(reportFormatId, pathMappings)
+                .process(new ByteArrayInputStream(report.getBytes(StandardCharsets.UTF_8)), out);
+        return out.toString(StandardCharsets.UTF_8);
+    }
+}
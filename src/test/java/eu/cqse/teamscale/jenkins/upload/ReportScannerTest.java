@@ -0,0 +1,181 @@
+package eu.cqse.teamscale.jenkins.upload;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.stream.Collectors;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+class ReportScannerTest {
+
+    @TempDir
+    File workspace;
+
+    @BeforeEach
+    void createWorkspace() throws IOException {
+        write("module-a/coverage/report.simple", "a");
+        write("module-b/coverage/report.simple", "b");
+        write("module-b/coverage/report.xml", "<xml/>");
+        write("module-c/tmp/coverage/report.simple", "c");
+        write("src/Main.java", "class Main {}");
+    }
+
+    @Test
+    void splitsCommaSeparatedPatterns() {
+        assertArrayEquals(
+                new String[] {"**/*.simple", "**/*.xml"}, ReportScanner.splitPatterns(" **/*.simple,, **/*.xml "));
+        assertArrayEquals(new String[0], ReportScanner.splitPatterns(null));
+    }
+
+    @Test
+    void findsReportsOfAllIncludePatterns() throws Exception {
+        List<String> paths = scan(new String[] {"**/*.simple", "**/*.xml"}, new String[0]);
+        assertEquals(
+                Arrays.asList(
+                        path("module-a/coverage/report.simple"),
+                        path("module-b/coverage/report.simple"),
+                        path("module-b/coverage/report.xml"),
+                        path("module-c/tmp/coverage/report.simple")),
+                paths);
+    }
+
+    @Test
+    void appliesExcludePatterns() throws Exception {
+        List<String> paths = scan(new String[] {"**/*.simple"}, new String[] {"**/tmp/**", "module-a/**/*"});
+        assertEquals(Arrays.asList(path("module-b/coverage/report.simple")), paths);
+    }
+
+    @Test
+    void doesNotApplyAntsDefaultExcludes() throws Exception {
+        write(".git/coverage/report.simple", "git");
+        assertEquals(
+                Collections.singletonList(path(".git/coverage/report.simple")),
+                scan(new String[] {".git/**/*.simple"}, new String[0]));
+    }
+
+    @Test
+    void doesNotEnterDirectoriesThatCannotMatch() throws Exception {
+        ReportScanner.Result result =
+                new ReportScanner(new String[] {"module-a/coverage/*.simple"}, new String[0], false).scan(workspace);
+        assertEquals(1, result.getReports().size());
+        // src, module-b and module-c are not entered, so only the report itself is visited
+        assertEquals(1, result.getFilesVisited());
+    }
+
+    @Test
+    void passesEachReportToTheListener() throws Exception {
+        List<String> found = Collections.synchronizedList(new ArrayList<>());
+        ReportScanner.Result result = new ReportScanner(new String[] {"**/*.simple"}, new String[0], false)
+                .scan(workspace, report -> found.add(report.getPath()));
+        Collections.sort(found);
+        assertEquals(
+                result.getReports().stream().map(ReportFile::getPath).collect(Collectors.toList()), found);
+    }
+
+    @Test
+    void excludesReportsExceedingTheSizeLimitPerReport() throws Exception {
+        ReportScanner.Result result =
+                new ReportScanner(new String[] {"**/*.xml", "**/*.simple"}, new String[0], false, 3, 0, false)
+                        .scan(workspace);
+        assertEquals(3, result.getReports().size());
+        assertEquals(1, result.getExclusions().size());
+        assertTrue(result.getExclusions().get(0).startsWith(path("module-b/coverage/report.xml")));
+    }
+
+    @Test
+    void excludesReportsExceedingTheTotalSizeLimit() throws Exception {
+        ReportScanner.Result result =
+                new ReportScanner(new String[] {"**/*.simple"}, new String[0], false, 0, 2, false).scan(workspace);
+        assertEquals(2, result.getReports().size());
+        assertEquals(1, result.getExclusions().size());
+    }
+
+    @Test
+    void failsOnSizeLimitIfConfigured() {
+        ReportScanner scanner = new ReportScanner(new String[] {"**/*.xml"}, new String[0], false, 3, 0, true);
+        assertThrows(ReportScanner.SizeLimitExceededException.class, () -> scanner.scan(workspace));
+    }
+
+    @Test
+    void computesHashesIfRequested() throws Exception {
+        ReportScanner scanner = new ReportScanner(new String[] {"module-a/**/*.simple"}, new String[0], false);
+        assertNull(scanner.scan(workspace).getReports().get(0).getHash());
+        assertEquals(
+                "ca978112ca1bbdcafac231b39a23dc4da786eff8147c4e72b9807785afee48bb",
+                scanner.withHashes().scan(workspace).getReports().get(0).getHash());
+    }
+
+    @Test
+    void selectsTheReportsOfEachUploadFromACombinedScan() throws Exception {
+        String[] excludes = {"**/tmp/**"};
+        ReportScanner unit = new ReportScanner(new String[] {"module-a/**/*.simple"}, excludes, false);
+        ReportScanner all = new ReportScanner(new String[] {"**/*.simple"}, excludes, false);
+        ReportScanner.Result scan =
+                unit.withIncludes(new String[] {"module-a/**/*.simple", "**/*.xml"}).scan(workspace);
+        assertEquals(2, scan.getReports().size());
+
+        ReportScanner.Result selected = unit.select(scan);
+        assertEquals(
+                Arrays.asList(path("module-a/coverage/report.simple")),
+                selected.getReports().stream().map(ReportFile::getPath).collect(Collectors.toList()));
+        assertEquals(scan.getFilesVisited(), selected.getFilesVisited());
+        assertEquals(1, all.select(scan).getReports().size(), "reports outside the combined scan are not found");
+    }
+
+    @Test
+    void onlyEntersTheGivenModules() throws Exception {
+        write("report.simple", "root");
+        ReportScanner.Result result = new ReportScanner(new String[] {"**/*.simple"}, new String[0], false)
+                .withModules(Collections.singleton("module-b"), 1)
+                .scan(workspace);
+        assertEquals(
+                Arrays.asList(path("module-b/coverage/report.simple"), "report.simple"),
+                result.getReports().stream().map(ReportFile::getPath).collect(Collectors.toList()));
+    }
+
+    @Test
+    void selectsTheReportsOfOneModule() throws Exception {
+        write("report.simple", "root");
+        ReportScanner.Result scan =
+                new ReportScanner(new String[] {"**/*.simple"}, new String[0], false).scan(workspace);
+        assertEquals(
+                Collections.singletonList(path("module-b/coverage/report.simple")),
+                ReportScanner.selectModule(scan, "module-b", 1).getReports().stream()
+                        .map(ReportFile::getPath)
+                        .collect(Collectors.toList()));
+        assertEquals(
+                Collections.singletonList("report.simple"),
+                ReportScanner.selectModule(scan, null, 1).getReports().stream()
+                        .map(ReportFile::getPath)
+                        .collect(Collectors.toList()));
+    }
+
+    private List<String> scan(String[] includes, String[] excludes) throws Exception {
+        return new ReportScanner(includes, excludes, false)
+                .scan(workspace)
+                .getReports()
+                .stream()
+                .map(ReportFile::getPath)
+                .collect(Collectors.toList());
+    }
+
+    private static String path(String path) {
+        return path.replace('/', File.separatorChar);
+    }
+
+    private void write(String path, String content) throws IOException {
+        Path file = workspace.toPath().resolve(path);
+        Files.createDirectories(file.getParent());
+        Files.write(file, content.getBytes(StandardCharsets.UTF_8));
+    }
+}
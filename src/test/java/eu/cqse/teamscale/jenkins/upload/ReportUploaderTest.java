@@ -0,0 +1,16 @@
+package eu.cqse.teamscale.jenkins.upload;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+import org.junit.jupiter.api.Test;
+
+class ReportUploaderTest {
+
+    @Test
+    void parsesSessionIdFromPlainOrJsonBody() {
+        assertEquals("abc-123", ReportUploader.parseSessionId("abc-123"));
+        assertEquals("abc-123", ReportUploader.parseSessionId("\"abc-123\"\n"));
+        assertNull(ReportUploader.parseSessionId(""));
+        assertNull(ReportUploader.parseSessionId("\"\""));
+    }
+}
@@ -0,0 +1,49 @@
+package eu.cqse.teamscale.jenkins.upload;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+import org.junit.jupiter.api.Test;
+
+class RetryPolicyTest {
+
+    private static UploadResult response(int code, long retryAfterInMs) {
+        return UploadResult.response(1, "POST - url", code < 300, code, "message", null, 1, 10, 10, retryAfterInMs);
+    }
+
+    @Test
+    void retriesTransientFailuresOnly() {
+        RetryPolicy policy = new RetryPolicy(3, 100);
+        assertTrue(policy.shouldRetry(response(503, -1), 1));
+        assertTrue(policy.shouldRetry(response(429, -1), 2));
+        assertTrue(policy.shouldRetry(UploadResult.failure(1, "POST - url", "Connection reset", 1), 1));
+        assertFalse(policy.shouldRetry(response(503, -1), 3), "attempts exhausted");
+        assertFalse(policy.shouldRetry(response(403, -1), 1), "not transient");
+        assertFalse(policy.shouldRetry(response(200, -1), 1), "successful");
+    }
+
+    @Test
+    void rejectedUploadsAreNotRetried() {
+        UploadResult rejected = UploadResult.rejected(1, "unavailable");
+        assertFalse(new RetryPolicy(3, 0).shouldRetry(rejected, 1));
+        assertFalse(rejected.isSuccessful());
+    }
+
+    @Test
+    void delayHonoursRetryAfterAndBackoff() {
+        RetryPolicy policy = new RetryPolicy(5, 100);
+        assertEquals(5000, policy.delayInMs(1, 5000));
+        assertEquals(RetryPolicy.MAX_DELAY.toMillis(), policy.delayInMs(1, Long.MAX_VALUE));
+        for (int i = 0; i < 100; i++) {
+            long delay = policy.delayInMs(3, -1);
+            assertTrue(delay >= 0 && delay <= 400, "full jitter within the backoff of the third attempt");
+        }
+    }
+
+    @Test
+    void parsesRetryAfter() {
+        assertEquals(120_000, RetryPolicy.parseRetryAfterInMs("120"));
+        assertEquals(-1, RetryPolicy.parseRetryAfterInMs(null));
+        assertEquals(-1, RetryPolicy.parseRetryAfterInMs("soon"));
+        assertEquals(0, RetryPolicy.parseRetryAfterInMs("Wed, 21 Oct 2015 07:28:00 GMT"));
+    }
+}
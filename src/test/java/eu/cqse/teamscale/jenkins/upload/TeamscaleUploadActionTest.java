@@ -0,0 +1,44 @@
+package eu.cqse.teamscale.jenkins.upload;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+import hudson.util.Secret;
+import java.util.concurrent.TimeUnit;
+import org.junit.jupiter.api.Test;
+
+class TeamscaleUploadActionTest {
+
+    private static TeamscaleUploadAction createAction() {
+        UploadParameters parameters = new UploadParameters.Builder(
+                        "http://localhost:8080",
+                        "user",
+                        Secret.fromString("password"),
+                        "project",
+                        "partition",
+                        "SIMPLE",
+                        "revision")
+                .build();
+        return new TeamscaleUploadAction(parameters, TeamscaleUploadPluginResult.FAILURE, true);
+    }
+
+    @Test
+    void awaitingStopsAtTheDeadline() throws InterruptedException {
+        TeamscaleUploadAction action = createAction();
+        action.complete(TeamscaleUploadAction.Status.RETRYING, "Attempt 1 failed");
+        TeamscaleUploadAction.Status status =
+                action.awaitCompletion(System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(50));
+        assertEquals(TeamscaleUploadAction.Status.RETRYING, status);
+        assertFalse(status.isFinal());
+    }
+
+    @Test
+    void awaitingReturnsOnceTheUploadHasFinished() throws InterruptedException {
+        TeamscaleUploadAction action = createAction();
+        Thread uploader = new Thread(() -> action.complete(TeamscaleUploadAction.Status.SUCCESSFUL, "Uploaded"));
+        uploader.start();
+        assertEquals(
+                TeamscaleUploadAction.Status.SUCCESSFUL,
+                action.awaitCompletion(System.nanoTime() + TimeUnit.MINUTES.toNanos(1)));
+        uploader.join();
+    }
+}
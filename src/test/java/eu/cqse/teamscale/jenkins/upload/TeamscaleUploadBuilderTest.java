@@ -1,16 +1,28 @@
 package eu.cqse.teamscale.jenkins.upload;
 
+import static org.junit.jupiter.api.Assertions.*;
+
 import com.cloudbees.plugins.credentials.*;
 import com.cloudbees.plugins.credentials.impl.UsernamePasswordCredentialsImpl;
+import com.sun.net.httpserver.HttpServer;
 import hudson.model.FreeStyleBuild;
 import hudson.model.FreeStyleProject;
 import hudson.model.Result;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.stream.Collectors;
 import org.jspecify.annotations.Nullable;
 import org.junit.jupiter.api.Test;
 import org.junit.jupiter.api.extension.RegisterExtension;
 import org.junit.jupiter.params.ParameterizedTest;
 import org.junit.jupiter.params.provider.NullSource;
 import org.junit.jupiter.params.provider.ValueSource;
+import org.jvnet.hudson.test.JenkinsRule;
 import org.jvnet.hudson.test.SingleFileSCM;
 import org.jvnet.hudson.test.junit.jupiter.RealJenkinsExtension;
 
@@ -149,4 +161,178 @@ class TeamscaleUploadBuilderTest {
             jenkins.assertLogContains("TS-ERROR: Response - 403 Forbidden", build);
         });
     }
+
+    @Test
+    public void testUploadFromAgentWithUnsuccessfulHttpResponse() throws Throwable {
+        extension.then(jenkins -> {
+            FreeStyleProject project = createProjectWithReport(jenkins);
+            project.setAssignedNode(jenkins.createSlave());
+            // use a responsive http server that will fail with an http status code
+            TeamscaleUploadBuilder publisher = createPublisher(jenkins.getURL().toString());
+            publisher.setResultOnUploadFailure("FAILURE");
+            publisher.setUploadFromAgent(true);
+            project.getPublishersList().add(publisher);
+
+            FreeStyleBuild build = jenkins.buildAndAssertStatus(Result.FAILURE, project);
+
+            jenkins.assertLogContains("TS-INFO: Uploading reports from the agent", build);
+            jenkins.assertLogContains("TS-ERROR: Response - 403 Forbidden", build);
+        });
+    }
+
+    @Test
+    public void testUploadFromAgentSucceeds() throws Throwable {
+        extension.then(jenkins -> {
+            List<String> requestBodies = Collections.synchronizedList(new ArrayList<>());
+            HttpServer teamscale = startTeamscale(requestBodies);
+            try {
+                FreeStyleProject project = createProjectWithReport(jenkins);
+                project.setAssignedNode(jenkins.createSlave());
+                TeamscaleUploadBuilder publisher =
+                        createPublisher("http://localhost:" + teamscale.getAddress().getPort() + "/");
+                publisher.setResultOnUploadFailure("FAILURE");
+                publisher.setUploadFromAgent(true);
+                project.getPublishersList().add(publisher);
+
+                FreeStyleBuild build = jenkins.buildAndAssertSuccess(project);
+
+                jenkins.assertLogContains("TS-INFO: Uploading reports from the agent", build);
+                assertEquals(1, requestBodies.size());
+                assertTrue(requestBodies.get(0).contains("RunExec.java\n8-10"), "the report is sent as is");
+                TeamscaleUploadAction action = build.getAction(TeamscaleUploadAction.class);
+                assertNotNull(action);
+                assertEquals(TeamscaleUploadAction.Status.SUCCESSFUL, action.getStatus());
+                assertEquals(200, action.getResponseCode());
+                assertEquals(1, action.getReportCount());
+            } finally {
+                teamscale.stop(0);
+            }
+        });
+    }
+
+    @Test
+    public void testUploadActionIsRecorded() throws Throwable {
+        extension.then(jenkins -> {
+            FreeStyleProject project = createProjectWithReport(jenkins);
+            // use a responsive http server that will fail with an http status code
+            project.getPublishersList().add(createPublisher(jenkins.getURL().toString()));
+
+            FreeStyleBuild build = jenkins.buildAndAssertSuccess(project);
+
+            TeamscaleUploadAction action = build.getAction(TeamscaleUploadAction.class);
+            assertNotNull(action);
+            assertFalse(action.isAsynchronous());
+            assertEquals(TeamscaleUploadAction.Status.FAILED, action.getStatus());
+            assertEquals(403, action.getResponseCode());
+            assertEquals(1, action.getReportCount());
+            assertEquals("test.simple", action.getReports().get(0).getPath());
+            assertEquals(Constants.uploadMessage, action.getUploadMessage());
+        });
+    }
+
+    @Test
+    public void testAdditionalPartitionsShareOneScan() throws Throwable {
+        extension.then(jenkins -> {
+            FreeStyleProject project = createProjectWithReport(jenkins);
+            // use a responsive http server that will fail with an http status code
+            TeamscaleUploadBuilder publisher = createPublisher(jenkins.getURL().toString());
+            publisher.setAdditionalUploads(
+                    Collections.singletonList(new PartitionUpload("*.simple", "SIMPLE", "integration")));
+            project.getPublishersList().add(publisher);
+
+            FreeStyleBuild build = jenkins.buildAndAssertSuccess(project);
+
+            jenkins.assertLogContains("TS-INFO: Scanning for the reports of 2 partitions", build);
+            List<TeamscaleUploadAction> actions = build.getActions(TeamscaleUploadAction.class);
+            assertEquals(
+                    Arrays.asList(Constants.partition, "integration"),
+                    actions.stream().map(TeamscaleUploadAction::getPartition).collect(Collectors.toList()));
+            for (TeamscaleUploadAction action : actions) {
+                assertEquals(1, action.getReportCount());
+                assertEquals(403, action.getResponseCode());
+            }
+        });
+    }
+
+    @Test
+    public void testDuplicatePartitionFailsTheBuild() throws Throwable {
+        extension.then(jenkins -> {
+            FreeStyleProject project = createProjectWithReport(jenkins);
+            TeamscaleUploadBuilder publisher = createPublisher(jenkins.getURL().toString());
+            publisher.setAdditionalUploads(
+                    Collections.singletonList(new PartitionUpload("*.simple", "SIMPLE", Constants.partition)));
+            project.getPublishersList().add(publisher);
+
+            FreeStyleBuild build = jenkins.buildAndAssertStatus(Result.FAILURE, project);
+
+            jenkins.assertLogContains(
+                    "TS-ERROR: The partition \"" + Constants.partition + "\" is uploaded to more than once", build);
+            assertTrue(build.getActions(TeamscaleUploadAction.class).isEmpty(), "nothing is uploaded");
+        });
+    }
+
+    @Test
+    public void testCredentialsAreCachedUntilTheStoreChanges() throws Throwable {
+        extension.then(jenkins -> {
+            FreeStyleProject project = jenkins.createFreeStyleProject();
+            FreeStyleBuild build = jenkins.buildAndAssertSuccess(project);
+            SystemCredentialsProvider store = SystemCredentialsProvider.getInstance();
+            store.getCredentials()
+                    .add(new UsernamePasswordCredentialsImpl(
+                            CredentialsScope.GLOBAL,
+                            "username-pass",
+                            "Username / Password credential for testing",
+                            "my-user",
+                            "wonderfulPassword"));
+            assertNotNull(CredentialsCache.lookup("username-pass", build, Constants.url));
+
+            store.getCredentials().clear();
+            assertNotNull(CredentialsCache.lookup("username-pass", build, Constants.url), "still cached");
+
+            store.save();
+            assertNull(
+                    CredentialsCache.lookup("username-pass", build, Constants.url),
+                    "cache is cleared when the store is saved");
+        });
+    }
+
+    /** Creates a project whose workspace holds a single SIMPLE report, {@code test.simple}. */
+    private static FreeStyleProject createProjectWithReport(JenkinsRule jenkins) throws IOException {
+        FreeStyleProject project = jenkins.createFreeStyleProject();
+        project.setScm(new SingleFileSCM("test.simple", "RunExec.java\n8-10"));
+        return project;
+    }
+
+    /** Creates a publisher that uploads the report of {@link #createProjectWithReport} with valid credentials. */
+    private static TeamscaleUploadBuilder createPublisher(String url) throws IOException {
+        SystemCredentialsProvider.getInstance()
+                .getCredentials()
+                .add(new UsernamePasswordCredentialsImpl(
+                        CredentialsScope.GLOBAL,
+                        "username-pass",
+                        "Username / Password credential for testing",
+                        "my-user",
+                        "wonderfulPassword"));
+        return new TeamscaleUploadBuilder(
+                url,
+                "username-pass",
+                Constants.teamscaleProject,
+                Constants.partition,
+                Constants.uploadMessage,
+                Constants.fileFormat,
+                Constants.reportFormatId,
+                "1337");
+    }
+
+    /** Starts a server that accepts every upload like Teamscale does and records the request bodies. */
+    private static HttpServer startTeamscale(List<String> requestBodies) throws IOException {
+        HttpServer server = HttpServer.create(new InetSocketAddress("localhost", 0), 0);
+        server.createContext("/", exchange -> {
+            requestBodies.add(new String(exchange.getRequestBody().readAllBytes(), StandardCharsets.UTF_8));
+            exchange.sendResponseHeaders(200, -1);
+            exchange.close();
+        });
+        server.start();
+        return server;
+    }
 }
@@ -0,0 +1,104 @@
+package eu.cqse.teamscale.jenkins.upload;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Test;
+
+class UploadCoalescerTest {
+
+    private final ExecutorService executor = Executors.newCachedThreadPool();
+
+    @AfterEach
+    void shutDown() {
+        executor.shutdownNow();
+    }
+
+    /** Starts an upload that closes its turn right away, returns whether it got one. */
+    private Future<Boolean> upload(UploadCoalescer.Ticket ticket) {
+        return executor.submit(() -> {
+            UploadCoalescer.Turn turn = ticket.awaitTurn();
+            if (turn == null) {
+                return false;
+            }
+            turn.close();
+            return true;
+        });
+    }
+
+    @Test
+    void olderUploadIsSkippedOnceTheNewerOneSucceeded() throws Exception {
+        UploadCoalescer.Ticket older = UploadCoalescer.register("succeeded", 200);
+        UploadCoalescer.Ticket newer = UploadCoalescer.register("succeeded", 10);
+        Future<Boolean> olderUploaded = upload(older);
+        UploadCoalescer.Turn turn = newer.awaitTurn();
+        assertNotNull(turn);
+        Thread.sleep(400);
+        assertFalse(olderUploaded.isDone(), "waits for the newer upload");
+
+        turn.succeeded();
+        turn.close();
+        assertFalse(olderUploaded.get(5, TimeUnit.SECONDS));
+    }
+
+    @Test
+    void olderUploadIsKeptIfTheNewerOneFailed() throws Exception {
+        UploadCoalescer.Ticket older = UploadCoalescer.register("failed", 10);
+        UploadCoalescer.Ticket newer = UploadCoalescer.register("failed", 10);
+        Future<Boolean> olderUploaded = upload(older);
+
+        UploadCoalescer.Turn turn = newer.awaitTurn();
+        assertNotNull(turn);
+        turn.close();
+        assertTrue(olderUploaded.get(5, TimeUnit.SECONDS));
+    }
+
+    @Test
+    void cancelledTicketDoesNotHoldBackOlderUploads() throws Exception {
+        UploadCoalescer.Ticket older = UploadCoalescer.register("cancelled", 10);
+        UploadCoalescer.register("cancelled", 10).cancel();
+        assertTrue(upload(older).get(5, TimeUnit.SECONDS));
+    }
+
+    @Test
+    void olderUploadDoesNotWaitForUploadsThatAreOnlyRegistered() throws Exception {
+        // E.g. a step that uploads to the same partition twice, its second upload only starts after the first one
+        UploadCoalescer.Ticket older = UploadCoalescer.register("registered", 10);
+        UploadCoalescer.Ticket newer = UploadCoalescer.register("registered", 10);
+        assertTrue(upload(older).get(5, TimeUnit.SECONDS));
+        assertTrue(upload(newer).get(5, TimeUnit.SECONDS));
+    }
+
+    @Test
+    void stepsThatUploadTheSamePartitionsInDifferentOrderDoNotDeadlock() throws Exception {
+        UploadCoalescer.Ticket firstOfA = UploadCoalescer.register("crossed-1", 10);
+        UploadCoalescer.Ticket firstOfB = UploadCoalescer.register("crossed-2", 10);
+        UploadCoalescer.Ticket secondOfA = UploadCoalescer.register("crossed-2", 10);
+        UploadCoalescer.Ticket secondOfB = UploadCoalescer.register("crossed-1", 10);
+        Future<?> stepA = executor.submit(() -> awaitOneAfterTheOther(firstOfA, secondOfA));
+        Future<?> stepB = executor.submit(() -> awaitOneAfterTheOther(firstOfB, secondOfB));
+        stepA.get(5, TimeUnit.SECONDS);
+        stepB.get(5, TimeUnit.SECONDS);
+    }
+
+    /** Awaits the tickets of a step like the builder does, cancels them if they did not get a turn. */
+    private static Void awaitOneAfterTheOther(UploadCoalescer.Ticket... tickets) throws InterruptedException {
+        try {
+            for (UploadCoalescer.Ticket ticket : tickets) {
+                UploadCoalescer.Turn turn = ticket.awaitTurn();
+                if (turn != null) {
+                    turn.close();
+                }
+            }
+        } finally {
+            for (UploadCoalescer.Ticket ticket : tickets) {
+                ticket.cancel();
+            }
+        }
+        return null;
+    }
+}
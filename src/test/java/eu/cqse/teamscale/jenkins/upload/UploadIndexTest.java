@@ -0,0 +1,72 @@
+package eu.cqse.teamscale.jenkins.upload;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+import hudson.util.Secret;
+import java.io.File;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+class UploadIndexTest {
+
+    private static final List<ReportFile> REPORTS =
+            Arrays.asList(new ReportFile("a.simple", 10, "aaaa"), new ReportFile("b.simple", 20, "bbbb"));
+
+    @TempDir
+    File jobDirectory;
+
+    @Test
+    void emptyIndexHasNoHits() {
+        UploadIndex index = UploadIndex.load(jobDirectory);
+        assertEquals(0, index.countUnchanged(parameters("rev1"), REPORTS));
+        assertFalse(index.isAlreadyUploaded(parameters("rev1"), REPORTS));
+    }
+
+    @Test
+    void sameReportsForSameRevisionAreAlreadyUploaded() {
+        UploadIndex.record(jobDirectory, parameters("rev1"), REPORTS);
+        UploadIndex index = UploadIndex.load(jobDirectory);
+        assertEquals(2, index.countUnchanged(parameters("rev1"), REPORTS));
+        assertTrue(index.isAlreadyUploaded(parameters("rev1"), REPORTS));
+    }
+
+    @Test
+    void newRevisionIsUploadedAlthoughReportsAreUnchanged() {
+        UploadIndex.record(jobDirectory, parameters("rev1"), REPORTS);
+        UploadIndex index = UploadIndex.load(jobDirectory);
+        assertEquals(2, index.countUnchanged(parameters("rev2"), REPORTS));
+        assertFalse(index.isAlreadyUploaded(parameters("rev2"), REPORTS));
+    }
+
+    @Test
+    void changedOrRemovedReportsAreUploaded() {
+        UploadIndex.record(jobDirectory, parameters("rev1"), REPORTS);
+        UploadIndex index = UploadIndex.load(jobDirectory);
+        List<ReportFile> changed =
+                Arrays.asList(new ReportFile("a.simple", 10, "aaaa"), new ReportFile("b.simple", 21, "cccc"));
+        assertEquals(1, index.countUnchanged(parameters("rev1"), changed));
+        assertFalse(index.isAlreadyUploaded(parameters("rev1"), changed));
+        assertFalse(index.isAlreadyUploaded(parameters("rev1"), Collections.singletonList(REPORTS.get(0))));
+    }
+
+    @Test
+    void reportsWithoutHashesAreNotRecorded() {
+        UploadIndex.record(jobDirectory, parameters("rev1"), Collections.singletonList(new ReportFile("a.simple", 10)));
+        assertEquals(0, UploadIndex.load(jobDirectory).countUnchanged(parameters("rev1"), REPORTS));
+    }
+
+    private static UploadParameters parameters(String revision) {
+        return new UploadParameters.Builder(
+                        "http://localhost:8080",
+                        "user",
+                        Secret.fromString("password"),
+                        "project",
+                        "partition",
+                        "SIMPLE",
+                        revision)
+                .build();
+    }
+}
@@ -0,0 +1,71 @@
+package eu.cqse.teamscale.jenkins.upload;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+import java.util.Arrays;
+import java.util.Collections;
+import org.junit.jupiter.api.Test;
+
+class UploadResultTest {
+
+    private static UploadResult response(int reportCount, int code) {
+        return UploadResult.response(reportCount, "POST - url", code < 300, code, "message", null, 1, 10, 10, -1);
+    }
+
+    @Test
+    void committedSessionSucceeds() {
+        UploadResult result = UploadResult.combineSession(
+                4, 40, response(0, 200), Arrays.asList(response(2, 200), response(2, 200)), response(0, 200), true, 1);
+        assertTrue(result.isSuccessful());
+        assertEquals(4, result.getReportCount());
+        assertEquals(2, result.getBatchCount());
+        assertEquals(4, result.getRequests().size(), "open, two batches and commit");
+    }
+
+    @Test
+    void failedBatchFailsAllBatchesOfTheSession() {
+        UploadResult result = UploadResult.combineSession(
+                4, 40, response(0, 200), Arrays.asList(response(2, 200), response(2, 500)), response(0, 200), false, 1);
+        assertFalse(result.isSuccessful());
+        assertEquals(2, result.getFailedBatchCount(), "the successful batch does not take effect either");
+        assertEquals(500, result.getResponseCode());
+    }
+
+    @Test
+    void failedCommitFailsTheUpload() {
+        UploadResult result = UploadResult.combineSession(
+                4, 40, response(0, 200), Arrays.asList(response(2, 200), response(2, 200)), response(0, 503), false, 1);
+        assertFalse(result.isSuccessful());
+        assertEquals(503, result.getResponseCode());
+    }
+
+    @Test
+    void sessionThatCouldNotBeOpenedFailsWithoutBatches() {
+        UploadResult result = UploadResult.combineSession(
+                4, 40, UploadResult.rejected(0, "unavailable"), Collections.emptyList(), null, false, 1);
+        assertFalse(result.isSuccessful());
+        assertTrue(result.isRejected());
+        assertEquals(4, result.getReportCount());
+        assertEquals(0, result.getBatchCount());
+    }
+
+    @Test
+    void sessionRequestsAreNotCountedAsRetries() {
+        UploadResult result = UploadResult.combineSession(
+                4, 40, response(0, 200), Arrays.asList(response(2, 200), response(2, 200)), response(0, 200), true, 1);
+        assertEquals(0, result.getRetryCount());
+    }
+
+    @Test
+    void retriesOfBatchesAndSessionRequestsAreCounted() {
+        UploadResult opening = response(0, 200);
+        opening.addEarlierRequests(response(0, 503).getRequests());
+        UploadResult batch = response(2, 200);
+        batch.addEarlierRequests(Arrays.asList(
+                response(2, 503).getRequests().get(0), response(2, 503).getRequests().get(0)));
+        UploadResult result = UploadResult.combineSession(
+                4, 40, opening, Arrays.asList(batch, response(2, 200)), response(0, 200), true, 1);
+        assertEquals(3, result.getRetryCount());
+        assertEquals(7, result.getRequests().size());
+    }
+}
@@ -0,0 +1,87 @@
+package eu.cqse.teamscale.jenkins.upload;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+import java.io.ByteArrayOutputStream;
+import java.io.PrintStream;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import org.junit.jupiter.api.Test;
+
+class UploadSlotsTest {
+
+    private static final String URL = "http://localhost:8080/";
+
+    private final ByteArrayOutputStream log = new ByteArrayOutputStream();
+
+    private final PrintStream logger = new PrintStream(log, true, StandardCharsets.UTF_8);
+
+    @Test
+    void slotsAreHandedToFoldersInTurn() throws Exception {
+        UploadSlots.Slot occupied = UploadSlots.acquire(URL, "folder-a", 1, logger);
+        List<String> order = Collections.synchronizedList(new ArrayList<>());
+        List<Thread> threads = new ArrayList<>();
+        for (String request : Arrays.asList("folder-a/1", "folder-a/2", "folder-a/3", "folder-b/1")) {
+            Thread thread = new Thread(() -> {
+                String folder = request.substring(0, request.indexOf('/'));
+                try (UploadSlots.Slot ignored = UploadSlots.acquire(URL, folder, 1, logger)) {
+                    order.add(request);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+            });
+            thread.start();
+            awaitWaiting(thread);
+            threads.add(thread);
+        }
+
+        occupied.close();
+        for (Thread thread : threads) {
+            thread.join(10_000);
+        }
+
+        assertEquals(Arrays.asList("folder-a/1", "folder-b/1", "folder-a/2", "folder-a/3"), order);
+        String output = log.toString(StandardCharsets.UTF_8);
+        assertTrue(output.contains("Waiting for an upload slot for " + URL + ": position 2 in the queue"), output);
+    }
+
+    @Test
+    void limitsAreSeparatePerServer() throws Exception {
+        try (UploadSlots.Slot first = UploadSlots.acquire("http://first:8080", "folder", 1, logger);
+                UploadSlots.Slot second = UploadSlots.acquire("http://second:8080/", "folder", 1, logger)) {
+            assertEquals("", log.toString(StandardCharsets.UTF_8), "no request had to wait");
+        }
+    }
+
+    @Test
+    void interruptedRequestLeavesTheQueue() throws Exception {
+        UploadSlots.Slot occupied = UploadSlots.acquire(URL, "folder", 1, logger);
+        Thread waiting = new Thread(() -> {
+            try {
+                UploadSlots.acquire(URL, "folder", 1, logger).close();
+                fail("should not get a slot");
+            } catch (InterruptedException e) {
+                // expected
+            }
+        });
+        waiting.start();
+        awaitWaiting(waiting);
+        waiting.interrupt();
+        waiting.join(10_000);
+        occupied.close();
+
+        try (UploadSlots.Slot ignored = UploadSlots.acquire(URL, "folder", 1, logger)) {
+            assertFalse(waiting.isAlive());
+        }
+    }
+
+    /** Waits until the thread blocks for a slot, so that the order in which requests are queued is known. */
+    private static void awaitWaiting(Thread thread) throws InterruptedException {
+        while (thread.getState() != Thread.State.TIMED_WAITING) {
+            Thread.sleep(1);
+        }
+    }
+}